@@ -4,6 +4,19 @@
  * No dependencies - uses native Web Audio API and RTCPeerConnection
  */
 
+// Binary frame header in front of raw pcm16/opus packets on /api/audio/stream, negotiated with
+// hdr=1 and confirmed by { type: 'frame-header', version }. v1, 16 bytes, big-endian:
+// magic 'V' | version | flags | codec id << 4 | frame-size id | sequence u32 | capture time µs u64
+const AUDIO_FRAME_HEADER = {
+  VERSION: 1,
+  BYTES: 16,
+  MAGIC: 0x56,
+  FLAG_DISCONTINUITY: 0x01,
+  CODECS: { pcm16: 1, opus: 2 },
+  SIZE_IDS: { 10: 1, 20: 2, 40: 3 },
+  FRAME_MS_BY_SIZE_ID: [0, 10, 20, 40]
+};
+
 class VHRAudioStream {
   constructor(config = {}) {
     this.config = {
@@ -61,6 +74,19 @@ class VHRAudioStream {
     this.pcmRelaySource = null;
     this.pcmRelayProcessor = null;
     this.pcmRelaySink = null;
+    this.pcmRelayEncoding = 'pcm16';
+    this.opusEncoder = null;
+    this.opusTimestampUs = 0;
+    // PCM relay frame duration (10/20/40 ms), negotiated with the receiver through the server
+    this.pcmRelayFrameMs = 20;
+    // PCM relay sample rate; raised to the headset's native rate when it advertises support
+    this.pcmRelaySampleRate = 16000;
+    this.pcmRelayFrame = null;
+    this.pcmRelayFrameFill = 0;
+    // Frame header confirmed by the server for the relay socket (0 = bare packets)
+    this.pcmRelayHeaderVersion = 0;
+    this.pcmRelayHeaderSeq = 0;
+    this.pcmRelayHeaderDiscontinuity = true;
 
     // Headset -> PC talkback (micro uplink) receiver state
     this.talkbackWs = null;
@@ -73,6 +99,13 @@ class VHRAudioStream {
     this.talkbackFormat = 'webm';
     this.talkbackPcmSampleRate = 16000;
     this.talkbackPcmNextTime = 0;
+    this.talkbackPacketFormat = 'pcm16';
+    this.talkbackOpusDecoder = null;
+    this.talkbackOpusTimestampUs = 0;
+    // Duration of the talkback Opus packets, from the frame header; the headset encoder packs 20 ms
+    this.talkbackOpusFrameUs = 20000;
+    this.talkbackHeaderVersion = 0;
+    this.talkbackFrameStats = null;
   }
 
   /**
@@ -589,8 +622,9 @@ class VHRAudioStream {
         }
         wsUrl = `${wsProtocol}//${relayUrl.host}/api/relay/audio?session=${encodeURIComponent(relaySession)}&serial=${encodeURIComponent(targetSerial)}&role=sender`;
       } else {
-        wsUrl = `${wsProtocol}//${relayUrl.host}/api/audio/stream?serial=${encodeURIComponent(targetSerial)}&mode=sender&format=${wsFormat}`;
+        wsUrl = `${wsProtocol}//${relayUrl.host}/api/audio/stream?serial=${encodeURIComponent(targetSerial)}&mode=sender&format=${wsFormat}&frameMs=${this.pcmRelayFrameMs}&sampleRate=${this.pcmRelaySampleRate}&hdr=${AUDIO_FRAME_HEADER.VERSION}`;
       }
+      this.pcmRelayHeaderVersion = 0;
 
       this._log('Connecting relay WebSocket (sender) to ' + wsUrl);
       const relayWs = new WebSocket(wsUrl);
@@ -633,6 +667,33 @@ class VHRAudioStream {
         };
       }
 
+      relayWs.onmessage = (event) => {
+        if (typeof event.data !== 'string') return;
+        try {
+          const msg = JSON.parse(event.data);
+          if (msg.type === 'frame-header') {
+            this.pcmRelayHeaderVersion = Number(msg.version) || 0;
+            this.pcmRelayHeaderSeq = 0;
+            this.pcmRelayHeaderDiscontinuity = true;
+          }
+          if (msg.type === 'receiver-format' && [10, 20, 40].includes(msg.frameMs) && msg.frameMs !== this.pcmRelayFrameMs) {
+            this.pcmRelayFrameMs = msg.frameMs;
+            this.pcmRelayFrame = null;
+            this.pcmRelayFrameFill = 0;
+            this._log('Relay frame duration: ' + msg.frameMs + ' ms');
+          }
+          if (msg.type === 'receiver-format' && Array.isArray(msg.rates) && wsFormat === 'pcm16') {
+            this._negotiatePcmRelayRate(relayWs, msg.rates, msg.nativeRate);
+          }
+          // Native receiver able to decode Opus: switch the PCM pipeline to raw Opus packets
+          if (msg.type === 'receiver-format' && msg.format === 'opus' && wsFormat === 'pcm16' && opts.allowOpus !== false) {
+            this._enableOpusRelay(relayWs).catch(err => this._log('Opus relay unavailable: ' + err.message));
+          }
+        } catch (e) {
+          // ignore non-JSON control messages
+        }
+      };
+
       relayWs.onerror = (error) => {
         this._log('Relay WebSocket error: ' + (error?.message || ''));
         try { if (mediaRecorder) mediaRecorder.stop(); } catch {}
@@ -666,14 +727,15 @@ class VHRAudioStream {
 
     const ctx = new AudioContextCtor({ sampleRate: 48000, latencyHint: 'interactive' });
     const src = ctx.createMediaStreamSource(sourceStream);
-    const proc = ctx.createScriptProcessor(2048, 1, 1);
+    // 1024 samples at 48 kHz (~21 ms) keeps the PC-side chunking below one 20 ms frame plus slack
+    const proc = ctx.createScriptProcessor(1024, 1, 1);
     const sink = ctx.createGain();
     sink.gain.value = 0.0;
 
-    const downsampleTo16k = (input, inRate) => {
+    const downsample = (input, inRate, outRate) => {
       if (!input || !input.length) return new Float32Array(0);
-      if (inRate === 16000) return input;
-      const ratio = inRate / 16000;
+      if (inRate <= outRate) return input;
+      const ratio = inRate / outRate;
       const outLength = Math.max(1, Math.floor(input.length / ratio));
       const output = new Float32Array(outLength);
       let offsetResult = 0;
@@ -697,13 +759,28 @@ class VHRAudioStream {
       if (!this.relayActive) return;
       if (!relayWs || relayWs.readyState !== WebSocket.OPEN) return;
       const inBuf = event.inputBuffer.getChannelData(0);
-      const down = downsampleTo16k(inBuf, event.inputBuffer.sampleRate || ctx.sampleRate || 48000);
-      const pcm = new Int16Array(down.length);
+      if (this.pcmRelayEncoding === 'opus' && this.opusEncoder) {
+        this._encodeOpusFrame(inBuf, event.inputBuffer.sampleRate || ctx.sampleRate || 48000);
+        return;
+      }
+      const inRate = event.inputBuffer.sampleRate || ctx.sampleRate || 48000;
+      // Approximate capture time of this block on the wall clock, for end-to-end latency
+      const captureUs = (Date.now() - (inBuf.length * 1000) / inRate) * 1000;
+      const down = downsample(inBuf, inRate, this.pcmRelaySampleRate);
+      // Re-cut into exact frames so the headset jitter buffer and AudioTrack see whole frames
+      const frameSamples = (this.pcmRelaySampleRate / 1000) * this.pcmRelayFrameMs;
       for (let i = 0; i < down.length; i++) {
+        if (!this.pcmRelayFrame || this.pcmRelayFrame.length !== frameSamples) {
+          this.pcmRelayFrame = new Int16Array(frameSamples);
+          this.pcmRelayFrameFill = 0;
+        }
         const s = Math.max(-1, Math.min(1, down[i]));
-        pcm[i] = s < 0 ? (s * 0x8000) : (s * 0x7fff);
+        this.pcmRelayFrame[this.pcmRelayFrameFill++] = s < 0 ? (s * 0x8000) : (s * 0x7fff);
+        if (this.pcmRelayFrameFill === frameSamples) {
+          this._sendRelayPacket(relayWs, this.pcmRelayFrame.buffer, 'pcm16', captureUs);
+          this.pcmRelayFrame = null;
+        }
       }
-      relayWs.send(pcm.buffer);
     };
 
     src.connect(proc);
@@ -720,7 +797,109 @@ class VHRAudioStream {
     this.pcmRelaySink = sink;
   }
 
+  _negotiatePcmRelayRate(relayWs, rates, nativeRate) {
+    const contextRate = (this.pcmRelayContext && this.pcmRelayContext.sampleRate) || 48000;
+    // Send at the headset's native rate when it takes it: no resampling in its HAL nor here
+    let preferred = this.pcmRelaySampleRate;
+    if (rates.includes(nativeRate) && nativeRate <= contextRate) {
+      preferred = nativeRate;
+    } else if (rates.includes(16000)) {
+      preferred = 16000;
+    }
+    if (preferred === this.pcmRelaySampleRate) return;
+
+    this.pcmRelaySampleRate = preferred;
+    this.pcmRelayFrame = null;
+    this.pcmRelayFrameFill = 0;
+    if (this.pcmRelayEncoding === 'pcm16' && relayWs.readyState === WebSocket.OPEN) {
+      // Announce before the first packet at the new rate
+      relayWs.send(JSON.stringify({ type: 'format', format: 'pcm16', sampleRate: preferred, frameMs: this.pcmRelayFrameMs }));
+      this.pcmRelayHeaderDiscontinuity = true;
+    }
+    this._log('Relay PCM rate: ' + preferred + ' Hz');
+  }
+
+  async _enableOpusRelay(relayWs) {
+    if (this.pcmRelayEncoding === 'opus') return;
+    if (typeof AudioEncoder === 'undefined') throw new Error('WebCodecs AudioEncoder unavailable');
+    const sampleRate = (this.pcmRelayContext && this.pcmRelayContext.sampleRate) || 48000;
+    const config = {
+      codec: 'opus',
+      sampleRate,
+      numberOfChannels: 1,
+      bitrate: 24000,
+      opus: { format: 'opus', frameDuration: this.pcmRelayFrameMs * 1000 }
+    };
+    const support = await AudioEncoder.isConfigSupported(config);
+    if (!support || !support.supported) throw new Error('Opus encoder config not supported');
+
+    const encoder = new AudioEncoder({
+      output: (chunk) => {
+        if (relayWs.readyState !== WebSocket.OPEN) return;
+        const packet = new ArrayBuffer(chunk.byteLength);
+        chunk.copyTo(packet);
+        this._sendRelayPacket(relayWs, packet, 'opus', Date.now() * 1000 - this.pcmRelayFrameMs * 1000);
+      },
+      error: (e) => this._log('Opus encoder error: ' + e.message)
+    });
+    encoder.configure(config);
+
+    this.opusEncoder = encoder;
+    this.opusTimestampUs = 0;
+    // Announce the switch in-band so packets after this message are decoded as Opus
+    relayWs.send(JSON.stringify({ type: 'format', format: 'opus', frameMs: this.pcmRelayFrameMs }));
+    this.pcmRelayHeaderDiscontinuity = true;
+    this.pcmRelayEncoding = 'opus';
+    this._log('Relay switched to raw Opus packets (' + sampleRate + ' Hz)');
+  }
+
+  _encodeOpusFrame(samples, sampleRate) {
+    try {
+      const frame = new AudioData({
+        format: 'f32',
+        sampleRate,
+        numberOfFrames: samples.length,
+        numberOfChannels: 1,
+        timestamp: this.opusTimestampUs,
+        data: samples
+      });
+      this.opusTimestampUs += Math.round(samples.length * 1e6 / sampleRate);
+      this.opusEncoder.encode(frame);
+      frame.close();
+    } catch (e) {
+      this._log('Opus encode error: ' + e.message);
+    }
+  }
+
+  /** Sends one raw packet, prefixed with the frame header when the server negotiated it. */
+  _sendRelayPacket(relayWs, payload, format, captureUs) {
+    if (!this.pcmRelayHeaderVersion) {
+      relayWs.send(payload);
+      return;
+    }
+    const bytes = new Uint8Array(AUDIO_FRAME_HEADER.BYTES + payload.byteLength);
+    const view = new DataView(bytes.buffer);
+    bytes[0] = AUDIO_FRAME_HEADER.MAGIC;
+    bytes[1] = AUDIO_FRAME_HEADER.VERSION;
+    bytes[2] = this.pcmRelayHeaderDiscontinuity ? AUDIO_FRAME_HEADER.FLAG_DISCONTINUITY : 0;
+    bytes[3] = ((AUDIO_FRAME_HEADER.CODECS[format] || 0) << 4) | (AUDIO_FRAME_HEADER.SIZE_IDS[this.pcmRelayFrameMs] || 0);
+    view.setUint32(4, this.pcmRelayHeaderSeq >>> 0);
+    view.setBigUint64(8, BigInt(Math.max(0, Math.round(captureUs))));
+    bytes.set(new Uint8Array(payload), AUDIO_FRAME_HEADER.BYTES);
+    this.pcmRelayHeaderSeq = (this.pcmRelayHeaderSeq + 1) >>> 0;
+    this.pcmRelayHeaderDiscontinuity = false;
+    relayWs.send(bytes.buffer);
+  }
+
   _stopPcmRelayPipeline() {
+    if (this.opusEncoder) {
+      try { this.opusEncoder.close(); } catch (e) {}
+    }
+    this.opusEncoder = null;
+    this.pcmRelayEncoding = 'pcm16';
+    this.pcmRelayFrame = null;
+    this.pcmRelayFrameFill = 0;
+
     try {
       if (this.pcmRelayProcessor) this.pcmRelayProcessor.onaudioprocess = null;
       if (this.pcmRelaySource) this.pcmRelaySource.disconnect();
@@ -753,7 +932,9 @@ class VHRAudioStream {
       this._ensureTalkbackAudioElement();
       const talkbackFormat = String(opts.format || 'webm').toLowerCase();
       this.talkbackFormat = talkbackFormat;
-      if (talkbackFormat !== 'pcm16') {
+      // Raw packet modes (native app uplink); the sender announces pcm16 or opus on connect
+      this.talkbackPacketFormat = talkbackFormat === 'opus' ? 'opus' : 'pcm16';
+      if (!this._isRawTalkbackFormat()) {
         this._initTalkbackMediaSource();
       }
 
@@ -768,11 +949,13 @@ class VHRAudioStream {
         }
         wsUrl = `${wsProtocol}//${relayUrl.host}/api/relay/audio?session=${encodeURIComponent(relaySession)}&serial=${encodeURIComponent(targetSerial)}&role=uplink-viewer`;
       } else {
-        wsUrl = `${wsProtocol}//${relayUrl.host}/api/audio/stream?serial=${encodeURIComponent(targetSerial)}&mode=uplink-receiver&format=${encodeURIComponent(talkbackFormat)}`;
+        wsUrl = `${wsProtocol}//${relayUrl.host}/api/audio/stream?serial=${encodeURIComponent(targetSerial)}&mode=uplink-receiver&format=${encodeURIComponent(talkbackFormat)}&hdr=${AUDIO_FRAME_HEADER.VERSION}`;
       }
 
       this._log('Connecting talkback receiver to ' + wsUrl);
       this._setTalkbackState('connecting', 'Connexion...');
+      this.talkbackHeaderVersion = 0;
+      this.talkbackFrameStats = { expected: null, received: 0, lost: 0, reordered: 0, latencyMs: 0, lastLogAt: Date.now() };
       this.talkbackWs = new WebSocket(wsUrl);
       this.talkbackWs.binaryType = 'arraybuffer';
       this.talkbackActive = true;
@@ -784,23 +967,31 @@ class VHRAudioStream {
 
       this.talkbackWs.onmessage = async (event) => {
         if (event.data instanceof ArrayBuffer) {
-          if (this.talkbackFormat === 'pcm16') {
-            this._playTalkbackPcmChunk(event.data);
+          if (this._isRawTalkbackFormat()) {
+            this._playTalkbackRawPacket(event.data);
           } else {
             this._enqueueTalkbackBlob(new Blob([event.data], { type: 'audio/webm;codecs=opus' }));
           }
         } else if (event.data instanceof Blob) {
-          if (this.talkbackFormat === 'pcm16') {
+          if (this._isRawTalkbackFormat()) {
             const pcmBuf = await event.data.arrayBuffer();
-            this._playTalkbackPcmChunk(pcmBuf);
+            this._playTalkbackRawPacket(pcmBuf);
           } else {
             this._enqueueTalkbackBlob(event.data);
           }
         } else if (typeof event.data === 'string') {
           try {
             const msg = JSON.parse(event.data);
-            if (msg.type === 'uplink-sender-connected') {
-              this._log('Talkback sender connected (headset mic active)');
+            if (msg.type === 'frame-header') {
+              this.talkbackHeaderVersion = Number(msg.version) || 0;
+            } else if (msg.type === 'uplink-sender-connected') {
+              if (msg.format === 'opus' || msg.format === 'pcm16') {
+                this.talkbackPacketFormat = msg.format;
+              }
+              if (Number(msg.sampleRate) >= 8000) {
+                this.talkbackPcmSampleRate = Number(msg.sampleRate);
+              }
+              this._log('Talkback sender connected (headset mic active, format=' + this.talkbackPacketFormat + ')');
               this._setTalkbackState('active', 'ON');
             } else if (msg.type === 'uplink-sender-disconnected') {
               this._log('Talkback sender disconnected');
@@ -842,6 +1033,10 @@ class VHRAudioStream {
       this.talkbackQueue = [];
       this.talkbackMseReady = false;
       this.talkbackPcmNextTime = 0;
+      if (this.talkbackOpusDecoder) {
+        try { this.talkbackOpusDecoder.close(); } catch (e) {}
+      }
+      this.talkbackOpusDecoder = null;
       if (this.talkbackSourceBuffer) {
         try { this.talkbackSourceBuffer.removeEventListener('updateend', this._boundFlushTalkbackQueue); } catch {}
       }
@@ -916,6 +1111,115 @@ class VHRAudioStream {
     }).catch((e) => this._log('Talkback blob error: ' + e.message));
   }
 
+  _isRawTalkbackFormat() {
+    return this.talkbackFormat === 'pcm16' || this.talkbackFormat === 'opus';
+  }
+
+  _playTalkbackRawPacket(arrayBuffer) {
+    arrayBuffer = this._unwrapTalkbackFrame(arrayBuffer);
+    if (!arrayBuffer) return;
+    if (this.talkbackPacketFormat === 'opus') {
+      this._playTalkbackOpusPacket(arrayBuffer);
+    } else {
+      this._playTalkbackPcmChunk(arrayBuffer);
+    }
+  }
+
+  /** Strips the frame header (when negotiated) and tracks loss and end-to-end latency. */
+  _unwrapTalkbackFrame(arrayBuffer) {
+    if (!this.talkbackHeaderVersion || !(arrayBuffer instanceof ArrayBuffer)) return arrayBuffer;
+    if (arrayBuffer.byteLength < AUDIO_FRAME_HEADER.BYTES) return arrayBuffer;
+    const view = new DataView(arrayBuffer);
+    if (view.getUint8(0) !== AUDIO_FRAME_HEADER.MAGIC || view.getUint8(1) !== AUDIO_FRAME_HEADER.VERSION) return arrayBuffer;
+    const frameMs = AUDIO_FRAME_HEADER.FRAME_MS_BY_SIZE_ID[view.getUint8(3) & 0x0f];
+    if (frameMs) this.talkbackOpusFrameUs = frameMs * 1000;
+
+    const stats = this.talkbackFrameStats;
+    if (stats) {
+      const flags = view.getUint8(2);
+      const seq = view.getUint32(4);
+      const captureUs = Number(view.getBigUint64(8));
+      if (stats.expected !== null && !(flags & AUDIO_FRAME_HEADER.FLAG_DISCONTINUITY)) {
+        const ahead = (seq - stats.expected) | 0;
+        if (ahead > 0 && ahead < 1000) stats.lost += ahead;
+        if (ahead < 0 && ahead > -1000) stats.reordered++;
+      }
+      stats.expected = (seq + 1) >>> 0;
+      stats.received++;
+      const latencyMs = Date.now() - captureUs / 1000;
+      if (latencyMs > -1000 && latencyMs < 60000) {
+        stats.latencyMs = stats.latencyMs ? stats.latencyMs * 0.9 + latencyMs * 0.1 : latencyMs;
+      }
+      if (Date.now() - stats.lastLogAt >= 10000) {
+        stats.lastLogAt = Date.now();
+        this._log('Talkback frames=' + stats.received + ' lost=' + stats.lost + ' reordered=' + stats.reordered +
+          ' e2e=' + stats.latencyMs.toFixed(0) + 'ms');
+      }
+    }
+    return arrayBuffer.slice(AUDIO_FRAME_HEADER.BYTES);
+  }
+
+  _playTalkbackOpusPacket(arrayBuffer) {
+    try {
+      if (!(arrayBuffer instanceof ArrayBuffer) || arrayBuffer.byteLength === 0) return;
+      if (typeof AudioDecoder === 'undefined') {
+        this._log('Talkback Opus unsupported on this browser (WebCodecs AudioDecoder missing)');
+        return;
+      }
+      if (!this.talkbackOpusDecoder || this.talkbackOpusDecoder.state === 'closed') {
+        const decoder = new AudioDecoder({
+          output: (audioData) => this._scheduleTalkbackAudioData(audioData),
+          error: (e) => this._log('Talkback Opus decode error: ' + e.message)
+        });
+        decoder.configure({ codec: 'opus', sampleRate: 48000, numberOfChannels: 1 });
+        this.talkbackOpusDecoder = decoder;
+        this.talkbackOpusTimestampUs = 0;
+      }
+      this.talkbackOpusDecoder.decode(new EncodedAudioChunk({
+        type: 'key',
+        timestamp: this.talkbackOpusTimestampUs,
+        data: arrayBuffer
+      }));
+      this.talkbackOpusTimestampUs += this.talkbackOpusFrameUs;
+    } catch (e) {
+      this._log('Talkback Opus packet error: ' + e.message);
+    }
+  }
+
+  _scheduleTalkbackAudioData(audioData) {
+    try {
+      if (!this.audioContext || this.audioContext.state === 'closed') {
+        const AudioContext = window.AudioContext || window.webkitAudioContext;
+        this.audioContext = new AudioContext();
+      }
+      if (this.audioContext.state === 'suspended') {
+        this.audioContext.resume().catch(() => {});
+      }
+
+      const frames = audioData.numberOfFrames;
+      if (!frames) return;
+      const audioBuffer = this.audioContext.createBuffer(1, frames, audioData.sampleRate);
+      const samples = new Float32Array(frames);
+      audioData.copyTo(samples, { planeIndex: 0, format: 'f32-planar' });
+      audioBuffer.copyToChannel(samples, 0);
+
+      const source = this.audioContext.createBufferSource();
+      source.buffer = audioBuffer;
+      source.connect(this.audioContext.destination);
+
+      const now = this.audioContext.currentTime;
+      if (!this.talkbackPcmNextTime || this.talkbackPcmNextTime < now) {
+        this.talkbackPcmNextTime = now + 0.01;
+      }
+      source.start(this.talkbackPcmNextTime);
+      this.talkbackPcmNextTime += audioBuffer.duration;
+    } catch (e) {
+      this._log('Talkback Opus play error: ' + e.message);
+    } finally {
+      audioData.close();
+    }
+  }
+
   _playTalkbackPcmChunk(arrayBuffer) {
     try {
       if (!(arrayBuffer instanceof ArrayBuffer) || arrayBuffer.byteLength < 2) return;
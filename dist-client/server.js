@@ -16,6 +16,8 @@ const path = require('path');
 const fs = require('fs');
 const { Server: SocketIOServer } = require('socket.io');
 const WebSocket = require('ws');
+const EventEmitter = require('events');
+const dgram = require('dgram');
 
 // Global guard: ensure ffmpegProc symbol always exists to avoid ReferenceError in legacy paths
 globalThis.ffmpegProc = globalThis.ffmpegProc || null;
@@ -4438,6 +4440,12 @@ app.post('/api/tts/send', async (req, res) => {
   try {
     const utteranceId = 'vhr_' + Date.now();
 
+    // Casque connecté en mode duplex : le texte passe par le socket audio, sans adb
+    if (sendDuplexTts(serial, { type: 'tts', text, utteranceId })) {
+      console.log(`[tts] Texte envoyé au casque ${serial} via le socket duplex: "${text}"`);
+      return res.json({ ok: true, message: 'TTS envoyé via le socket audio duplex.' });
+    }
+
     // 1) Notification visuelle (fallback)
     const notifCmd = ['shell', 'cmd', 'notification', 'post', '-S', 'bigtext', '-t', 'VHR Dashboard', 'Tag', text];
     try {
@@ -8132,6 +8140,8 @@ const audioStreams = new Map();
 const wssAudio = new WebSocket.Server({ noServer: true });
 // Latency control: keep only minimal history (header + last chunk)
 const AUDIO_BUFFER_SIZE = 2; // effectively ~0.5s max
+// Headsets using the multiplexed audio socket: Map<serial, ws>
+const duplexAudioSockets = new Map();
 
 // ---------- ADB Track with single interval fallback ----------
 let adbTrackFallbackInterval = null;  // Prevent multiple intervals
@@ -8597,6 +8607,98 @@ function stopStream(serial) {
 }
 
 // ---------- Audio WebSocket Handler ----------
+// ---------- Audio frame header ----------
+// Versioned header in front of raw pcm16/opus packets, negotiated per connection with hdr=1
+// and confirmed by { type: 'frame-header', version }. Connections that do not ask keep
+// exchanging bare packets; the relay adds or strips the header so both kinds interoperate.
+// v1, 16 bytes, big-endian: magic 'V' | version | flags | codec id << 4 | frame-size id |
+// sequence u32 | capture time in µs since the epoch (u64, sender wall clock).
+const AUDIO_FRAME_HEADER_VERSION = 1;
+const AUDIO_FRAME_HEADER_BYTES = 16;
+const AUDIO_FRAME_HEADER_MAGIC = 0x56;
+const AUDIO_FRAME_FLAGS = { DISCONTINUITY: 0x01, SERVER_STAMPED: 0x02 };
+const AUDIO_FRAME_CODECS = { pcm16: 1, opus: 2 };
+const AUDIO_FRAME_SIZE_IDS = { 10: 1, 20: 2, 40: 3 };
+
+function parseAudioFrameHeader(data) {
+  if (!data || data.length < AUDIO_FRAME_HEADER_BYTES) return null;
+  if (data[0] !== AUDIO_FRAME_HEADER_MAGIC || data[1] !== AUDIO_FRAME_HEADER_VERSION) return null;
+  return {
+    flags: data[2],
+    codec: data[3] >> 4,
+    frameSizeId: data[3] & 0x0f,
+    seq: data.readUInt32BE(4),
+    captureUs: Number(data.readBigUInt64BE(8))
+  };
+}
+
+function encodeAudioFrameHeader(flags, format, frameMs, seq, captureUs) {
+  const header = Buffer.alloc(AUDIO_FRAME_HEADER_BYTES);
+  header[0] = AUDIO_FRAME_HEADER_MAGIC;
+  header[1] = AUDIO_FRAME_HEADER_VERSION;
+  header[2] = flags;
+  header[3] = ((AUDIO_FRAME_CODECS[format] || 0) << 4) | (AUDIO_FRAME_SIZE_IDS[frameMs] || 0);
+  header.writeUInt32BE(seq >>> 0, 4);
+  header.writeBigUInt64BE(BigInt(Math.max(0, Math.round(captureUs))), 8);
+  return header;
+}
+
+/** Negotiates the frame header for one connection (peer asked with hdr=1) and confirms it. */
+function negotiateAudioFrameHeader(ws, requestedVersion, format) {
+  const raw = format === 'pcm16' || format === 'opus';
+  ws.audioFrameHeader = raw && requestedVersion >= AUDIO_FRAME_HEADER_VERSION ? AUDIO_FRAME_HEADER_VERSION : 0;
+  ws.audioFrameSeq = 0;
+  if (!ws.audioFrameHeader) return;
+  try {
+    ws.send(JSON.stringify({ type: 'frame-header', version: ws.audioFrameHeader }));
+  } catch (e) {}
+}
+
+/**
+ * Splits an incoming packet from [ws] into { header, payload }. Only connections that
+ * negotiated the header are parsed, so a legacy packet that happens to start with the
+ * magic byte is never misread.
+ */
+function splitAudioFrame(ws, data) {
+  const header = ws.audioFrameHeader ? parseAudioFrameHeader(data) : null;
+  return { header, payload: header ? data.subarray(AUDIO_FRAME_HEADER_BYTES) : data };
+}
+
+/** What to send a peer for one relayed packet: framed or bare, depending on what it negotiated. */
+function audioFrameForPeer(peerWs, frame, data, format, frameMs) {
+  if (!peerWs.audioFrameHeader) return frame.payload;
+  if (frame.header) return data;
+  // Legacy sender: the relay numbers and timestamps the packets itself
+  const flags = AUDIO_FRAME_FLAGS.SERVER_STAMPED | (peerWs.audioFrameSeq === 0 ? AUDIO_FRAME_FLAGS.DISCONTINUITY : 0);
+  const header = encodeAudioFrameHeader(flags, format, frameMs, peerWs.audioFrameSeq, Date.now() * 1000);
+  peerWs.audioFrameSeq = (peerWs.audioFrameSeq + 1) >>> 0;
+  return Buffer.concat([header, frame.payload]);
+}
+
+/** Per-sender loss and end-to-end latency seen through frame headers (logged periodically). */
+function trackAudioFrame(stats, header, label) {
+  if (!header) return;
+  if (stats.expected !== null && !(header.flags & AUDIO_FRAME_FLAGS.DISCONTINUITY)) {
+    const ahead = (header.seq - stats.expected) | 0;
+    if (ahead > 0 && ahead < 1000) stats.lost += ahead;
+    if (ahead < 0 && ahead > -1000) stats.reordered++;
+  }
+  stats.expected = (header.seq + 1) >>> 0;
+  stats.received++;
+  const latencyMs = Date.now() - header.captureUs / 1000;
+  if (latencyMs > -1000 && latencyMs < 60000) stats.maxLatencyMs = Math.max(stats.maxLatencyMs, latencyMs);
+  const now = Date.now();
+  if (now - stats.lastLogAt >= 10000) {
+    console.log(`[Audio] ${label} frames=${stats.received} lost=${stats.lost} reordered=${stats.reordered} maxLatency=${stats.maxLatencyMs.toFixed(1)}ms`);
+    stats.lastLogAt = now;
+    stats.maxLatencyMs = 0;
+  }
+}
+
+function newAudioFrameStats() {
+  return { expected: null, received: 0, lost: 0, reordered: 0, maxLatencyMs: 0, lastLogAt: Date.now() };
+}
+
 /**
  * Relays audio chunks from PC sender to headset receiver
  * Endpoint: /api/audio/stream?serial=<device-serial>&mode=sender|receiver|uplink-sender|uplink-receiver
@@ -8605,13 +8707,46 @@ function stopStream(serial) {
  * receiver: Headset receives and plays audio chunks
  * uplink-sender: Headset microphone sends chunks back to PC
  * uplink-receiver: PC listens to headset microphone uplink
+ * duplex: headset receiver + uplink-sender + control/TTS on one socket (see handleDuplexAudioWebSocket)
  */
+/**
+ * Round-trip probe from a headset: { type: 'ping', t } comes back as { type: 'pong', t },
+ * t untouched, so the headset measures RTT on its own clock. Returns true when handled.
+ */
+function answerAudioPing(ws, msg) {
+  if (!msg || msg.type !== 'ping') return false;
+  try { ws.send(JSON.stringify({ type: 'pong', t: msg.t })); } catch (e) {}
+  return true;
+}
+
 function handleAudioWebSocket(serial, ws, req) {
   const url = new URL(req.url, `http://${req.headers.host}`);
   const mode = url.searchParams.get('mode') || 'receiver'; // 'sender' or 'receiver'
+  if (mode === 'duplex') {
+    return handleDuplexAudioWebSocket(serial, ws);
+  }
   const format = url.searchParams.get('format') || 'webm'; // webm|ogg (pass-through)
+  // Raw pcm16/opus streams are cut in frames of 10, 20 or 40 ms negotiated per connection
+  const requestedFrameMs = Number(url.searchParams.get('frameMs'));
+  const frameMs = [10, 20, 40].includes(requestedFrameMs) ? requestedFrameMs : null;
+  // Sample-rate capabilities: the rate this peer sends/expects, the rates it accepts and its native rate
+  const parseRate = (value) => {
+    const rate = Math.round(Number(value));
+    return Number.isFinite(rate) && rate >= 8000 && rate <= 96000 ? rate : null;
+  };
+  const sampleRate = parseRate(url.searchParams.get('sampleRate'));
+  const supportedRates = String(url.searchParams.get('rates') || '')
+    .split(',')
+    .map(parseRate)
+    .filter(Boolean);
+  const nativeRate = parseRate(url.searchParams.get('nativeRate'));
+  // Optional LAN UDP/RTP path for raw pcm16/opus (with XOR FEC when fec=1)
+  const wantsUdp = url.searchParams.get('udp') === '1' && (format === 'pcm16' || format === 'opus');
+  const wantsFec = url.searchParams.get('fec') === '1';
+  // Binary frame header version this peer speaks (0 = bare packets)
+  const requestedHeader = Number(url.searchParams.get('hdr')) || 0;
   
-  console.log(`[Audio] ${mode} connected for serial: ${serial} (format=${format})`);
+  console.log(`[Audio] ${mode} connected for serial: ${serial} (format=${format}${frameMs ? `, frameMs=${frameMs}` : ''})`);
   
   // Get or create audio stream entry for this serial
   if (!audioStreams.has(serial)) {
@@ -8625,11 +8760,31 @@ function handleAudioWebSocket(serial, ws, req) {
       uplinkReceivers: new Set(),
       uplinkBuffer: [],
       uplinkHeaderChunk: null,
-      uplinkFormat: 'webm'
+      uplinkFormat: 'webm',
+      uplinkFrameMs: null
     });
   }
   
   const audioEntry = audioStreams.get(serial);
+  // Only container streams (MediaRecorder WebM/Ogg) need their init segment replayed;
+  // raw pcm16/opus packets are self-contained and a stale one would just be a glitch
+  const isContainerFormat = (fmt) => fmt === 'webm' || fmt === 'ogg';
+  const notifyReceiverFormat = () => {
+    const senderWs = audioEntry.sender;
+    if (!senderWs || senderWs.readyState !== WebSocket.OPEN || !audioEntry.receiverFormat) return;
+    // Remote relay listeners only understand the sender's original format
+    if (audioEntry.relayWs) return;
+    try {
+      senderWs.send(JSON.stringify({
+        type: 'receiver-format',
+        format: audioEntry.receiverFormat,
+        frameMs: audioEntry.receiverFrameMs || undefined,
+        sampleRate: audioEntry.receiverSampleRate || undefined,
+        rates: audioEntry.receiverRates && audioEntry.receiverRates.length ? audioEntry.receiverRates : undefined,
+        nativeRate: audioEntry.receiverNativeRate || undefined
+      }));
+    } catch (e) {}
+  };
   const cleanupIfUnused = () => {
     const noDownlink = !audioEntry.sender && audioEntry.receivers.size === 0;
     const noUplink = !audioEntry.uplinkSender && audioEntry.uplinkReceivers.size === 0;
@@ -8638,10 +8793,15 @@ function handleAudioWebSocket(serial, ws, req) {
     }
   };
   
+  negotiateAudioFrameHeader(ws, requestedHeader, format);
+
   if (mode === 'sender') {
     // PC sending audio
     audioEntry.sender = ws;
+    const frameStats = newAudioFrameStats();
     audioEntry.format = format;
+    audioEntry.frameMs = frameMs;
+    audioEntry.sampleRate = sampleRate;
     clearRelayAudioRetry(serial);
     const relaySession = relayAudioSessions.get(serial);
     if (relaySession) {
@@ -8651,14 +8811,60 @@ function handleAudioWebSocket(serial, ws, req) {
     audioEntry.buffer = [];
     audioEntry.headerChunk = null;
     console.log(`[Audio] Sender connected: ${serial}`);
-    
-    ws.on('message', (data) => {
+    // Receivers may still be decoding the previous sender's format
+    for (const receiverWs of audioEntry.receivers) {
+      if (receiverWs.readyState === WebSocket.OPEN) {
+        try {
+          receiverWs.send(JSON.stringify({
+            type: 'sender-connected',
+            format,
+            frameMs: frameMs || undefined,
+            sampleRate: sampleRate || undefined
+          }));
+        } catch (e) {}
+      }
+    }
+    notifyReceiverFormat();
+
+    ws.on('message', (data, isBinary) => {
+      if (!isBinary) {
+        // In-band control from the sender, e.g. { type: 'format', format: 'opus' }
+        let msg = null;
+        try { msg = JSON.parse(data.toString()); } catch (e) {}
+        if (msg && msg.type === 'format' && msg.format) {
+          audioEntry.format = String(msg.format);
+          if ([10, 20, 40].includes(Number(msg.frameMs))) {
+            audioEntry.frameMs = Number(msg.frameMs);
+          }
+          if (parseRate(msg.sampleRate)) {
+            audioEntry.sampleRate = parseRate(msg.sampleRate);
+          }
+          audioEntry.headerChunk = null;
+          audioEntry.buffer = [];
+          console.log(`[Audio] Sender switched format: ${serial} -> ${audioEntry.format}`);
+          for (const receiverWs of audioEntry.receivers) {
+            if (receiverWs.readyState === WebSocket.OPEN) {
+              try {
+                receiverWs.send(JSON.stringify({
+                  type: 'sender-format',
+                  format: audioEntry.format,
+                  frameMs: audioEntry.frameMs || undefined,
+                  sampleRate: audioEntry.sampleRate || undefined
+                }));
+              } catch (e) {}
+            }
+          }
+        }
+        return;
+      }
+      const frame = splitAudioFrame(ws, data);
+      trackAudioFrame(frameStats, frame.header, `Downlink ${serial}`);
       // Keep first chunk as header for late-joining receivers (MediaRecorder WebM init segment)
-      if (!audioEntry.headerChunk) {
-        audioEntry.headerChunk = data;
+      if (!audioEntry.headerChunk && isContainerFormat(audioEntry.format)) {
+        audioEntry.headerChunk = frame.payload;
       }
       // Add to buffer for late-joining receivers
-      audioEntry.buffer.push(data);
+      audioEntry.buffer.push(frame.payload);
       if (audioEntry.buffer.length > AUDIO_BUFFER_SIZE) {
         audioEntry.buffer.shift();
       }
@@ -8669,7 +8875,10 @@ function handleAudioWebSocket(serial, ws, req) {
       for (const receiverWs of receivers) {
         if (receiverWs.readyState === WebSocket.OPEN) {
           try {
-            receiverWs.send(data);
+            const out = audioFrameForPeer(receiverWs, frame, data, audioEntry.format, audioEntry.frameMs);
+            if (!sendAudioUdp(receiverWs, out, audioEntry.format, audioEntry.frameMs)) {
+              receiverWs.send(out);
+            }
             sentCount++;
           } catch (e) {
             console.error(`[Audio] Failed to send to receiver:`, e.message);
@@ -8678,7 +8887,7 @@ function handleAudioWebSocket(serial, ws, req) {
         }
       }
       if (audioEntry.relayWs && audioEntry.relayWs.readyState === WebSocket.OPEN) {
-        try { audioEntry.relayWs.send(data); } catch (e) {}
+        try { audioEntry.relayWs.send(frame.payload); } catch (e) {}
       }
       if (sentCount === 0) {
         console.warn('[Audio] No receivers got the chunk');
@@ -8720,6 +8929,11 @@ function handleAudioWebSocket(serial, ws, req) {
       }
     }
     audioEntry.receivers.add(ws);
+    audioEntry.receiverFormat = format;
+    audioEntry.receiverFrameMs = frameMs;
+    audioEntry.receiverSampleRate = sampleRate;
+    audioEntry.receiverRates = supportedRates;
+    audioEntry.receiverNativeRate = nativeRate;
     console.log(`[Audio] Receiver connected: ${serial}, total receivers: ${audioEntry.receivers.size}`);
     console.log(`[Audio] Current sender status: ${audioEntry.sender ? 'CONNECTED' : 'NOT CONNECTED'}`);
     console.log(`[Audio] Sending buffered chunks to new receiver: ${audioEntry.buffer.length} chunks`);
@@ -8739,11 +8953,26 @@ function handleAudioWebSocket(serial, ws, req) {
     if (audioEntry.sender && audioEntry.sender.readyState === WebSocket.OPEN) {
       console.log(`[Audio] Notifying receiver that sender is ready`);
       try {
-        ws.send(JSON.stringify({ type: 'sender-connected' }));
+        ws.send(JSON.stringify({
+          type: 'sender-connected',
+          format: audioEntry.format,
+          frameMs: audioEntry.frameMs || undefined,
+          sampleRate: audioEntry.sampleRate || undefined
+        }));
       } catch (e) {}
+      notifyReceiverFormat();
+    }
+    
+    if (wantsUdp) {
+      offerAudioUdp(serial, ws, mode, wantsFec);
     }
     
-    ws.on('message', (data) => {
+    ws.on('message', (data, isBinary) => {
+      if (!isBinary) {
+        let msg = null;
+        try { msg = JSON.parse(data.toString()); } catch (e) {}
+        if (answerAudioPing(ws, msg) || handleAudioUdpFallback(ws, msg)) return;
+      }
       // Receivers shouldn't send messages (just receive audio from sender)
       console.warn(`[Audio] Unexpected message from receiver: ${serial}`);
     });
@@ -8766,22 +8995,53 @@ function handleAudioWebSocket(serial, ws, req) {
     }
 
     audioEntry.uplinkSender = ws;
+    const uplinkFrameStats = newAudioFrameStats();
     audioEntry.uplinkFormat = format || 'webm';
+    audioEntry.uplinkFrameMs = frameMs;
+    audioEntry.uplinkSampleRate = sampleRate;
     audioEntry.uplinkBuffer = [];
     audioEntry.uplinkHeaderChunk = null;
     console.log(`[Audio] Uplink sender connected: ${serial}`);
 
     for (const listenerWs of audioEntry.uplinkReceivers) {
       if (listenerWs.readyState === WebSocket.OPEN) {
-        try { listenerWs.send(JSON.stringify({ type: 'uplink-sender-connected' })); } catch (e) {}
+        try {
+          listenerWs.send(JSON.stringify({
+            type: 'uplink-sender-connected',
+            format: audioEntry.uplinkFormat,
+            frameMs: audioEntry.uplinkFrameMs || undefined,
+            sampleRate: audioEntry.uplinkSampleRate || undefined
+          }));
+        } catch (e) {}
       }
     }
 
-    ws.on('message', (data) => {
-      if (!audioEntry.uplinkHeaderChunk) {
-        audioEntry.uplinkHeaderChunk = data;
+    if (wantsUdp) {
+      offerAudioUdp(serial, ws, mode, wantsFec);
+    }
+
+    ws.on('message', (data, isBinary) => {
+      if (!isBinary) {
+        // DTX keepalive: the headset VAD is holding the mic silent, tell listeners it is not a dropout
+        let msg = null;
+        try { msg = JSON.parse(data.toString()); } catch (e) {}
+        if (answerAudioPing(ws, msg) || handleAudioUdpFallback(ws, msg)) return;
+        if (msg && msg.type === 'dtx') {
+          for (const listenerWs of audioEntry.uplinkReceivers) {
+            if (listenerWs.readyState === WebSocket.OPEN) {
+              try { listenerWs.send(JSON.stringify({ type: 'uplink-dtx' })); } catch (e) {}
+            }
+          }
+        }
+        return;
+      }
+      const frame = splitAudioFrame(ws, data);
+      trackAudioFrame(uplinkFrameStats, frame.header, `Uplink ${serial}`);
+      // pcm16/opus packets are passed through untouched; only containers need their init segment
+      if (!audioEntry.uplinkHeaderChunk && isContainerFormat(audioEntry.uplinkFormat)) {
+        audioEntry.uplinkHeaderChunk = frame.payload;
       }
-      audioEntry.uplinkBuffer.push(data);
+      audioEntry.uplinkBuffer.push(frame.payload);
       if (audioEntry.uplinkBuffer.length > AUDIO_BUFFER_SIZE) {
         audioEntry.uplinkBuffer.shift();
       }
@@ -8790,7 +9050,7 @@ function handleAudioWebSocket(serial, ws, req) {
       for (const listenerWs of listeners) {
         if (listenerWs.readyState === WebSocket.OPEN) {
           try {
-            listenerWs.send(data);
+            listenerWs.send(audioFrameForPeer(listenerWs, frame, data, audioEntry.uplinkFormat, audioEntry.uplinkFrameMs));
           } catch (e) {
             listeners.delete(listenerWs);
           }
@@ -8833,7 +9093,12 @@ function handleAudioWebSocket(serial, ws, req) {
 
     if (audioEntry.uplinkSender && audioEntry.uplinkSender.readyState === WebSocket.OPEN) {
       try {
-        ws.send(JSON.stringify({ type: 'uplink-sender-connected' }));
+        ws.send(JSON.stringify({
+          type: 'uplink-sender-connected',
+          format: audioEntry.uplinkFormat,
+          frameMs: audioEntry.uplinkFrameMs || undefined,
+          sampleRate: audioEntry.uplinkSampleRate || undefined
+        }));
       } catch (e) {}
     }
 
@@ -8851,6 +9116,471 @@ function handleAudioWebSocket(serial, ws, req) {
   }
 }
 
+// ---------- Multiplexed (duplex) audio socket ----------
+// mode=duplex carries downlink, uplink, control and TTS for one headset over a single socket.
+// Every frame is binary and starts with a channel byte; control and TTS payloads are UTF-8 JSON
+// tagged with the role they belong to. Each attached role is served by the regular
+// handleAudioWebSocket through a DuplexRoleSocket, so relay logic is shared with legacy sockets.
+const DUPLEX_CHANNEL = { DOWNLINK: 1, UPLINK: 2, CONTROL: 3, TTS: 4 };
+const DUPLEX_ROLES = ['receiver', 'uplink-sender'];
+// Downlink audio is dropped (control and TTS never are) once this much is waiting in the socket
+const DUPLEX_MAX_BUFFERED_AUDIO = 16 * 1024;
+
+/** ws-compatible view of one role on a duplex socket, as seen by handleAudioWebSocket. */
+class DuplexRoleSocket extends EventEmitter {
+  constructor(duplexWs, role) {
+    super();
+    this.duplexWs = duplexWs;
+    this.role = role;
+    this.closed = false;
+    this.droppedAudio = 0;
+  }
+
+  get readyState() {
+    return this.closed ? WebSocket.CLOSED : this.duplexWs.readyState;
+  }
+
+  get bufferedAmount() {
+    return this.duplexWs.bufferedAmount;
+  }
+
+  send(data) {
+    if (this.closed || this.duplexWs.readyState !== WebSocket.OPEN) return;
+    if (typeof data === 'string') {
+      let payload = data;
+      try { payload = JSON.stringify({ ...JSON.parse(data), role: this.role }); } catch (e) {}
+      sendDuplexFrame(this.duplexWs, DUPLEX_CHANNEL.CONTROL, Buffer.from(payload, 'utf8'));
+      return;
+    }
+    // Late audio is worthless: shed it instead of queueing behind a slow link
+    if (this.duplexWs.bufferedAmount > DUPLEX_MAX_BUFFERED_AUDIO) {
+      this.droppedAudio++;
+      return;
+    }
+    sendDuplexFrame(this.duplexWs, DUPLEX_CHANNEL.DOWNLINK, Buffer.isBuffer(data) ? data : Buffer.from(data));
+  }
+
+  close() {
+    if (this.closed) return;
+    this.closed = true;
+    if (this.duplexWs.readyState === WebSocket.OPEN) {
+      const payload = JSON.stringify({ type: 'detached', role: this.role });
+      sendDuplexFrame(this.duplexWs, DUPLEX_CHANNEL.CONTROL, Buffer.from(payload, 'utf8'));
+    }
+    this.emit('close');
+  }
+
+  terminate() {
+    this.close();
+  }
+}
+
+function sendDuplexFrame(duplexWs, channel, payload) {
+  try {
+    duplexWs.send(Buffer.concat([Buffer.from([channel]), payload]), { binary: true });
+  } catch (e) {
+    console.error('[Audio] Duplex send error:', e.message);
+  }
+}
+
+/**
+ * Sends a TTS request to the headset over its duplex socket.
+ * Returns false when the headset has no duplex socket open.
+ */
+function sendDuplexTts(serial, message) {
+  const duplexWs = duplexAudioSockets.get(serial);
+  if (!duplexWs || duplexWs.readyState !== WebSocket.OPEN) return false;
+  sendDuplexFrame(duplexWs, DUPLEX_CHANNEL.TTS, Buffer.from(JSON.stringify(message), 'utf8'));
+  return true;
+}
+
+function handleDuplexAudioWebSocket(serial, ws) {
+  console.log(`[Audio] Duplex socket connected for serial: ${serial}`);
+  const previous = duplexAudioSockets.get(serial);
+  if (previous && previous !== ws) {
+    try { previous.close(1000, 'replaced'); } catch (e) {}
+  }
+  duplexAudioSockets.set(serial, ws);
+  const roles = new Map();
+
+  const detach = (role) => {
+    const roleWs = roles.get(role);
+    if (!roleWs) return;
+    roles.delete(role);
+    roleWs.close();
+  };
+
+  const attach = (msg) => {
+    const role = msg.role;
+    detach(role);
+    const roleWs = new DuplexRoleSocket(ws, role);
+    roleWs.once('close', () => {
+      if (roles.get(role) === roleWs) roles.delete(role);
+    });
+    roles.set(role, roleWs);
+    const params = new URLSearchParams({ serial, mode: role });
+    for (const key of ['format', 'frameMs', 'sampleRate', 'rates', 'nativeRate', 'udp', 'fec', 'hdr']) {
+      if (msg[key] !== undefined && msg[key] !== null) params.set(key, String(msg[key]));
+    }
+    handleAudioWebSocket(serial, roleWs, {
+      url: `/api/audio/stream?${params.toString()}`,
+      headers: { host: 'duplex.local' }
+    });
+  };
+
+  const handleControl = (msg) => {
+    if (!msg || !msg.type) return;
+    if (msg.type === 'attach' && DUPLEX_ROLES.includes(msg.role)) {
+      attach(msg);
+    } else if (msg.type === 'detach') {
+      detach(msg.role);
+    } else {
+      const roleWs = roles.get(msg.role);
+      if (roleWs) roleWs.emit('message', Buffer.from(JSON.stringify(msg), 'utf8'), false);
+    }
+  };
+
+  ws.on('message', (data, isBinary) => {
+    if (!isBinary) {
+      // Plain JSON text frames are accepted as control too
+      let msg = null;
+      try { msg = JSON.parse(data.toString()); } catch (e) {}
+      handleControl(msg);
+      return;
+    }
+    if (!data || data.length < 1) return;
+    const channel = data[0];
+    const payload = data.subarray(1);
+    if (channel === DUPLEX_CHANNEL.UPLINK) {
+      const roleWs = roles.get('uplink-sender');
+      if (roleWs) roleWs.emit('message', payload, true);
+    } else if (channel === DUPLEX_CHANNEL.CONTROL) {
+      let msg = null;
+      try { msg = JSON.parse(payload.toString('utf8')); } catch (e) {}
+      handleControl(msg);
+    } else {
+      console.warn(`[Audio] Duplex: unexpected channel ${channel} from ${serial}`);
+    }
+  });
+
+  const teardown = () => {
+    if (duplexAudioSockets.get(serial) === ws) duplexAudioSockets.delete(serial);
+    for (const role of Array.from(roles.keys())) detach(role);
+  };
+
+  ws.on('close', () => {
+    console.log(`[Audio] Duplex socket disconnected: ${serial}`);
+    teardown();
+  });
+
+  ws.on('error', (err) => {
+    console.error(`[Audio] Duplex socket error:`, err.message);
+    teardown();
+  });
+}
+
+// ---------- LAN UDP/RTP audio transport ----------
+// Optional datagram path for pcm16/opus between server and headset app, so one lost packet
+// costs one concealed frame instead of a TCP head-of-line stall. Clients ask with udp=1; the
+// server answers on the WebSocket with { type: 'udp-offer', port, token }, the client then
+// sends hello datagrams and audio only moves to UDP once a hello arrives. Anything else
+// (blocked UDP, ADB reverse tunnels, stale keepalives) keeps or puts the stream back on WS.
+// Packets use a plain 12-byte RTP header; the SSRC carries the per-connection token.
+// AUDIO_UDP_PORT sets the port (0 disables), AUDIO_UDP_LOSS drops that % of outgoing media
+// datagrams to exercise loss concealment and FEC over loopback.
+const AUDIO_UDP_PORT = Number(process.env.AUDIO_UDP_PORT || 9031);
+const AUDIO_UDP_LOSS = Math.min(100, Math.max(0, Number(process.env.AUDIO_UDP_LOSS || 0))) / 100;
+const AUDIO_UDP_STALE_MS = 10000;
+const RTP_HEADER_BYTES = 12;
+const RTP_PT = { PCM16: 96, OPUS: 97, CONTROL: 126, FEC: 127 };
+const RTP_CONTROL = { HELLO: 1, ACK: 2 };
+const RTP_FEC_GROUP = 4;
+const RTP_REORDER_WINDOW = 16;
+// token -> { serial, role, ws, address, port, active, lastSeen, seq, timestamp, fec, receiver }
+const audioUdpPaths = new Map();
+let audioUdpSocket = null;
+
+function writeRtpHeader(buffer, payloadType, seq, timestamp, ssrc) {
+  buffer[0] = 0x80;
+  buffer[1] = payloadType & 0x7f;
+  buffer.writeUInt16BE(seq & 0xffff, 2);
+  buffer.writeUInt32BE(timestamp >>> 0, 4);
+  buffer.writeUInt32BE(ssrc >>> 0, 8);
+}
+
+/** XOR parity over groups of RTP_FEC_GROUP media packets (recovers one loss per group). */
+class RtpFecEncoder {
+  constructor() {
+    this.reset();
+  }
+
+  reset() {
+    this.count = 0;
+    this.baseSeq = 0;
+    this.lengthXor = 0;
+    this.timestampXor = 0;
+    this.parity = Buffer.alloc(0);
+  }
+
+  /** Returns the parity payload once a group is complete, otherwise null. */
+  add(seq, timestamp, payload) {
+    if (this.count === 0) this.baseSeq = seq;
+    if (this.parity.length < payload.length) {
+      const grown = Buffer.alloc(payload.length);
+      this.parity.copy(grown);
+      this.parity = grown;
+    }
+    for (let i = 0; i < payload.length; i++) this.parity[i] ^= payload[i];
+    this.lengthXor ^= payload.length;
+    this.timestampXor = (this.timestampXor ^ timestamp) >>> 0;
+    this.count++;
+    if (this.count < RTP_FEC_GROUP) return null;
+    // count(1) | length xor(2) | timestamp xor(4) | payload xor
+    const out = Buffer.alloc(7 + this.parity.length);
+    out[0] = this.count;
+    out.writeUInt16BE(this.lengthXor, 1);
+    out.writeUInt32BE(this.timestampXor, 3);
+    this.parity.copy(out, 7);
+    const baseSeq = this.baseSeq;
+    this.reset();
+    return { baseSeq, payload: out };
+  }
+}
+
+/**
+ * Restores RTP order over a small window, rebuilds single losses from FEC parity and
+ * reports the rest as lost so the consumer can conceal them. Waits for at most
+ * `reorderDepth` newer packets before giving a missing one up.
+ */
+class RtpReorderReceiver {
+  constructor(onPacket, onLoss, reorderDepth) {
+    this.onPacket = onPacket;
+    this.onLoss = onLoss;
+    this.reorderDepth = reorderDepth;
+    this.slots = new Array(RTP_REORDER_WINDOW).fill(null);
+    this.next = -1;
+    this.highest = -1;
+  }
+
+  static diff(a, b) {
+    const d = (a - b) & 0xffff;
+    return d >= 0x8000 ? d - 0x10000 : d;
+  }
+
+  has(seq) {
+    const slot = this.slots[seq % RTP_REORDER_WINDOW];
+    return !!slot && slot.seq === seq;
+  }
+
+  push(seq, timestamp, payload) {
+    if (this.next < 0) {
+      this.next = seq;
+      this.highest = seq;
+    }
+    const ahead = RtpReorderReceiver.diff(seq, this.next);
+    if (ahead < 0 || this.has(seq)) return; // late or duplicate
+    if (ahead >= RTP_REORDER_WINDOW) {
+      // Too far ahead (sender restarted or long outage): resynchronise
+      this.onLoss(ahead);
+      this.slots.fill(null);
+      this.next = seq;
+    }
+    this.slots[seq % RTP_REORDER_WINDOW] = { seq, timestamp, payload };
+    if (RtpReorderReceiver.diff(seq, this.highest) > 0 || this.highest < 0) this.highest = seq;
+    this.flush();
+  }
+
+  pushParity(baseSeq, parity) {
+    if (parity.length < 7 || this.next < 0) return;
+    const count = parity[0];
+    let missing = -1;
+    let lengthXor = parity.readUInt16BE(1);
+    let timestampXor = parity.readUInt32BE(3);
+    const data = Buffer.from(parity.subarray(7));
+    for (let i = 0; i < count; i++) {
+      const seq = (baseSeq + i) & 0xffff;
+      const slot = this.slots[seq % RTP_REORDER_WINDOW];
+      if (slot && slot.seq === seq) {
+        lengthXor ^= slot.payload.length;
+        timestampXor = (timestampXor ^ slot.timestamp) >>> 0;
+        for (let j = 0; j < slot.payload.length && j < data.length; j++) data[j] ^= slot.payload[j];
+      } else if (missing >= 0) {
+        return; // two losses in one group: parity cannot help
+      } else {
+        missing = seq;
+      }
+    }
+    if (missing < 0 || RtpReorderReceiver.diff(missing, this.next) < 0) return;
+    this.slots[missing % RTP_REORDER_WINDOW] = {
+      seq: missing,
+      timestamp: timestampXor,
+      payload: data.subarray(0, Math.min(lengthXor, data.length))
+    };
+    this.flush();
+  }
+
+  flush() {
+    for (;;) {
+      while (this.has(this.next)) {
+        const slot = this.slots[this.next % RTP_REORDER_WINDOW];
+        this.onPacket(slot.payload, slot.timestamp);
+        this.next = (this.next + 1) & 0xffff;
+      }
+      const waiting = RtpReorderReceiver.diff(this.highest, this.next);
+      if (waiting < this.reorderDepth) return;
+      // Give the missing packet(s) up: skip to the oldest one we have
+      let lost = 0;
+      while (!this.has(this.next) && RtpReorderReceiver.diff(this.highest, this.next) > 0) {
+        this.next = (this.next + 1) & 0xffff;
+        lost++;
+      }
+      if (lost > 0) this.onLoss(lost);
+    }
+  }
+}
+
+function ensureAudioUdpSocket() {
+  if (audioUdpSocket || !AUDIO_UDP_PORT) return audioUdpSocket;
+  const socket = dgram.createSocket('udp4');
+  socket.on('message', handleAudioUdpDatagram);
+  socket.on('error', (err) => {
+    console.error('[Audio] UDP socket error:', err.message);
+    try { socket.close(); } catch (e) {}
+    if (audioUdpSocket === socket) audioUdpSocket = null;
+  });
+  socket.bind(AUDIO_UDP_PORT, () => {
+    console.log(`[Audio] UDP transport listening on ${AUDIO_UDP_PORT}${AUDIO_UDP_LOSS ? ` (loss shim ${AUDIO_UDP_LOSS * 100}%)` : ''}`);
+  });
+  audioUdpSocket = socket;
+  setInterval(() => {
+    const now = Date.now();
+    for (const path of audioUdpPaths.values()) {
+      if (path.active && now - path.lastSeen > AUDIO_UDP_STALE_MS) {
+        path.active = false;
+        console.warn(`[Audio] UDP ${path.role} for ${path.serial} went quiet, back to WebSocket`);
+        try { path.ws.send(JSON.stringify({ type: 'udp-inactive' })); } catch (e) {}
+      }
+    }
+  }, 2000).unref();
+  return audioUdpSocket;
+}
+
+/** Offers the UDP path to a receiver or uplink-sender connection that asked for it. */
+function offerAudioUdp(serial, ws, role, fec) {
+  if (!ensureAudioUdpSocket()) return;
+  let token = 0;
+  do { token = crypto.randomBytes(4).readUInt32BE(0); } while (!token || audioUdpPaths.has(token));
+  const path = {
+    serial,
+    role,
+    ws,
+    token,
+    address: null,
+    port: 0,
+    active: false,
+    lastSeen: 0,
+    seq: crypto.randomBytes(2).readUInt16BE(0),
+    timestamp: 0,
+    fec: fec ? new RtpFecEncoder() : null,
+    receiver: null
+  };
+  if (role === 'uplink-sender') {
+    // Uplink datagrams are fed to the regular uplink relay as if they came over the socket
+    path.receiver = new RtpReorderReceiver(
+      (payload) => ws.emit('message', payload, true),
+      () => {},
+      fec ? RTP_FEC_GROUP + 1 : 2
+    );
+  }
+  audioUdpPaths.set(token, path);
+  ws.audioUdpPath = path;
+  ws.once('close', () => audioUdpPaths.delete(token));
+  try {
+    ws.send(JSON.stringify({ type: 'udp-offer', port: AUDIO_UDP_PORT, token, fec: !!fec }));
+  } catch (e) {}
+}
+
+/**
+ * { type: 'udp-fallback', token } from a headset whose UDP link stopped being acknowledged:
+ * the headset already listens on the WebSocket again, so move the stream back now instead
+ * of losing audio until AUDIO_UDP_STALE_MS. Returns true when handled.
+ */
+function handleAudioUdpFallback(ws, msg) {
+  if (!msg || msg.type !== 'udp-fallback') return false;
+  const path = ws.audioUdpPath;
+  if (!path || (msg.token !== undefined && Number(msg.token) !== path.token)) return true;
+  audioUdpPaths.delete(path.token);
+  if (path.active) {
+    path.active = false;
+    console.warn(`[Audio] UDP ${path.role} for ${path.serial} given up by headset, back to WebSocket`);
+  }
+  return true;
+}
+
+function handleAudioUdpDatagram(msg, rinfo) {
+  if (msg.length < RTP_HEADER_BYTES || (msg[0] & 0xc0) !== 0x80) return;
+  const path = audioUdpPaths.get(msg.readUInt32BE(8));
+  if (!path) return;
+  const payloadType = msg[1] & 0x7f;
+  const seq = msg.readUInt16BE(2);
+  const timestamp = msg.readUInt32BE(4);
+  const payload = msg.subarray(RTP_HEADER_BYTES);
+
+  if (payloadType === RTP_PT.CONTROL) {
+    if (payload[0] !== RTP_CONTROL.HELLO) return;
+    path.address = rinfo.address;
+    path.port = rinfo.port;
+    path.lastSeen = Date.now();
+    const ack = Buffer.alloc(RTP_HEADER_BYTES + 1);
+    writeRtpHeader(ack, RTP_PT.CONTROL, 0, 0, path.token);
+    ack[RTP_HEADER_BYTES] = RTP_CONTROL.ACK;
+    audioUdpSocket.send(ack, path.port, path.address);
+    if (!path.active) {
+      path.active = true;
+      console.log(`[Audio] UDP ${path.role} active for ${path.serial} (${rinfo.address}:${rinfo.port})`);
+      try { path.ws.send(JSON.stringify({ type: 'udp-active' })); } catch (e) {}
+    }
+    return;
+  }
+  if (!path.receiver || rinfo.address !== path.address) return;
+  path.lastSeen = Date.now();
+  if (payloadType === RTP_PT.FEC) {
+    path.receiver.pushParity(seq, payload);
+  } else {
+    path.receiver.push(seq, timestamp, Buffer.from(payload));
+  }
+}
+
+/**
+ * Sends one downlink packet over the receiver's UDP path. Returns false when the path is
+ * not (or no longer) active, in which case the caller sends it over the WebSocket.
+ */
+function sendAudioUdp(ws, data, format, frameMs) {
+  const path = ws.audioUdpPath;
+  if (!path || !path.active || !audioUdpSocket) return false;
+  const isOpus = format === 'opus';
+  const seq = path.seq;
+  const timestamp = path.timestamp;
+  path.seq = (path.seq + 1) & 0xffff;
+  // RTP clock: 48 kHz for Opus, the stream rate for pcm16
+  const payloadBytes = ws.audioFrameHeader ? data.length - AUDIO_FRAME_HEADER_BYTES : data.length;
+  path.timestamp = (path.timestamp + (isOpus ? 48 * (frameMs || 20) : payloadBytes / 2)) >>> 0;
+
+  const send = (payloadType, packetSeq, packetTimestamp, payload) => {
+    if (AUDIO_UDP_LOSS && Math.random() < AUDIO_UDP_LOSS) return;
+    const packet = Buffer.alloc(RTP_HEADER_BYTES + payload.length);
+    writeRtpHeader(packet, payloadType, packetSeq, packetTimestamp, path.token);
+    payload.copy(packet, RTP_HEADER_BYTES);
+    audioUdpSocket.send(packet, path.port, path.address);
+  };
+  send(isOpus ? RTP_PT.OPUS : RTP_PT.PCM16, seq, timestamp, data);
+  if (path.fec) {
+    const parity = path.fec.add(seq, timestamp, data);
+    if (parity) send(RTP_PT.FEC, parity.baseSeq, 0, parity.payload);
+  }
+  return true;
+}
+
 // ---------- WebSocket ----------
 appServer.on('upgrade', (req, res, head) => {
   console.log(`[Upgrade] Request for URL: ${req.url}`);
@@ -9775,7 +10505,7 @@ app.post('/api/adb/command', async (req, res) => {
 
 // Open audio receiver in Quest - supports both browser and background app
 app.post('/api/device/open-audio-receiver', async (req, res) => {
-  const { serial, serverUrl, useBackgroundApp, relay, relayBase, name, talkback, bidirectional, uplink, uplinkFormat, noBrowserFallback, noUiFallback } = req.body || {};
+  const { serial, serverUrl, useBackgroundApp, relay, relayBase, name, talkback, bidirectional, uplink, uplinkFormat, uplinkBitrate, frameMs, duplex, udp, udpFec, noBrowserFallback, noUiFallback } = req.body || {};
   let sessionCode = (req.body && req.body.sessionCode) ? String(req.body.sessionCode) : '';
   if (!serial) {
     return res.status(400).json({ ok: false, error: 'serial required' });
@@ -9896,6 +10626,22 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
     const uplinkFmt = collaborativeVoiceLocked
       ? 'pcm16'
       : String(uplinkFormat || (wantsTalkback ? 'pcm16' : 'webm')).toLowerCase();
+    // Optional Opus uplink bitrate (bits/s) forwarded to the native app as an int extra
+    const uplinkBitrateValue = Math.round(Number(uplinkBitrate));
+    const uplinkBitrateExtras = Number.isFinite(uplinkBitrateValue) && uplinkBitrateValue > 0
+      ? ['--ei', 'uplinkBitrate', String(uplinkBitrateValue)]
+      : [];
+    // Audio frame duration (10/20/40 ms) shared by the native downlink and uplink services
+    const frameMsValue = Number(frameMs);
+    const frameMsExtras = [10, 20, 40].includes(frameMsValue)
+      ? ['--ei', 'frameMs', String(frameMsValue)]
+      : [];
+    // Opt-in: downlink, uplink and TTS over one multiplexed /api/audio/stream socket
+    const duplexExtras = duplex === true ? ['--ez', 'duplex', 'true'] : [];
+    // Opt-in: LAN UDP/RTP audio with WebSocket fallback (udpFec adds XOR parity packets)
+    const udpExtras = udp === true
+      ? ['--ez', 'udp', 'true', '--ez', 'udpFec', udpFec === true ? 'true' : 'false']
+      : [];
     const disableBrowserFallback = collaborativeVoiceLocked
       ? true
       : (noBrowserFallback === true || noUiFallback === true);
@@ -9953,7 +10699,11 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
           '--ez', 'talkback', wantsTalkback ? 'true' : 'false',
           '--ez', 'bidirectional', wantsTalkback ? 'true' : 'false',
           '--ez', 'uplink', wantsUplink ? 'true' : 'false',
-          '--es', 'uplinkFormat', uplinkFmt
+          '--es', 'uplinkFormat', uplinkFmt,
+          ...uplinkBitrateExtras,
+          ...frameMsExtras,
+          ...duplexExtras,
+          ...udpExtras
         ]);
       } catch (e) {
         broadcastResult = { code: 1, stdout: '', stderr: e.message || String(e) };
@@ -9990,7 +10740,11 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
           '--ez', 'talkback', wantsTalkback ? 'true' : 'false',
           '--ez', 'bidirectional', wantsTalkback ? 'true' : 'false',
           '--ez', 'uplink', wantsUplink ? 'true' : 'false',
-          '--es', 'uplinkFormat', uplinkFmt
+          '--es', 'uplinkFormat', uplinkFmt,
+          ...uplinkBitrateExtras,
+          ...frameMsExtras,
+          ...duplexExtras,
+          ...udpExtras
         ]);
 
         // 2) explicit downlink service
@@ -10040,7 +10794,11 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
           '--ez', 'talkback', wantsTalkback ? 'true' : 'false',
           '--ez', 'bidirectional', wantsTalkback ? 'true' : 'false',
           '--ez', 'uplink', wantsUplink ? 'true' : 'false',
-          '--es', 'uplinkFormat', uplinkFmt
+          '--es', 'uplinkFormat', uplinkFmt,
+          ...uplinkBitrateExtras,
+          ...frameMsExtras,
+          ...duplexExtras,
+          ...udpExtras
         ]);
 
         // Validate services are actually running before claiming success.
@@ -10082,7 +10840,11 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
             '--ez', 'talkback', wantsTalkback ? 'true' : 'false',
             '--ez', 'bidirectional', wantsTalkback ? 'true' : 'false',
             '--ez', 'uplink', wantsUplink ? 'true' : 'false',
-            '--es', 'uplinkFormat', uplinkFmt
+            '--es', 'uplinkFormat', uplinkFmt,
+            ...uplinkBitrateExtras,
+            ...frameMsExtras,
+            ...duplexExtras,
+            ...udpExtras
           ]);
         } catch (e) {
           bootstrapResult = { code: 1, stdout: '', stderr: e.message || String(e) };
@@ -10151,7 +10913,11 @@ app.post('/api/device/open-audio-receiver', async (req, res) => {
           '--ez', 'talkback', wantsTalkback ? 'true' : 'false',
           '--ez', 'bidirectional', wantsTalkback ? 'true' : 'false',
           '--ez', 'uplink', wantsUplink ? 'true' : 'false',
-          '--es', 'uplinkFormat', uplinkFmt
+          '--es', 'uplinkFormat', uplinkFmt,
+          ...uplinkBitrateExtras,
+          ...frameMsExtras,
+          ...duplexExtras,
+          ...udpExtras
         ]);
       } catch (e) {
         appResult = { code: 1, stdout: '', stderr: e.message || String(e) };
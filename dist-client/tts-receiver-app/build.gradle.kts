@@ -79,6 +79,11 @@ android {
         kotlinCompilerExtensionVersion = "1.5.8"
     }
 
+    testOptions {
+        // JVM tests run the audio classes off-device; android.util.Log becomes a no-op
+        unitTests.isReturnDefaultValues = true
+    }
+
     packagingOptions {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -0,0 +1,56 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+
+/** Receives decoded 16-bit little-endian mono PCM. [data] is only valid during the call. */
+fun interface PcmSink {
+    fun onPcm(data: ByteBuffer, size: Int)
+}
+
+/**
+ * Turns one downlink packet into PCM16. Implementations may buffer internally and
+ * emit zero or several PCM blocks per packet.
+ */
+interface AudioDecoder {
+    val format: String
+    val outputSampleRate: Int
+    fun decode(packet: ByteBuffer, size: Int, sink: PcmSink)
+    fun release()
+}
+
+/** Raw pcm16 stream: the packet already is the PCM block. Pure JVM. */
+class PcmPassthroughDecoder(override val outputSampleRate: Int) : AudioDecoder {
+    override val format: String = AudioDecoders.FORMAT_PCM16
+
+    override fun decode(packet: ByteBuffer, size: Int, sink: PcmSink) {
+        if (size > 0) sink.onPcm(packet, size)
+    }
+
+    override fun release() {}
+}
+
+/** Format names and decoder selection. Pure JVM: the platform codec comes in through [create]. */
+object AudioDecoders {
+    const val FORMAT_PCM16 = "pcm16"
+    const val FORMAT_OPUS = "opus"
+    const val OPUS_SAMPLE_RATE = 48000
+
+    fun isOpusSupported(): Boolean = MediaCodecOpusDecoder.isSupported()
+
+    /**
+     * Creates the decoder for [format], or null when this device cannot decode it. Never
+     * substitutes passthrough for an encoded stream: Opus written to the track as PCM is
+     * loud noise. [frameMs] is the negotiated packet duration. [opusFactory] builds the
+     * platform decoder (null when unavailable).
+     */
+    fun create(
+        format: String,
+        pcmSampleRate: Int,
+        frameMs: Int = FrameDurations.DEFAULT_MS,
+        opusFactory: () -> AudioDecoder? = { MediaCodecOpusDecoder.createOrNull(frameMs) }
+    ): AudioDecoder? = when (format.trim().lowercase()) {
+        FORMAT_PCM16 -> PcmPassthroughDecoder(pcmSampleRate)
+        FORMAT_OPUS -> opusFactory()
+        else -> null
+    }
+}
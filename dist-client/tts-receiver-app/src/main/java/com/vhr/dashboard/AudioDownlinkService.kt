@@ -8,19 +8,22 @@ import android.content.Intent
 import android.media.AudioAttributes
 import android.media.AudioFormat
 import android.media.AudioManager
+import android.media.AudioTimestamp
 import android.media.AudioTrack
 import android.os.Build
 import android.os.IBinder
+import android.os.Process
 import android.util.Log
 import androidx.core.app.NotificationCompat
-import okhttp3.OkHttpClient
-import okhttp3.Request
 import okhttp3.Response
 import okhttp3.WebSocket
 import okhttp3.WebSocketListener
 import okio.ByteString
-import java.util.concurrent.TimeUnit
+import org.json.JSONObject
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.LockSupport
 
 class AudioDownlinkService : Service() {
 
@@ -32,14 +35,59 @@ class AudioDownlinkService : Service() {
         const val EXTRA_SERVER_URL = "serverUrl"
         const val EXTRA_SERIAL = "serial"
         const val EXTRA_SAMPLE_RATE = "sampleRate"
+        const val EXTRA_FORMAT = "format"
+        const val EXTRA_FRAME_MS = "frameMs"
+        const val EXTRA_DUPLEX = "duplex"
+        const val EXTRA_UDP = "udp"
+        const val EXTRA_UDP_FEC = "udpFec"
+        const val EXTRA_UDP_LOSS_PERCENT = "udpLossPercent"
         private const val NOTIF_CHANNEL_ID = "vhr_voice_downlink"
         private const val NOTIF_CHANNEL_NAME = "VHR Voice Playback"
         private const val NOTIF_ID = 2201
+        private const val STATS_LOG_INTERVAL_MS = 10_000L
+        private const val FRAME_POOL_CAPACITY_BYTES = 4096
+        private const val JITTER_CAPACITY_FRAMES = 64
+        private const val DRIFT_UPDATE_INTERVAL_MS = 500L
+        private const val MAX_DECODED_SAMPLES = 8192
+        private const val MAX_CONCEALED_FRAMES = 5
     }
 
     private var ws: WebSocket? = null
-    private var wsClient: OkHttpClient? = null
-    private var audioTrack: AudioTrack? = null
+    @Volatile private var rttProbe: java.util.concurrent.ScheduledFuture<*>? = null
+    @Volatile private var audioTrack: AudioTrack? = null
+    @Volatile private var jitterBuffer: JitterBuffer? = null
+    @Volatile private var framePool: PcmFramePool? = null
+    @Volatile private var decoder: AudioDecoder? = null
+    // Only touched from the WebSocket reader thread
+    private var stagingBytes = ByteArray(FRAME_POOL_CAPACITY_BYTES)
+    private var stagingBuffer: ByteBuffer = ByteBuffer.wrap(stagingBytes)
+    private var pcmSampleRate = 16000
+    @Volatile private var bytesPerMs = 32
+    // Decoded PCM is converted to the track rate here rather than in the HAL (reader thread only)
+    private var rateConverter: PolyphaseResampler? = null
+    private var convertedBuffer: ByteBuffer = ByteBuffer.allocateDirect(FRAME_POOL_CAPACITY_BYTES)
+        .order(ByteOrder.LITTLE_ENDIAN)
+    @Volatile private var frameMs = FrameDurations.DEFAULT_MS
+    // Decoded PCM is re-cut into exact frameMs frames; both only touched from the reader thread
+    private var frameBytes = FrameDurations.pcmBytes(16000, FrameDurations.DEFAULT_MS)
+    private var fillingFrame: PcmFrame? = null
+    @Volatile private var trackSampleRate = 16000
+    private val decodedSink = PcmSink { data, size -> onDecoded(data, size) }
+    private var playbackThread: Thread? = null
+    // Packets may come from the WebSocket reader or the UDP link thread; decoding is serialised
+    private val decodeLock = Any()
+    @Volatile private var udpLink: UdpAudioLink? = null
+    private var udpHost = ""
+    private var udpFec = false
+    private var udpLossPercent = 0
+    // Last whole frame at the track rate, faded out to conceal lost UDP packets
+    private val lastFrame = ByteArray(FRAME_POOL_CAPACITY_BYTES)
+    private var lastFrameSize = 0
+    private var lastUdpTimestamp = -1L
+    private var udpPacketTicks = 0L
+    // Frame header version confirmed by the server (0 = bare packets) and what it tells us
+    @Volatile private var frameHeaderVersion = 0
+    private val frameTracker = FrameSequenceTracker()
     private val isRunning = AtomicBoolean(false)
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
@@ -54,6 +102,15 @@ class AudioDownlinkService : Service() {
         val serverUrl = intent?.getStringExtra(EXTRA_SERVER_URL).orEmpty().trim()
         val serial = intent?.getStringExtra(EXTRA_SERIAL).orEmpty().trim()
         val sampleRate = intent?.getIntExtra(EXTRA_SAMPLE_RATE, 16000) ?: 16000
+        val format = intent?.getStringExtra(EXTRA_FORMAT)?.trim().orEmpty()
+        val frameMs = FrameDurations.normalize(
+            intent?.getIntExtra(EXTRA_FRAME_MS, FrameDurations.DEFAULT_MS) ?: FrameDurations.DEFAULT_MS
+        )
+
+        val duplex = intent?.getBooleanExtra(EXTRA_DUPLEX, false) ?: false
+        val udp = intent?.getBooleanExtra(EXTRA_UDP, false) ?: false
+        udpFec = intent?.getBooleanExtra(EXTRA_UDP_FEC, false) ?: false
+        udpLossPercent = (intent?.getIntExtra(EXTRA_UDP_LOSS_PERCENT, 0) ?: 0).coerceIn(0, 100)
 
         if (serverUrl.isBlank() || serial.isBlank()) {
             Log.w(TAG, "Missing serverUrl/serial; downlink not started")
@@ -62,7 +119,7 @@ class AudioDownlinkService : Service() {
 
         ensureForeground(serial)
 
-        startDownlink(serverUrl, serial, sampleRate)
+        startDownlink(serverUrl, serial, sampleRate, format, frameMs, duplex, udp)
         return START_STICKY
     }
 
@@ -94,40 +151,66 @@ class AudioDownlinkService : Service() {
         }
     }
 
-    private fun startDownlink(serverUrl: String, serial: String, sampleRate: Int) {
+    private fun startDownlink(
+        serverUrl: String,
+        serial: String,
+        sampleRate: Int,
+        format: String,
+        frameMs: Int,
+        duplex: Boolean,
+        udp: Boolean
+    ) {
         if (isRunning.get()) return
 
-        val wsUrl = buildWsUrl(serverUrl, serial)
+        // Ask for Opus when the headset can decode it; the sender announces what it actually sends
+        val wantsOpus = !format.equals(AudioDecoders.FORMAT_PCM16, ignoreCase = true)
+        val requestedFormat = if (wantsOpus && AudioDecoders.isOpusSupported()) {
+            AudioDecoders.FORMAT_OPUS
+        } else {
+            AudioDecoders.FORMAT_PCM16
+        }
+
+        // The track runs at the mixer's native rate; senders are told which rates we take
+        val trackRate = AudioRates.nativeOutputRate(this, sampleRate)
+        val wsUrl = buildWsUrl(serverUrl, serial, requestedFormat, frameMs, sampleRate, trackRate, udp)
         if (wsUrl.isBlank()) {
             Log.e(TAG, "Invalid ws url from serverUrl=$serverUrl")
             return
         }
 
-        initAudioTrack(sampleRate)
+        this.frameMs = frameMs
+        frameHeaderVersion = 0
+        udpHost = try { java.net.URI(wsUrl).host.orEmpty() } catch (_: Exception) { "" }
+        frameBytes = FrameDurations.pcmBytes(trackRate, frameMs)
+        fillingFrame = null
+        trackSampleRate = trackRate
+        initAudioTrack(trackRate)
+        pcmSampleRate = sampleRate
+        decoder = PcmPassthroughDecoder(sampleRate)
+        updateRateConverter(sampleRate)
+        bytesPerMs = trackRate * 2 / 1000
+        val pool = PcmFramePool(FRAME_POOL_CAPACITY_BYTES, JITTER_CAPACITY_FRAMES + 8)
+        framePool = pool
+        jitterBuffer = JitterBuffer(bytesPerMs, pool, capacityFrames = JITTER_CAPACITY_FRAMES)
 
         try {
-            wsClient = OkHttpClient.Builder()
-                .readTimeout(0, TimeUnit.MILLISECONDS)
-                .build()
-
-            val req = Request.Builder().url(wsUrl).build()
-            ws = wsClient?.newWebSocket(req, object : WebSocketListener() {
+            val listener = object : WebSocketListener() {
                 override fun onOpen(webSocket: WebSocket, response: Response) {
                     isRunning.set(true)
-                    Log.i(TAG, "Downlink WebSocket open: $wsUrl")
+                    Log.i(TAG, "Downlink WebSocket open: ${if (duplex) "duplex" else wsUrl}")
+                    TtsMessageLog.init(this@AudioDownlinkService)
+                    TtsMessageLog.appendSession("🔈 Audio PC → casque démarré ($serial)")
+                    rttProbe = AudioTransport.startRttProbe(webSocket)
                     try { audioTrack?.play() } catch (_: Exception) {}
+                    startPlaybackThread()
                 }
 
                 override fun onMessage(webSocket: WebSocket, bytes: ByteString) {
-                    playPcm(bytes.toByteArray())
+                    enqueuePacket(bytes)
                 }
 
                 override fun onMessage(webSocket: WebSocket, text: String) {
-                    if (text.contains("sender-connected")) {
-                        Log.i(TAG, "Downlink sender connected")
-                    } else if (text.contains("sender-disconnected")) {
-                        Log.i(TAG, "Downlink sender disconnected")
-                    }
+                    handleControlMessage(text)
                 }
 
                 override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
@@ -139,7 +222,21 @@ class AudioDownlinkService : Service() {
                     Log.i(TAG, "Downlink WebSocket closed: $code/$reason")
                     stopDownlink()
                 }
-            })
+            }
+            ws = if (duplex) {
+                // Same handshake parameters, carried by the attach message of the shared socket
+                val params = JSONObject()
+                    .put("format", requestedFormat)
+                    .put("frameMs", frameMs)
+                    .put("sampleRate", sampleRate)
+                    .put("rates", AudioRates.supportedParam())
+                    .put("nativeRate", trackRate)
+                    .put("hdr", AudioFrameHeader.VERSION)
+                if (udp) params.put("udp", "1").put("fec", if (udpFec) "1" else "0")
+                DuplexChannel.attach(this, serverUrl, serial, DuplexChannel.ROLE_RECEIVER, params, listener)
+            } else {
+                AudioTransport.newWebSocket(wsUrl, listener)
+            }
         } catch (e: Exception) {
             Log.e(TAG, "startDownlink error: ${e.message}")
             stopDownlink()
@@ -153,7 +250,10 @@ class AudioDownlinkService : Service() {
                 AudioFormat.CHANNEL_OUT_MONO,
                 AudioFormat.ENCODING_PCM_16BIT
             )
-            val bufferSize = maxOf(minBuffer, 4096)
+            // Round the track buffer up to whole frames so writes always complete in frame units
+            val trackFrameBytes = FrameDurations.pcmBytes(sampleRate, frameMs)
+            val wanted = maxOf(minBuffer, trackFrameBytes * 2)
+            val bufferSize = (wanted + trackFrameBytes - 1) / trackFrameBytes * trackFrameBytes
 
             audioTrack?.release()
             audioTrack = AudioTrack(
@@ -175,15 +275,380 @@ class AudioDownlinkService : Service() {
         }
     }
 
-    private fun playPcm(data: ByteArray) {
+    private fun startPlaybackThread() {
+        if (playbackThread?.isAlive == true) return
+        val thread = Thread({
+            try {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO)
+            } catch (_: Exception) {}
+
+            // Playback-thread state for drift compensation
+            val resampler = FractionalResampler(FRAME_POOL_CAPACITY_BYTES / 2)
+            val resampled = ByteBuffer.allocateDirect(resampler.maxOutputBytes(FRAME_POOL_CAPACITY_BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN)
+            val drift = DriftEstimator()
+            val timestamp = AudioTimestamp()
+            var countedBuffer: JitterBuffer? = null
+            var lastUnderruns = 0L
+            var lastDiscarded = 0L
+            var lastDriftUpdate = System.currentTimeMillis()
+
+            var lastStatsLog = System.currentTimeMillis()
+            while (isRunning.get()) {
+                val buffer = jitterBuffer ?: break
+                if (buffer !== countedBuffer) {
+                    // A new session's buffer counts from zero again
+                    countedBuffer = buffer
+                    lastUnderruns = 0L
+                    lastDiscarded = 0L
+                    drift.reset()
+                }
+                val frame = try {
+                    buffer.poll(100)
+                } catch (_: InterruptedException) {
+                    break
+                }
+                if (frame != null) {
+                    val bytes = resampler.process(frame.flip(), frame.size, resampled)
+                    framePool?.release(frame)
+                    playPcm(resampled, bytes)
+                }
+
+                val now = System.currentTimeMillis()
+                if (now - lastDriftUpdate >= DRIFT_UPDATE_INTERVAL_MS) {
+                    lastDriftUpdate = now
+                    val stats = buffer.stats()
+                    publishMetrics(stats, lastUnderruns, lastDiscarded)
+                    val starved = stats.underruns > lastUnderruns
+                    val skipped = stats.discardedFrames > lastDiscarded
+                    if (starved || skipped) {
+                        // Playback really ran dry or the buffer jumped ahead: the rates measured
+                        // so far no longer line up. Taking the last queued frame is not a stall.
+                        lastUnderruns = stats.underruns
+                        lastDiscarded = stats.discardedFrames
+                        drift.reset()
+                    } else {
+                        val hasTimestamp = try {
+                            audioTrack?.getTimestamp(timestamp) == true
+                        } catch (_: Exception) {
+                            false
+                        }
+                        resampler.setDriftPpm(
+                            drift.update(
+                                receivedSamples = stats.receivedBytes / 2,
+                                nowNanos = System.nanoTime(),
+                                trackFrames = if (hasTimestamp) timestamp.framePosition else -1L,
+                                trackNanos = timestamp.nanoTime,
+                                depthMs = (stats.depthFrames * frameMs).toDouble(),
+                                targetMs = (stats.targetFrames * frameMs).toDouble()
+                            )
+                        )
+                    }
+                }
+
+                if (now - lastStatsLog >= STATS_LOG_INTERVAL_MS) {
+                    lastStatsLog = now
+                    val stats = buffer.stats()
+                    val poolStats = framePool?.stats()
+                    Log.d(TAG, "Jitter buffer depth=${stats.depthFrames}/${stats.targetFrames} " +
+                        "jitter=${"%.1f".format(stats.jitterMs)}ms late=${stats.lateFrames} " +
+                        "discarded=${stats.discardedFrames} underruns=${stats.underruns} " +
+                        "poolAllocs=${poolStats?.allocations} poolFrames=${poolStats?.acquired} " +
+                        "drift=${"%.0f".format(drift.ppm)}ppm (clock=${"%.0f".format(drift.clockPpm)} " +
+                        "fill=${"%.0f".format(drift.fillPpm)})" +
+                        (if (frameHeaderVersion > 0) frameTracker.stats().let {
+                            " seqLost=${it.lost} reordered=${it.reordered} " +
+                                "e2e=${"%.0f".format(it.latencyMs)}ms (max ${"%.0f".format(it.maxLatencyMs)})"
+                        } else ""))
+                }
+            }
+        }, "vhr-downlink-playback")
+        thread.priority = Thread.MAX_PRIORITY
+        playbackThread = thread
+        thread.start()
+    }
+
+    /** Playback thread, every drift update: deltas since the last update plus current depths. */
+    private fun publishMetrics(stats: JitterBuffer.Stats, lastUnderruns: Long, lastDiscarded: Long) {
+        AudioMetrics.downlinkFramesDropped.add(stats.discardedFrames - lastDiscarded)
+        AudioMetrics.downlinkJitterUnderruns.add(stats.underruns - lastUnderruns)
+        AudioMetrics.jitterDepthMs.set((stats.depthFrames * frameMs).toLong())
+        AudioMetrics.jitterMs.set(stats.jitterMs)
+        try {
+            audioTrack?.let { AudioMetrics.trackUnderruns.set(it.underrunCount.toLong()) }
+        } catch (_: Exception) {}
+        if (frameHeaderVersion > 0) AudioMetrics.downlinkLatencyMs.set(frameTracker.latencyMs)
+    }
+
+    private fun handleControlMessage(text: String) {
+        val msg = try { JSONObject(text) } catch (_: Exception) { null } ?: return
+        if (msg.optString("type") == "pong") {
+            AudioTransport.onPong(msg)
+            return
+        }
+        if (msg.optString("type") == "udp-offer") {
+            // Outside the decode lock: replacing a link waits for its thread
+            startUdpLink(msg.optInt("port", 0), msg.optLong("token", 0L), msg.optBoolean("fec", false))
+            return
+        }
+        synchronized(decodeLock) { handleControl(msg) }
+    }
+
+    private fun handleControl(msg: JSONObject) {
+        when (msg.optString("type")) {
+            "sender-connected" -> {
+                Log.i(TAG, "Downlink sender connected (frameMs=${msg.optInt("frameMs", 0)})")
+                val format = msg.optString("format")
+                if (format.isNotBlank()) switchFormat(format, msg.optInt("sampleRate", 0))
+            }
+            "sender-format" -> switchFormat(msg.optString("format"), msg.optInt("sampleRate", 0))
+            "sender-disconnected" -> Log.i(TAG, "Downlink sender disconnected")
+            "frame-header" -> {
+                frameHeaderVersion = msg.optInt("version", 0)
+                Log.i(TAG, "Downlink frame header v$frameHeaderVersion")
+            }
+            "udp-active" -> Log.i(TAG, "Downlink moved to UDP")
+            "udp-inactive" -> Log.w(TAG, "Downlink back on WebSocket")
+        }
+    }
+
+    private fun startUdpLink(port: Int, token: Long, fec: Boolean) {
+        udpLink?.stop()
+        udpLink = null
+        if (port <= 0 || token == 0L || udpHost.isBlank()) return
+        lastUdpTimestamp = -1L
+        udpPacketTicks = 0L
+        val link = UdpAudioLink(udpHost, port, token, fec, udpLossPercent, object : UdpAudioLink.Listener {
+            override fun onActive() {}
+
+            override fun onUnavailable() {
+                Log.w(TAG, "UDP unavailable, downlink stays on WebSocket")
+                udpLink?.let { ws?.send(it.fallbackMessage()) }
+            }
+
+            override fun onPacket(data: ByteArray, size: Int, timestamp: Long) {
+                synchronized(decodeLock) {
+                    if (lastUdpTimestamp >= 0) {
+                        val ticks = (timestamp - lastUdpTimestamp) and 0xffffffffL
+                        if (ticks in 1..96_000) udpPacketTicks = ticks
+                    }
+                    lastUdpTimestamp = timestamp
+                    decodePacket(data, size)
+                }
+            }
+
+            override fun onLoss(packets: Int) {
+                synchronized(decodeLock) { concealLoss(packets) }
+            }
+        })
+        udpLink = link
+        link.start()
+    }
+
+    /** Runs on the reader thread. [sampleRate] is the sender's pcm16 rate, 0 when not announced. */
+    private fun switchFormat(format: String, sampleRate: Int) {
+        val current = decoder
+        val normalized = format.trim().lowercase()
+        val pcmRate = if (sampleRate in 8000..96000) sampleRate else pcmSampleRate
+        if (normalized.isBlank()) return
+        if (current?.format == normalized &&
+            (normalized != AudioDecoders.FORMAT_PCM16 || current.outputSampleRate == pcmRate)
+        ) return
+        if (normalized != AudioDecoders.FORMAT_OPUS && normalized != AudioDecoders.FORMAT_PCM16) {
+            Log.w(TAG, "Unsupported downlink format=$format, keeping ${current?.format}")
+            return
+        }
+
+        pcmSampleRate = pcmRate
+        val next = AudioDecoders.create(normalized, pcmRate, frameMs)
+        decoder = next
+        try { current?.release() } catch (_: Exception) {}
+
+        fillingFrame?.let { framePool?.release(it) }
+        fillingFrame = null
+        jitterBuffer?.reset(bytesPerMs)
+        if (next == null) {
+            // Never play an encoded stream as PCM: stay silent until the sender moves to pcm16
+            Log.e(TAG, "No decoder for format=$normalized on this device, downlink muted")
+            return
+        }
+        updateRateConverter(next.outputSampleRate)
+        Log.i(TAG, "Downlink format=${next.format} (${next.outputSampleRate} Hz -> track $trackSampleRate Hz)")
+    }
+
+    private fun updateRateConverter(decodedRate: Int) {
+        rateConverter = if (decodedRate == trackSampleRate) {
+            null
+        } else {
+            PolyphaseResampler(decodedRate, trackSampleRate, maxInputSamples = MAX_DECODED_SAMPLES)
+        }
+    }
+
+    private fun onDecoded(data: ByteBuffer, size: Int) {
+        var converter = rateConverter
+        val decodedRate = decoder?.outputSampleRate ?: return
+        if ((converter?.inputRate ?: trackSampleRate) != decodedRate) {
+            // The decoder changed its output rate mid-stream
+            updateRateConverter(decodedRate)
+            converter = rateConverter
+        }
+        if (converter == null) {
+            offerPcm(data, size)
+            return
+        }
+
+        val needed = converter.maxOutputBytes(size)
+        if (convertedBuffer.capacity() < needed) {
+            convertedBuffer = ByteBuffer.allocateDirect(needed).order(ByteOrder.LITTLE_ENDIAN)
+            framePool?.recordAllocation(needed)
+        }
+        val bytes = converter.process(data, size, convertedBuffer)
+        convertedBuffer.clear()
+        convertedBuffer.limit(bytes)
+        offerPcm(convertedBuffer, bytes)
+    }
+
+    private fun enqueuePacket(bytes: ByteString) {
+        synchronized(decodeLock) {
+            val size = bytes.size
+            if (size == 0 || !ensureStaging(size)) return
+            AudioMetrics.downlinkBytesIn.add(size.toLong())
+            bytes.copyInto(0, stagingBytes, 0, size)
+            decodeStaged(size)
+        }
+    }
+
+    /** UDP counterpart of [enqueuePacket]; called with [decodeLock] held. */
+    private fun decodePacket(data: ByteArray, size: Int) {
+        if (size == 0 || !ensureStaging(size)) return
+        AudioMetrics.downlinkBytesIn.add(size.toLong())
+        System.arraycopy(data, 0, stagingBytes, 0, size)
+        decodeStaged(size)
+    }
+
+    private fun ensureStaging(size: Int): Boolean {
+        val pool = framePool ?: return false
+        if (stagingBytes.size < size) {
+            stagingBytes = ByteArray(size)
+            stagingBuffer = ByteBuffer.wrap(stagingBytes)
+            pool.recordAllocation(size)
+        }
+        return true
+    }
+
+    private fun decodeStaged(size: Int) {
+        val currentDecoder = decoder ?: return
+        var offset = 0
+        if (frameHeaderVersion >= AudioFrameHeader.VERSION && AudioFrameHeader.isPresent(stagingBytes, 0, size)) {
+            frameTracker.onFrame(
+                AudioFrameHeader.seq(stagingBytes, 0),
+                AudioFrameHeader.captureMicros(stagingBytes, 0),
+                AudioFrameHeader.flags(stagingBytes, 0)
+            )
+            offset = AudioFrameHeader.BYTES
+        }
+        if (size <= offset) return
+        stagingBuffer.clear()
+        stagingBuffer.limit(size)
+        stagingBuffer.position(offset)
+        currentDecoder.decode(stagingBuffer, size - offset, decodedSink)
+    }
+
+    /**
+     * Packet loss concealment for the UDP path: replays the last frame with a decaying gain
+     * for up to [MAX_CONCEALED_FRAMES], then leaves the rest of the gap to the jitter buffer.
+     */
+    private fun concealLoss(packets: Int) {
+        val pool = framePool ?: return
+        val buffer = jitterBuffer ?: return
+        if (lastFrameSize != frameBytes) return
+        val clockRate = if (decoder?.format == AudioDecoders.FORMAT_OPUS) 48000 else pcmSampleRate
+        val packetMs = if (udpPacketTicks > 0) (udpPacketTicks * 1000 / clockRate).toInt() else frameMs
+        val frames = ((packets * packetMs + frameMs - 1) / frameMs).coerceIn(1, MAX_CONCEALED_FRAMES)
+
+        var gain = 0.7f
+        for (i in 0 until frames) {
+            val frame = pool.acquire(frameBytes)
+            val out = frame.buffer
+            out.clear()
+            var j = 0
+            while (j + 1 < lastFrameSize) {
+                val sample = (lastFrame[j].toInt() and 0xff) or (lastFrame[j + 1].toInt() shl 8)
+                val faded = (sample * gain).toInt()
+                out.put(j, faded.toByte())
+                out.put(j + 1, (faded shr 8).toByte())
+                j += 2
+            }
+            frame.size = lastFrameSize
+            frame.arrivalNanos = System.nanoTime()
+            buffer.offer(frame)
+            gain *= 0.5f
+        }
+    }
+
+    /**
+     * Re-cuts decoded PCM into frames of exactly [frameMs], whatever the packet size was,
+     * so the jitter buffer and the track are always fed whole frames.
+     */
+    private fun offerPcm(data: ByteBuffer, size: Int) {
+        val pool = framePool ?: return
+        val buffer = jitterBuffer ?: return
+        // One clock read per packet. Frames cut from it are stamped back from that instant by
+        // the audio that follows them in the packet, so the jitter estimate sees the packet
+        // cadence rather than several frames "arriving" at once
+        val arrivalNanos = System.nanoTime()
+        val nanosPerByte = 1_000_000.0 / bytesPerMs.coerceAtLeast(1)
+
+        var remaining = size
+        while (remaining > 0) {
+            val frame = fillingFrame ?: pool.acquire(frameBytes).also {
+                it.size = 0
+                fillingFrame = it
+            }
+            val chunk = minOf(remaining, frameBytes - frame.size)
+            val limit = data.limit()
+            data.limit(data.position() + chunk)
+            frame.buffer.clear()
+            frame.buffer.position(frame.size)
+            frame.buffer.put(data)
+            data.limit(limit)
+            frame.size += chunk
+            remaining -= chunk
+
+            if (frame.size >= frameBytes) {
+                fillingFrame = null
+                if (udpLink != null) {
+                    frame.buffer.position(0)
+                    frame.buffer.get(lastFrame, 0, frame.size)
+                    lastFrameSize = frame.size
+                }
+                frame.arrivalNanos = arrivalNanos - (remaining * nanosPerByte).toLong()
+                buffer.offer(frame)
+            }
+        }
+    }
+
+    private fun playPcm(data: ByteBuffer, size: Int) {
         try {
-            if (data.isEmpty()) return
             val track = audioTrack ?: return
             if (track.state != AudioTrack.STATE_INITIALIZED) return
             if (track.playState != AudioTrack.PLAYSTATE_PLAYING) {
                 track.play()
             }
-            track.write(data, 0, data.size)
+            data.clear()
+            data.limit(size)
+            while (data.hasRemaining() && isRunning.get()) {
+                val written = track.write(data, data.remaining(), AudioTrack.WRITE_NON_BLOCKING)
+                if (written < 0) {
+                    Log.w(TAG, "AudioTrack write error=$written")
+                    return
+                }
+                if (data.hasRemaining()) {
+                    // Track buffer full: wait roughly half of what is left to play
+                    val waitMs = (data.remaining() / bytesPerMs / 2).coerceIn(1, 20)
+                    LockSupport.parkNanos(waitMs * 1_000_000L)
+                }
+            }
         } catch (e: Exception) {
             Log.e(TAG, "playPcm error: ${e.message}")
         }
@@ -191,13 +656,35 @@ class AudioDownlinkService : Service() {
 
     private fun stopDownlink() {
         isRunning.set(false)
+        if (ws != null) TtsMessageLog.appendSession("🔈 Audio PC → casque arrêté")
+        rttProbe?.cancel(false)
+        rttProbe = null
 
+        // Only this socket goes away; the shared client stays warm for the next session
         try { ws?.close(1000, "stop") } catch (_: Exception) {}
         ws = null
-
-        try { wsClient?.dispatcher?.executorService?.shutdownNow() } catch (_: Exception) {}
-        try { wsClient?.connectionPool?.evictAll() } catch (_: Exception) {}
-        wsClient = null
+        udpLink?.stop()
+        udpLink = null
+
+        val thread = playbackThread
+        playbackThread = null
+        if (thread != null && thread !== Thread.currentThread()) {
+            thread.interrupt()
+            try { thread.join(500) } catch (_: InterruptedException) {}
+        }
+        // The WebSocket reader may still be inside decodeStaged until the socket is gone
+        synchronized(decodeLock) {
+            fillingFrame = null
+            jitterBuffer?.clear()
+            jitterBuffer = null
+            framePool?.clear()
+            framePool = null
+            try { decoder?.release() } catch (_: Exception) {}
+            decoder = null
+            rateConverter = null
+            lastFrameSize = 0
+            lastUdpTimestamp = -1L
+        }
 
         try { audioTrack?.pause() } catch (_: Exception) {}
         try { audioTrack?.flush() } catch (_: Exception) {}
@@ -205,16 +692,22 @@ class AudioDownlinkService : Service() {
         audioTrack = null
     }
 
-    private fun buildWsUrl(serverUrl: String, serial: String): String {
+    private fun buildWsUrl(
+        serverUrl: String,
+        serial: String,
+        format: String,
+        frameMs: Int,
+        sampleRate: Int,
+        nativeRate: Int,
+        udp: Boolean
+    ): String {
         return try {
-            val trimmed = serverUrl.trim().removeSuffix("/")
-            val wsBase = when {
-                trimmed.startsWith("https://", ignoreCase = true) -> "wss://${trimmed.removePrefix("https://")}"
-                trimmed.startsWith("http://", ignoreCase = true) -> "ws://${trimmed.removePrefix("http://")}"
-                trimmed.startsWith("wss://", ignoreCase = true) || trimmed.startsWith("ws://", ignoreCase = true) -> trimmed
-                else -> "ws://$trimmed"
-            }
-            "$wsBase/api/audio/stream?serial=$serial&mode=receiver&format=pcm16"
+            val wsBase = AudioTransport.wsBase(serverUrl)
+            if (wsBase.isBlank()) return ""
+            "$wsBase/api/audio/stream?serial=$serial&mode=receiver&format=$format&frameMs=$frameMs" +
+                "&sampleRate=$sampleRate&rates=${AudioRates.supportedParam()}&nativeRate=$nativeRate" +
+                "&hdr=${AudioFrameHeader.VERSION}" +
+                (if (udp) "&udp=1&fec=${if (udpFec) 1 else 0}" else "")
         } catch (_: Exception) {
             ""
         }
@@ -0,0 +1,182 @@
+package com.vhr.voice
+
+import android.media.AudioFormat
+import android.media.MediaCodec
+import android.media.MediaCodecList
+import android.media.MediaFormat
+import android.util.Log
+import java.nio.ByteBuffer
+
+/** Receives one encoded packet. [data] is only valid during the call. */
+fun interface PacketSink {
+    fun onPacket(data: ByteBuffer, size: Int)
+}
+
+/**
+ * Turns captured PCM16 frames into uplink packets. Implementations may buffer
+ * internally and emit zero or several packets per input frame.
+ */
+interface AudioEncoder {
+    val format: String
+    val bitrate: Int
+    fun encode(pcm: ByteBuffer, size: Int, sink: PacketSink)
+
+    /** Returns true once the encoder really runs at [bitsPerSecond]; [bitrate] is unchanged otherwise. */
+    fun setBitrate(bitsPerSecond: Int): Boolean
+    fun release()
+}
+
+/** Raw pcm16 uplink: every captured frame is sent as is. Pure JVM. */
+class PcmPassthroughEncoder(sampleRate: Int) : AudioEncoder {
+    override val format: String = AudioDecoders.FORMAT_PCM16
+    override val bitrate: Int = sampleRate * 16
+
+    override fun encode(pcm: ByteBuffer, size: Int, sink: PacketSink) {
+        if (size > 0) sink.onPacket(pcm, size)
+    }
+
+    override fun setBitrate(bitsPerSecond: Int): Boolean = false
+
+    override fun release() {}
+}
+
+/**
+ * Raw Opus packets from the platform encoder. The codec emits one packet per 20 ms
+ * of input; the codec-config buffer (OpusHead) is not sent since receivers only
+ * need the stream parameters announced at connection time.
+ */
+class MediaCodecOpusEncoder(
+    sampleRate: Int,
+    initialBitrate: Int,
+    channels: Int = 1
+) : AudioEncoder {
+
+    companion object {
+        private const val TAG = "OpusEncoder"
+        private const val DEQUEUE_TIMEOUT_US = 2_000L
+    }
+
+    override val format: String = AudioDecoders.FORMAT_OPUS
+    override var bitrate: Int = initialBitrate
+        private set
+
+    private val codec: MediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS)
+    private val bufferInfo = MediaCodec.BufferInfo()
+    private val bytesPerSecond = sampleRate * 2 * channels
+    private var presentationUs = 0L
+
+    private val mediaFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, sampleRate, channels).apply {
+        setInteger(MediaFormat.KEY_PCM_ENCODING, AudioFormat.ENCODING_PCM_16BIT)
+    }
+
+    init {
+        start(initialBitrate)
+    }
+
+    private fun start(bitsPerSecond: Int) {
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitsPerSecond)
+        codec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        codec.start()
+    }
+
+    override fun encode(pcm: ByteBuffer, size: Int, sink: PacketSink) {
+        try {
+            var offset = 0
+            while (offset < size) {
+                val inIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US)
+                if (inIndex < 0) {
+                    Log.w(TAG, "No input buffer available, ${size - offset} bytes dropped")
+                    break
+                }
+                val input = codec.getInputBuffer(inIndex) ?: break
+                input.clear()
+                val chunk = minOf(input.remaining(), size - offset)
+                val limit = pcm.limit()
+                pcm.limit(pcm.position() + chunk)
+                input.put(pcm)
+                pcm.limit(limit)
+                codec.queueInputBuffer(inIndex, 0, chunk, presentationUs, 0)
+                presentationUs += chunk * 1_000_000L / bytesPerSecond
+                offset += chunk
+                drainOutput(sink)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "encode error: ${e.message}")
+        }
+    }
+
+    private fun drainOutput(sink: PacketSink) {
+        while (true) {
+            val outIndex = codec.dequeueOutputBuffer(bufferInfo, 0)
+            if (outIndex < 0) return
+            val output = codec.getOutputBuffer(outIndex)
+            val isConfig = (bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0
+            if (output != null && bufferInfo.size > 0 && !isConfig) {
+                output.position(bufferInfo.offset)
+                output.limit(bufferInfo.offset + bufferInfo.size)
+                sink.onPacket(output, bufferInfo.size)
+            }
+            codec.releaseOutputBuffer(outIndex, false)
+        }
+    }
+
+    /**
+     * Audio encoders have no on-the-fly bitrate parameter (PARAMETER_KEY_VIDEO_BITRATE is
+     * video only), so the codec is stopped and configured again with the new KEY_BIT_RATE.
+     * The few milliseconds still inside the codec are lost, which is acceptable on the
+     * congestion path this is called from. Must run on the thread that calls [encode].
+     */
+    override fun setBitrate(bitsPerSecond: Int): Boolean {
+        if (bitsPerSecond == bitrate) return true
+        return try {
+            codec.stop()
+            start(bitsPerSecond)
+            bitrate = bitsPerSecond
+            true
+        } catch (e: Exception) {
+            Log.w(TAG, "setBitrate($bitsPerSecond) error: ${e.message}")
+            // Back to the previous rate so capture keeps going
+            try {
+                codec.reset()
+                start(bitrate)
+            } catch (restore: Exception) {
+                Log.e(TAG, "encoder restart failed: ${restore.message}")
+            }
+            false
+        }
+    }
+
+    override fun release() {
+        try { codec.stop() } catch (_: Exception) {}
+        try { codec.release() } catch (_: Exception) {}
+    }
+}
+
+object AudioEncoders {
+    const val DEFAULT_OPUS_BITRATE = 24_000
+    const val MIN_OPUS_BITRATE = 6_000
+    const val MAX_OPUS_BITRATE = 128_000
+
+    private val opusSupported: Boolean by lazy {
+        try {
+            val probe = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS, 16000, 1)
+            MediaCodecList(MediaCodecList.REGULAR_CODECS).findEncoderForFormat(probe) != null
+        } catch (_: Exception) {
+            false
+        }
+    }
+
+    fun isOpusSupported(): Boolean = opusSupported
+
+    /** Creates the encoder for [format], falling back to pcm16 when Opus is unavailable. */
+    fun create(format: String, sampleRate: Int, bitrate: Int): AudioEncoder {
+        if (format.equals(AudioDecoders.FORMAT_OPUS, ignoreCase = true) && opusSupported) {
+            try {
+                return MediaCodecOpusEncoder(sampleRate, bitrate.coerceIn(MIN_OPUS_BITRATE, MAX_OPUS_BITRATE))
+            } catch (e: Exception) {
+                Log.e("AudioEncoders", "Opus encoder unavailable: ${e.message}")
+            }
+        }
+        return PcmPassthroughEncoder(sampleRate)
+    }
+}
@@ -0,0 +1,120 @@
+package com.vhr.voice
+
+/**
+ * Versioned header in front of every raw pcm16/opus packet on /api/audio/stream, once the
+ * connection negotiated it (`hdr=1` in the URL, answered by `{type:'frame-header', version}`).
+ * Connections that do not negotiate it keep exchanging bare packets.
+ *
+ * v1, 16 bytes, big-endian:
+ * `magic 'V' | version | flags | codec id << 4 | frame-size id | sequence u32 | capture time µs u64`
+ *
+ * The capture time is the sender's wall clock, so receivers can measure end-to-end latency
+ * (devices are NTP-synced). Must stay in sync with server.js and vhr-audio-stream.js.
+ */
+object AudioFrameHeader {
+    const val VERSION = 1
+    const val BYTES = 16
+    private const val MAGIC = 0x56
+
+    /** First packet after a start, a format change or a DTX gap: sequence restarts are expected. */
+    const val FLAG_DISCONTINUITY = 0x01
+    /** Sequence and capture time were added by the server for a sender without headers. */
+    const val FLAG_SERVER_STAMPED = 0x02
+
+    const val CODEC_UNKNOWN = 0
+    const val CODEC_PCM16 = 1
+    const val CODEC_OPUS = 2
+
+    fun codecId(format: String): Int = when (format) {
+        AudioDecoders.FORMAT_PCM16 -> CODEC_PCM16
+        AudioDecoders.FORMAT_OPUS -> CODEC_OPUS
+        else -> CODEC_UNKNOWN
+    }
+
+    fun frameSizeId(frameMs: Int): Int = when (frameMs) {
+        10 -> 1
+        20 -> 2
+        40 -> 3
+        else -> 0
+    }
+
+    /** Current wall clock in microseconds, the unit of the capture timestamp. */
+    fun nowMicros(): Long = System.currentTimeMillis() * 1000L
+
+    fun write(out: ByteArray, offset: Int, flags: Int, codec: Int, frameMs: Int, seq: Long, captureUs: Long) {
+        out[offset] = MAGIC.toByte()
+        out[offset + 1] = VERSION.toByte()
+        out[offset + 2] = flags.toByte()
+        out[offset + 3] = ((codec shl 4) or frameSizeId(frameMs)).toByte()
+        Rtp.writeU32(out, offset + 4, seq and 0xffffffffL)
+        Rtp.writeU32(out, offset + 8, captureUs ushr 32)
+        Rtp.writeU32(out, offset + 12, captureUs and 0xffffffffL)
+    }
+
+    fun isPresent(data: ByteArray, offset: Int, size: Int): Boolean =
+        size >= BYTES && data[offset].toInt() == MAGIC && data[offset + 1].toInt() == VERSION
+
+    fun flags(data: ByteArray, offset: Int): Int = data[offset + 2].toInt() and 0xff
+    fun seq(data: ByteArray, offset: Int): Long = Rtp.readU32(data, offset + 4)
+    fun captureMicros(data: ByteArray, offset: Int): Long =
+        (Rtp.readU32(data, offset + 8) shl 32) or Rtp.readU32(data, offset + 12)
+}
+
+/**
+ * Loss, reordering and end-to-end latency seen through [AudioFrameHeader] sequence numbers
+ * and capture times. One writer thread at a time; [stats] may be read from anywhere.
+ */
+class FrameSequenceTracker {
+
+    data class Stats(
+        val received: Long,
+        val lost: Long,
+        val reordered: Long,
+        val latencyMs: Double,
+        val maxLatencyMs: Double
+    )
+
+    private var expected = -1L
+    @Volatile private var received = 0L
+    @Volatile private var lost = 0L
+    @Volatile private var reordered = 0L
+    /** Smoothed end-to-end latency, 0 until a frame with a capture time arrived. */
+    @Volatile var latencyMs = 0.0
+        private set
+    @Volatile private var maxLatencyMs = 0.0
+
+    fun onFrame(seq: Long, captureUs: Long, flags: Int) {
+        received++
+        val latency = (AudioFrameHeader.nowMicros() - captureUs) / 1000.0
+        if (captureUs > 0 && latency > -1000.0 && latency < 60_000.0) {
+            latencyMs = if (latencyMs == 0.0) latency else latencyMs * 0.9 + latency * 0.1
+            if (latency > maxLatencyMs) maxLatencyMs = latency
+        }
+
+        if (expected < 0 || flags and AudioFrameHeader.FLAG_DISCONTINUITY != 0) {
+            expected = (seq + 1) and 0xffffffffL
+            return
+        }
+        val ahead = ((seq - expected) and 0xffffffffL).let { if (it >= 0x80000000L) it - 0x100000000L else it }
+        when {
+            ahead == 0L -> expected = (seq + 1) and 0xffffffffL
+            ahead in 1..1000 -> {
+                lost += ahead
+                expected = (seq + 1) and 0xffffffffL
+            }
+            ahead in -1000..-1 -> {
+                // Counted as lost when its successor arrived; it was only late
+                reordered++
+                if (lost > 0) lost--
+            }
+            else -> expected = (seq + 1) and 0xffffffffL // sender restarted without flagging it
+        }
+    }
+
+    /** Snapshot; the max latency restarts from the next frame. */
+    fun stats(): Stats {
+        val snapshot = Stats(received, lost, reordered, latencyMs, maxLatencyMs)
+        maxLatencyMs = 0.0
+        return snapshot
+    }
+}
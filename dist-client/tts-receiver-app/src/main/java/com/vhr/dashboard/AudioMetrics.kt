@@ -0,0 +1,173 @@
+package com.vhr.voice
+
+import androidx.compose.runtime.Immutable
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Process-wide audio health figures, written by the audio, network and TTS threads and read
+ * by the status screen a few times per second. Every update is a single atomic operation on
+ * preallocated storage: no lock, no allocation, safe from the playback and capture loops.
+ */
+object AudioMetrics {
+
+    /** Monotonic count since process start; negative deltas are ignored. */
+    class Counter {
+        private val value = AtomicLong()
+        fun add(delta: Long) {
+            if (delta > 0L) value.addAndGet(delta)
+        }
+        fun increment() {
+            value.incrementAndGet()
+        }
+        fun get(): Long = value.get()
+    }
+
+    /** Last value set; NaN until the first one. */
+    class Gauge {
+        @Volatile private var value = Double.NaN
+        fun set(v: Double) {
+            value = v
+        }
+        fun set(v: Long) {
+            value = v.toDouble()
+        }
+        fun get(): Double = value
+    }
+
+    /**
+     * Millisecond distribution in fixed buckets ([BOUNDS_MS] upper bounds plus overflow).
+     * Readers take percentiles over the difference between two [copyCounts] calls.
+     */
+    class Histogram {
+        private val counts = AtomicLongArray(BOUNDS_MS.size + 1)
+        private val max = AtomicLong()
+
+        fun record(ms: Long) {
+            val v = ms.coerceAtLeast(0L)
+            var bucket = 0
+            while (bucket < BOUNDS_MS.size && v > BOUNDS_MS[bucket]) bucket++
+            counts.incrementAndGet(bucket)
+            var current = max.get()
+            while (v > current && !max.compareAndSet(current, v)) current = max.get()
+        }
+
+        fun copyCounts(into: LongArray) {
+            for (i in into.indices) into[i] = counts.get(i)
+        }
+
+        fun max(): Long = max.get()
+    }
+
+    val BOUNDS_MS = longArrayOf(
+        1, 2, 5, 10, 20, 30, 40, 50, 75, 100, 150, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000
+    )
+
+    // PC → headset
+    val downlinkBytesIn = Counter()
+    val downlinkFramesDropped = Counter()
+    val downlinkJitterUnderruns = Counter()
+    val trackUnderruns = Gauge()
+    val jitterDepthMs = Gauge()
+    val jitterMs = Gauge()
+    val downlinkLatencyMs = Gauge()
+
+    // Headset → PC
+    val uplinkBytesOut = Counter()
+    val uplinkPacketsDropped = Counter()
+    val captureLevelDb = Gauge()
+
+    // Shared
+    val rttMs = Histogram()
+    val ttsLatencyMs = Histogram()
+}
+
+/** One reading of [AudioMetrics] for the status screen; rates and percentiles cover the last interval. */
+@Immutable
+data class AudioHealth(
+    val bytesInPerSec: Long = 0,
+    val bytesOutPerSec: Long = 0,
+    val framesDropped: Long = 0,
+    val jitterUnderruns: Long = 0,
+    val uplinkDropped: Long = 0,
+    val trackUnderruns: Double = Double.NaN,
+    val jitterDepthMs: Double = Double.NaN,
+    val jitterMs: Double = Double.NaN,
+    val downlinkLatencyMs: Double = Double.NaN,
+    val captureLevelDb: Double = Double.NaN,
+    val rttP50Ms: Long = -1,
+    val rttP95Ms: Long = -1,
+    val ttsP50Ms: Long = -1,
+    val ttsP95Ms: Long = -1
+)
+
+/**
+ * Turns [AudioMetrics] into [AudioHealth] readings. Keeps the previous counters so each
+ * reading reports rates, and a sliding window of histogram counts so percentiles follow
+ * the last [windowSamples] readings rather than the whole process life. UI thread only.
+ */
+class AudioHealthSampler(private val windowSamples: Int = 20) {
+
+    private var lastNanos = 0L
+    private var lastBytesIn = 0L
+    private var lastBytesOut = 0L
+    private val rttWindow = HistogramWindow(AudioMetrics.rttMs)
+    private val ttsWindow = HistogramWindow(AudioMetrics.ttsLatencyMs)
+
+    private inner class HistogramWindow(private val histogram: AudioMetrics.Histogram) {
+        private val history = ArrayDeque<LongArray>()
+
+        /** p50 and p95 over the window, -1 when nothing was recorded in it. */
+        fun percentiles(): Pair<Long, Long> {
+            val now = LongArray(AudioMetrics.BOUNDS_MS.size + 1)
+            histogram.copyCounts(now)
+            history.addLast(now)
+            if (history.size > windowSamples + 1) history.removeFirst()
+            val oldest = history.first()
+            val window = LongArray(now.size) { now[it] - if (oldest === now) 0L else oldest[it] }
+            return percentile(window, 0.50) to percentile(window, 0.95)
+        }
+
+        private fun percentile(counts: LongArray, p: Double): Long {
+            val total = counts.sum()
+            if (total == 0L) return -1
+            val rank = (total * p).toLong().coerceAtLeast(1)
+            var seen = 0L
+            for (i in counts.indices) {
+                seen += counts[i]
+                if (seen >= rank) return if (i < AudioMetrics.BOUNDS_MS.size) AudioMetrics.BOUNDS_MS[i] else histogram.max()
+            }
+            return histogram.max()
+        }
+    }
+
+    fun sample(nowNanos: Long = System.nanoTime()): AudioHealth {
+        val bytesIn = AudioMetrics.downlinkBytesIn.get()
+        val bytesOut = AudioMetrics.uplinkBytesOut.get()
+        val elapsedMs = if (lastNanos == 0L) 0L else (nowNanos - lastNanos) / 1_000_000L
+        val inRate = if (elapsedMs > 0) (bytesIn - lastBytesIn) * 1000 / elapsedMs else 0L
+        val outRate = if (elapsedMs > 0) (bytesOut - lastBytesOut) * 1000 / elapsedMs else 0L
+        lastNanos = nowNanos
+        lastBytesIn = bytesIn
+        lastBytesOut = bytesOut
+
+        val (rttP50, rttP95) = rttWindow.percentiles()
+        val (ttsP50, ttsP95) = ttsWindow.percentiles()
+        return AudioHealth(
+            bytesInPerSec = inRate,
+            bytesOutPerSec = outRate,
+            framesDropped = AudioMetrics.downlinkFramesDropped.get(),
+            jitterUnderruns = AudioMetrics.downlinkJitterUnderruns.get(),
+            uplinkDropped = AudioMetrics.uplinkPacketsDropped.get(),
+            trackUnderruns = AudioMetrics.trackUnderruns.get(),
+            jitterDepthMs = AudioMetrics.jitterDepthMs.get(),
+            jitterMs = AudioMetrics.jitterMs.get(),
+            downlinkLatencyMs = AudioMetrics.downlinkLatencyMs.get(),
+            captureLevelDb = AudioMetrics.captureLevelDb.get(),
+            rttP50Ms = rttP50,
+            rttP95Ms = rttP95,
+            ttsP50Ms = ttsP50,
+            ttsP95Ms = ttsP95
+        )
+    }
+}
@@ -0,0 +1,45 @@
+package com.vhr.voice
+
+import android.content.Context
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioRecord
+
+/**
+ * PCM sample rates advertised in the /api/audio/stream capability handshake, and the
+ * rates the device runs natively so the app can resample itself instead of the HAL.
+ */
+object AudioRates {
+    const val DEFAULT_RATE = 16000
+    private val SUPPORTED_RATES = intArrayOf(16000, 24000, 48000)
+
+    fun isSupported(rate: Int): Boolean = SUPPORTED_RATES.contains(rate)
+
+    /** Comma-separated list for the `rates` query parameter. */
+    fun supportedParam(): String = SUPPORTED_RATES.joinToString(",")
+
+    /** Mixer rate of the primary output (usually 48 kHz); [fallback] if unknown. */
+    fun nativeOutputRate(context: Context, fallback: Int): Int {
+        return try {
+            val am = context.getSystemService(AudioManager::class.java)
+            am?.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE)?.toIntOrNull()
+                ?.takeIf { isSupported(it) } ?: fallback
+        } catch (_: Exception) {
+            fallback
+        }
+    }
+
+    /** 48 kHz when the microphone path accepts it, otherwise [fallback]. */
+    fun nativeInputRate(fallback: Int): Int {
+        return try {
+            val minBuf = AudioRecord.getMinBufferSize(
+                48000,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT
+            )
+            if (minBuf > 0) 48000 else fallback
+        } catch (_: Exception) {
+            fallback
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.vhr.voice
+
+import android.content.Context
+import android.net.ConnectivityManager
+import android.net.Network
+import android.os.SystemClock
+import android.util.Log
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.ConnectionPool
+import okhttp3.Dns
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import org.json.JSONObject
+import java.io.IOException
+import java.net.InetAddress
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Process-wide transport shared by every streaming service.
+ *
+ * One [OkHttpClient] owns the dispatcher threads, the connection pool and the TLS session
+ * cache, so a service restart reuses a warm connection instead of paying DNS + TCP + TLS
+ * again. [preconnect] is called as soon as a session is announced so the WebSocket upgrade
+ * finds an idle connection in the pool. Services must never shut this client down.
+ */
+object AudioTransport {
+
+    private const val TAG = "AudioTransport"
+    private const val DNS_TTL_MS = 5 * 60_000L
+    private const val PING_INTERVAL_S = 15L
+    private const val RTT_PROBE_INTERVAL_S = 2L
+
+    private class CachedLookup(val addresses: List<InetAddress>, val expiresAtMs: Long)
+
+    /** Caches lookups and serves the last good answer when the resolver fails (e.g. right after a Wi-Fi blip). */
+    private object CachingDns : Dns {
+        private val cache = ConcurrentHashMap<String, CachedLookup>()
+
+        override fun lookup(hostname: String): List<InetAddress> {
+            val cached = cache[hostname]
+            val now = System.currentTimeMillis()
+            if (cached != null && cached.expiresAtMs > now) return cached.addresses
+            return try {
+                val fresh = Dns.SYSTEM.lookup(hostname)
+                cache[hostname] = CachedLookup(fresh, now + DNS_TTL_MS)
+                fresh
+            } catch (e: IOException) {
+                cached?.addresses ?: throw e
+            }
+        }
+
+        fun clear() = cache.clear()
+    }
+
+    val client: OkHttpClient by lazy {
+        OkHttpClient.Builder()
+            .readTimeout(0, TimeUnit.MILLISECONDS)
+            .pingInterval(PING_INTERVAL_S, TimeUnit.SECONDS)
+            .connectionPool(ConnectionPool(4, 5, TimeUnit.MINUTES))
+            .dns(CachingDns)
+            .build()
+    }
+
+    /**
+     * Same pool and DNS as [client], restricted to HTTP/1.1 like OkHttp's own WebSocket
+     * calls: an h2 connection (what [client] negotiates over TLS) can never carry the
+     * upgrade, and the pool only hands a connection to a call with the same protocol list.
+     */
+    private val http1Client: OkHttpClient by lazy {
+        client.newBuilder().protocols(listOf(Protocol.HTTP_1_1)).build()
+    }
+
+    private val probeExecutor: ScheduledExecutorService by lazy {
+        Executors.newSingleThreadScheduledExecutor { Thread(it, "vhr-rtt-probe").apply { isDaemon = true } }
+    }
+
+    @Volatile private var lastServerUrl: String? = null
+    private val networkWatchRegistered = AtomicBoolean(false)
+
+    fun newWebSocket(url: String, listener: WebSocketListener): WebSocket =
+        client.newWebSocket(Request.Builder().url(url).build(), listener)
+
+    /**
+     * Resolves the host and leaves an idle HTTP/1.1 connection to [serverUrl] in the pool,
+     * in the background, for the next WebSocket upgrade to take. Cheap to call repeatedly:
+     * a pooled connection is simply reused.
+     */
+    fun preconnect(serverUrl: String) {
+        val base = httpBase(serverUrl)
+        if (base.isBlank()) return
+        lastServerUrl = serverUrl
+        try {
+            val request = Request.Builder().url(base).head().build()
+            http1Client.newCall(request).enqueue(object : Callback {
+                override fun onResponse(call: Call, response: Response) {
+                    response.close()
+                }
+
+                override fun onFailure(call: Call, e: IOException) {
+                    Log.w(TAG, "preconnect error: ${e.message}")
+                }
+            })
+        } catch (e: Exception) {
+            Log.w(TAG, "preconnect error: ${e.message}")
+        }
+    }
+
+    /**
+     * Drops connections bound to a network that went away and warms the new one, so the
+     * next reconnect does not first time out on a dead socket. Registered once per process.
+     */
+    fun watchNetwork(context: Context) {
+        if (!networkWatchRegistered.compareAndSet(false, true)) return
+        try {
+            val cm = context.applicationContext.getSystemService(ConnectivityManager::class.java) ?: return
+            cm.registerDefaultNetworkCallback(object : ConnectivityManager.NetworkCallback() {
+                override fun onAvailable(network: Network) {
+                    client.connectionPool.evictAll()
+                    CachingDns.clear()
+                    lastServerUrl?.let { preconnect(it) }
+                }
+
+                override fun onLost(network: Network) {
+                    client.connectionPool.evictAll()
+                }
+            })
+        } catch (e: Exception) {
+            networkWatchRegistered.set(false)
+            Log.w(TAG, "watchNetwork error: ${e.message}")
+        }
+    }
+
+    /**
+     * Sends `{ type: 'ping', t }` on [socket] every couple of seconds until the returned future
+     * is cancelled. The server echoes it as `pong` and [onPong] records the round trip, off the
+     * audio threads. The socket's own WebSocket pings stay hidden inside OkHttp.
+     */
+    fun startRttProbe(socket: WebSocket): ScheduledFuture<*> =
+        probeExecutor.scheduleWithFixedDelay({
+            try {
+                socket.send("{\"type\":\"ping\",\"t\":${SystemClock.elapsedRealtime()}}")
+            } catch (_: Exception) {}
+        }, 0L, RTT_PROBE_INTERVAL_S, TimeUnit.SECONDS)
+
+    /** Control message `pong` from the server, answering a [startRttProbe] ping. */
+    fun onPong(msg: JSONObject) {
+        val sentMs = msg.optLong("t", -1L)
+        if (sentMs > 0) AudioMetrics.rttMs.record(SystemClock.elapsedRealtime() - sentMs)
+    }
+
+    /** ws:// or wss:// base for [serverUrl], without trailing slash; empty if unusable. */
+    fun wsBase(serverUrl: String): String {
+        val trimmed = serverUrl.trim().removeSuffix("/")
+        if (trimmed.isBlank()) return ""
+        return when {
+            trimmed.startsWith("https://", ignoreCase = true) -> "wss://${trimmed.substring(8)}"
+            trimmed.startsWith("http://", ignoreCase = true) -> "ws://${trimmed.substring(7)}"
+            trimmed.startsWith("wss://", ignoreCase = true) || trimmed.startsWith("ws://", ignoreCase = true) -> trimmed
+            else -> "ws://$trimmed"
+        }
+    }
+
+    private fun httpBase(serverUrl: String): String {
+        val ws = wsBase(serverUrl)
+        return when {
+            ws.startsWith("wss://", ignoreCase = true) -> "https://${ws.substring(6)}/"
+            ws.startsWith("ws://", ignoreCase = true) -> "http://${ws.substring(5)}/"
+            else -> ""
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.vhr.voice
+
+/**
+ * Estimates the drift between the sender's sample clock and the AudioTrack clock and
+ * turns it into a correction for [FractionalResampler], clamped to ±[maxPpm].
+ *
+ * Two terms are summed:
+ *  - clock: samples received vs frames actually played ([android.media.AudioTrack.getTimestamp]),
+ *    both against the monotonic clock over a window that grows for the whole session;
+ *  - fill: a slow proportional pull of the smoothed jitter buffer depth back to its target,
+ *    which absorbs whatever the clock estimate gets wrong.
+ * Not thread safe; driven from the playback thread.
+ */
+class DriftEstimator(
+    private val maxPpm: Double = 500.0,
+    private val fillGainPpmPerMs: Double = 2.0,
+    private val minWindowNanos: Long = 5_000_000_000L
+) {
+
+    var clockPpm: Double = 0.0
+        private set
+    var fillPpm: Double = 0.0
+        private set
+    var ppm: Double = 0.0
+        private set
+
+    private var startReceivedSamples = -1L
+    private var startNanos = 0L
+    private var startTrackFrames = -1L
+    private var startTrackNanos = 0L
+    private var smoothedDepthMs = -1.0
+
+    /** Forgets both windows, e.g. after an underrun, a stall or a format change. */
+    fun reset() {
+        startReceivedSamples = -1L
+        startTrackFrames = -1L
+        smoothedDepthMs = -1.0
+        clockPpm = 0.0
+        fillPpm = 0.0
+        ppm = 0.0
+    }
+
+    /**
+     * @param receivedSamples total samples received by the jitter buffer so far
+     * @param trackFrames frame position from the last AudioTrack timestamp, or -1 if none
+     * @param trackNanos nanoTime of that timestamp
+     * @return the correction to apply, in ppm (positive means play the input faster)
+     */
+    fun update(
+        receivedSamples: Long,
+        nowNanos: Long,
+        trackFrames: Long,
+        trackNanos: Long,
+        depthMs: Double,
+        targetMs: Double
+    ): Double {
+        if (startReceivedSamples < 0L) {
+            startReceivedSamples = receivedSamples
+            startNanos = nowNanos
+        }
+        if (startTrackFrames < 0L && trackFrames >= 0L) {
+            startTrackFrames = trackFrames
+            startTrackNanos = trackNanos
+        }
+
+        val inputNanos = nowNanos - startNanos
+        val trackWindowNanos = trackNanos - startTrackNanos
+        if (startTrackFrames >= 0L && inputNanos >= minWindowNanos && trackWindowNanos >= minWindowNanos) {
+            val inputRate = (receivedSamples - startReceivedSamples).toDouble() / inputNanos
+            val trackRate = (trackFrames - startTrackFrames).toDouble() / trackWindowNanos
+            if (inputRate > 0.0 && trackRate > 0.0) {
+                val raw = ((inputRate / trackRate) - 1.0) * 1_000_000.0
+                // A cumulative window is already smooth; the EMA only tames start-up noise
+                clockPpm += (raw.coerceIn(-maxPpm, maxPpm) - clockPpm) * 0.2
+            }
+        }
+
+        smoothedDepthMs = if (smoothedDepthMs < 0.0) depthMs else smoothedDepthMs + (depthMs - smoothedDepthMs) * 0.05
+        fillPpm = ((smoothedDepthMs - targetMs) * fillGainPpmPerMs).coerceIn(-maxPpm / 2, maxPpm / 2)
+
+        ppm = (clockPpm + fillPpm).coerceIn(-maxPpm, maxPpm)
+        return ppm
+    }
+}
@@ -0,0 +1,266 @@
+package com.vhr.voice
+
+import android.content.Context
+import android.content.Intent
+import android.util.Log
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.encodeUtf8
+import org.json.JSONObject
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * One WebSocket per headset (`/api/audio/stream?mode=duplex`) carrying downlink audio,
+ * uplink audio, control and TTS instead of a socket per service plus an adb broadcast.
+ *
+ * Every frame is binary and starts with a channel byte; control and TTS payloads are
+ * UTF-8 JSON tagged with the role they belong to. A service [attach]es its role and gets
+ * back a [WebSocket] view of the shared socket, so its listener and [UplinkSendQueue] work
+ * unchanged. OkHttp sends in order, so priority is enforced before the queue: audio is
+ * refused once [MAX_QUEUED_AUDIO_BYTES] are waiting (the server sheds downlink audio the
+ * same way), while control and TTS are always queued and never wait behind more than that.
+ */
+object DuplexChannel {
+
+    private const val TAG = "DuplexChannel"
+    const val ROLE_RECEIVER = "receiver"
+    const val ROLE_UPLINK = "uplink-sender"
+    private const val CHANNEL_DOWNLINK: Byte = 1
+    private const val CHANNEL_UPLINK: Byte = 2
+    private const val CHANNEL_CONTROL: Byte = 3
+    private const val CHANNEL_TTS: Byte = 4
+    /** Same bound as DUPLEX_MAX_BUFFERED_AUDIO on the server, about 170 ms of 48 kHz pcm16. */
+    private const val MAX_QUEUED_AUDIO_BYTES = 16 * 1024L
+
+    private val lock = Any()
+    private var socket: WebSocket? = null
+    private var socketUrl: String? = null
+    @Volatile private var openResponse: Response? = null
+    private var appContext: Context? = null
+    private val roles = ConcurrentHashMap<String, RoleSocket>()
+
+    /**
+     * Attaches [role] to the headset's shared socket, opening it if needed. [params] are the
+     * query parameters the legacy socket would have used (format, frameMs, sampleRate...).
+     * [listener] then receives this role's traffic exactly as with a dedicated socket.
+     */
+    fun attach(
+        context: Context,
+        serverUrl: String,
+        serial: String,
+        role: String,
+        params: JSONObject,
+        listener: WebSocketListener
+    ): WebSocket? {
+        val wsBase = AudioTransport.wsBase(serverUrl)
+        if (wsBase.isBlank()) return null
+        val url = "$wsBase/api/audio/stream?serial=$serial&mode=duplex"
+        val attachMessage = params.put("type", "attach").put("role", role).toString()
+
+        synchronized(lock) {
+            appContext = context.applicationContext
+            if (socketUrl != url) {
+                // A new session replaces the old one: its roles fail like a dropped socket would
+                closeShared(1000, "replaced")
+            }
+            val shared = socket ?: AudioTransport.newWebSocket(url, SharedListener).also {
+                socket = it
+                socketUrl = url
+            }
+            roles.remove(role)?.let { it.closed = true }
+            val roleSocket = RoleSocket(shared, role, listener)
+            roles[role] = roleSocket
+
+            val response = openResponse
+            if (response != null) {
+                sendFrame(shared, CHANNEL_CONTROL, attachMessage.encodeUtf8())
+                AudioTransport.client.dispatcher.executorService.execute {
+                    listener.onOpen(roleSocket, response)
+                }
+            } else {
+                roleSocket.pendingAttach = attachMessage
+            }
+            return roleSocket
+        }
+    }
+
+    private fun detach(roleSocket: RoleSocket) {
+        synchronized(lock) {
+            if (roles[roleSocket.role] === roleSocket) roles.remove(roleSocket.role)
+            val shared = socket
+            if (shared === roleSocket.shared && openResponse != null) {
+                sendControl(shared, JSONObject().put("type", "detach").put("role", roleSocket.role))
+            }
+            // Last role gone: the headset no longer needs the socket
+            if (roles.isEmpty()) closeShared(1000, "idle")
+        }
+    }
+
+    private fun closeShared(code: Int, reason: String) {
+        val shared = socket ?: return
+        socket = null
+        socketUrl = null
+        openResponse = null
+        try { shared.close(code, reason) } catch (_: Exception) {}
+        failRoles(shared, "Duplex socket $reason")
+    }
+
+    private fun failRoles(shared: WebSocket, reason: String) {
+        for (roleSocket in roles.values) {
+            if (roleSocket.shared !== shared) continue
+            roles.remove(roleSocket.role)
+            if (roleSocket.closed) continue
+            roleSocket.closed = true
+            try {
+                roleSocket.listener.onFailure(roleSocket, IllegalStateException(reason), null)
+            } catch (e: Exception) {
+                Log.e(TAG, "onFailure error: ${e.message}")
+            }
+        }
+    }
+
+    private fun sendControl(shared: WebSocket, message: JSONObject): Boolean =
+        sendFrame(shared, CHANNEL_CONTROL, message.toString().encodeUtf8())
+
+    private fun sendFrame(shared: WebSocket, channel: Byte, payload: ByteString): Boolean {
+        val frame = Buffer().writeByte(channel.toInt()).write(payload).readByteString()
+        return shared.send(frame)
+    }
+
+    private object SharedListener : WebSocketListener() {
+        override fun onOpen(webSocket: WebSocket, response: Response) {
+            val attached = synchronized(lock) {
+                if (webSocket !== socket) return
+                openResponse = response
+                roles.values.filter { it.shared === webSocket }.onEach { roleSocket ->
+                    roleSocket.pendingAttach?.let { sendFrame(webSocket, CHANNEL_CONTROL, it.encodeUtf8()) }
+                    roleSocket.pendingAttach = null
+                }
+            }
+            Log.i(TAG, "Duplex WebSocket open: ${webSocket.request().url} (roles=${attached.map { it.role }})")
+            for (roleSocket in attached) roleSocket.listener.onOpen(roleSocket, response)
+        }
+
+        override fun onMessage(webSocket: WebSocket, bytes: ByteString) {
+            if (bytes.size < 1) return
+            val payload = bytes.substring(1)
+            when (bytes[0]) {
+                CHANNEL_DOWNLINK -> roles[ROLE_RECEIVER]?.let { it.listener.onMessage(it, payload) }
+                CHANNEL_CONTROL -> dispatchControl(payload.utf8())
+                CHANNEL_TTS -> speak(payload.utf8())
+                else -> Log.w(TAG, "Unexpected duplex channel ${bytes[0]}")
+            }
+        }
+
+        override fun onMessage(webSocket: WebSocket, text: String) {
+            dispatchControl(text)
+        }
+
+        override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
+            Log.e(TAG, "Duplex WebSocket failure: ${t.message}")
+            dropShared(webSocket, "failed: ${t.message}")
+        }
+
+        override fun onClosed(webSocket: WebSocket, code: Int, reason: String) {
+            Log.i(TAG, "Duplex WebSocket closed: $code/$reason")
+            dropShared(webSocket, "closed: $code/$reason")
+        }
+
+        private fun dropShared(webSocket: WebSocket, reason: String) {
+            synchronized(lock) {
+                if (webSocket === socket) {
+                    socket = null
+                    socketUrl = null
+                    openResponse = null
+                }
+                failRoles(webSocket, "Duplex socket $reason")
+            }
+        }
+    }
+
+    private fun dispatchControl(text: String) {
+        val msg = try { JSONObject(text) } catch (_: Exception) { null } ?: return
+        val role = msg.optString("role")
+        if (role.isBlank()) {
+            // The server tags every control message; an untagged one cannot be routed safely
+            Log.w(TAG, "Control message without role ignored: ${msg.optString("type")}")
+            return
+        }
+        val roleSocket = roles[role] ?: return
+        if (msg.optString("type") == "detached") {
+            // The server dropped this role (e.g. another receiver took over)
+            if (roles.remove(roleSocket.role, roleSocket) && !roleSocket.closed) {
+                roleSocket.closed = true
+                roleSocket.listener.onClosed(roleSocket, 1000, "detached")
+            }
+            return
+        }
+        roleSocket.listener.onMessage(roleSocket, text)
+    }
+
+    private fun speak(text: String) {
+        val context = appContext ?: return
+        try {
+            val msg = JSONObject(text)
+            val utterance = msg.optString("text")
+            if (utterance.isBlank()) return
+            val intent = Intent(context, TtsService::class.java).apply {
+                action = TtsService.ACTION_SPEAK
+                putExtra(TtsService.EXTRA_TEXT, utterance)
+                putExtra(TtsService.EXTRA_ID, msg.optString("utteranceId").ifBlank { TtsService.newUtteranceId() })
+                msg.optString("locale").takeIf { it.isNotBlank() }?.let { putExtra(TtsService.EXTRA_LOCALE, it) }
+                msg.optString("priority").takeIf { it.isNotBlank() }?.let { putExtra(TtsService.EXTRA_PRIORITY, it) }
+            }
+            context.startService(intent)
+        } catch (e: Exception) {
+            Log.e(TAG, "speak error: ${e.message}")
+        }
+    }
+
+    /**
+     * One role's view of the shared socket. Binary sends go out on the role's audio channel,
+     * text sends as control tagged with the role; [queueSize] is the shared socket's, which is
+     * what [UplinkSendQueue] needs to keep audio within budget. An audio send refused because
+     * the shared queue is full returns false, which the send queue counts as a drop.
+     */
+    private class RoleSocket(
+        val shared: WebSocket,
+        val role: String,
+        val listener: WebSocketListener
+    ) : WebSocket {
+        @Volatile var closed = false
+        var pendingAttach: String? = null
+
+        override fun request(): Request = shared.request()
+
+        override fun queueSize(): Long = shared.queueSize()
+
+        override fun send(text: String): Boolean {
+            if (closed) return false
+            val msg = try { JSONObject(text) } catch (_: Exception) { return false }
+            return sendControl(shared, msg.put("role", role))
+        }
+
+        /** The channel byte costs one extra copy of the packet; packets are a few hundred bytes. */
+        override fun send(bytes: ByteString): Boolean {
+            if (closed || shared.queueSize() > MAX_QUEUED_AUDIO_BYTES) return false
+            val channel = if (role == ROLE_UPLINK) CHANNEL_UPLINK else CHANNEL_DOWNLINK
+            return sendFrame(shared, channel, bytes)
+        }
+
+        override fun close(code: Int, reason: String?): Boolean {
+            if (closed) return false
+            closed = true
+            detach(this)
+            return true
+        }
+
+        override fun cancel() {
+            close(1001, "cancel")
+        }
+    }
+}
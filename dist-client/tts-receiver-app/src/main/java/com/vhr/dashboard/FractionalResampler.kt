@@ -0,0 +1,123 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.sin
+
+/**
+ * Streaming windowed-sinc resampler for 16-bit mono PCM with a continuously adjustable
+ * ratio, meant for tiny corrections (a few hundred ppm) rather than rate conversion.
+ *
+ * Coefficients come from a precomputed polyphase table, linearly interpolated between
+ * phases; each row is normalised to unity gain. The input history is kept across calls
+ * so frame boundaries are seamless. Added latency is [taps]/2 samples. Allocation free.
+ */
+class FractionalResampler(
+    private val maxInputSamples: Int,
+    private val taps: Int = 16,
+    private val phases: Int = 256,
+    cutoff: Double = 0.97
+) {
+
+    private val half = taps / 2
+    private val table = FloatArray((phases + 1) * taps)
+    private val history = FloatArray(maxInputSamples + taps * 2)
+    private var available = 0
+    private var position = 0.0
+
+    /** Input samples consumed per output sample; 1.0 is a plain pass-through. */
+    var step: Double = 1.0
+        private set
+
+    init {
+        for (p in 0..phases) {
+            val frac = p.toDouble() / phases
+            var sum = 0.0
+            for (j in 0 until taps) {
+                val d = frac + half - 1 - j
+                val value = windowedSinc(d, cutoff)
+                table[p * taps + j] = value.toFloat()
+                sum += value
+            }
+            for (j in 0 until taps) {
+                table[p * taps + j] = (table[p * taps + j] / sum).toFloat()
+            }
+        }
+        reset()
+    }
+
+    /** Sets the ratio from a drift expressed in parts per million (positive consumes input faster). */
+    fun setDriftPpm(ppm: Double) {
+        step = 1.0 + ppm / 1_000_000.0
+    }
+
+    fun reset() {
+        history.fill(0f)
+        // Prime with half a kernel of silence so the first output lines up with the first input sample
+        available = half - 1
+        position = (half - 1).toDouble()
+    }
+
+    /** Largest output (in bytes) that [process] can produce for [inputBytes] of input. */
+    fun maxOutputBytes(inputBytes: Int): Int = (inputBytes / 2 + taps) * 2
+
+    /**
+     * Resamples bytes [0, size) of [input] into [output] starting at index 0 and returns the
+     * number of bytes written. Neither buffer's position is used or moved.
+     */
+    fun process(input: ByteBuffer, size: Int, output: ByteBuffer): Int {
+        val samples = minOf(size / 2, history.size - available)
+        for (i in 0 until samples) {
+            history[available + i] = input.getShort(i * 2).toFloat()
+        }
+        available += samples
+
+        var written = 0
+        val outCapacity = output.capacity() / 2
+        while (written < outCapacity) {
+            val base = position.toInt()
+            if (base + half >= available) break
+            val phase = (position - base) * phases
+            val p = phase.toInt()
+            val mix = (phase - p).toFloat()
+            val row0 = p * taps
+            val row1 = row0 + taps
+            val start = base - half + 1
+            var acc = 0f
+            for (j in 0 until taps) {
+                val c0 = table[row0 + j]
+                val coef = c0 + (table[row1 + j] - c0) * mix
+                acc += history[start + j] * coef
+            }
+            val sample = when {
+                acc > 32767f -> 32767
+                acc < -32768f -> -32768
+                acc >= 0f -> (acc + 0.5f).toInt()
+                else -> (acc - 0.5f).toInt()
+            }
+            output.putShort(written * 2, sample.toShort())
+            written++
+            position += step
+        }
+
+        // Drop consumed input, keeping the samples the next kernel still needs
+        val consumed = position.toInt() - half + 1
+        if (consumed > 0) {
+            val keep = available - consumed
+            System.arraycopy(history, consumed, history, 0, keep)
+            available = keep
+            position -= consumed
+        }
+        return written * 2
+    }
+
+    private fun windowedSinc(d: Double, cutoff: Double): Double {
+        if (d <= -half || d >= half) return 0.0
+        val x = PI * cutoff * d
+        val sinc = if (d == 0.0) 1.0 else sin(x) / x
+        // Blackman window over [-half, half]
+        val w = 0.42 + 0.5 * cos(PI * d / half) + 0.08 * cos(2.0 * PI * d / half)
+        return cutoff * sinc * w
+    }
+}
@@ -0,0 +1,18 @@
+package com.vhr.voice
+
+/**
+ * Audio frame duration shared by capture, send and playback for one session.
+ * Only codec-friendly sizes are allowed so a frame always maps to whole Opus frames.
+ */
+object FrameDurations {
+    const val DEFAULT_MS = 20
+    private val SUPPORTED_MS = intArrayOf(10, 20, 40)
+
+    fun isSupported(frameMs: Int): Boolean = SUPPORTED_MS.contains(frameMs)
+
+    /** Returns [frameMs] if supported, otherwise the default 20 ms. */
+    fun normalize(frameMs: Int): Int = if (isSupported(frameMs)) frameMs else DEFAULT_MS
+
+    /** Bytes of 16-bit mono PCM in one frame of [frameMs] at [sampleRate]. */
+    fun pcmBytes(sampleRate: Int, frameMs: Int): Int = sampleRate / 1000 * frameMs * 2
+}
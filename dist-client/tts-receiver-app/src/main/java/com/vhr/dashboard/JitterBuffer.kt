@@ -0,0 +1,170 @@
+package com.vhr.voice
+
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.abs
+import kotlin.math.ceil
+
+/**
+ * Bounded PCM frame queue between the WebSocket reader and the playback thread.
+ *
+ * The target depth follows the measured inter-arrival jitter (RFC 3550 estimator),
+ * playback only (re)starts once that depth is reached, and the oldest frames are
+ * discarded when the queue drifts too far above the target so latency stays bounded.
+ * Frames come from [pool] and every frame dropped here is handed back to it.
+ */
+class JitterBuffer(
+    private var bytesPerMs: Int,
+    private val pool: PcmFramePool,
+    private val capacityFrames: Int = 64,
+    private val minTargetFrames: Int = 2,
+    private val maxTargetFrames: Int = 24
+) {
+
+    data class Stats(
+        val depthFrames: Int,
+        val targetFrames: Int,
+        val jitterMs: Double,
+        val receivedFrames: Long,
+        val receivedBytes: Long,
+        val lateFrames: Long,
+        val discardedFrames: Long,
+        val underruns: Long
+    )
+
+    private val lock = ReentrantLock()
+    private val notEmpty = lock.newCondition()
+    private val frames = ArrayDeque<PcmFrame>(capacityFrames)
+
+    private var targetFrames = minTargetFrames
+    private var jitterMs = 0.0
+    private var lastArrivalNanos = 0L
+    private var lastFrameMs = 0.0
+    private var buffering = true
+    private var starved = false
+
+    private var receivedFrames = 0L
+    private var receivedBytes = 0L
+    private var lateFrames = 0L
+    private var discardedFrames = 0L
+    private var underruns = 0L
+
+    /**
+     * Called from the socket reader thread. Never blocks: when the queue is full
+     * the oldest frame is discarded instead.
+     */
+    fun offer(frame: PcmFrame) {
+        if (frame.size <= 0) {
+            pool.release(frame)
+            return
+        }
+        val now = if (frame.arrivalNanos != 0L) frame.arrivalNanos else System.nanoTime()
+        lock.withLock {
+            receivedFrames++
+            receivedBytes += frame.size
+            updateJitter(now, frame.size)
+
+            if (starved) {
+                // The consumer ran dry before this frame showed up
+                lateFrames++
+                starved = false
+            }
+
+            if (frames.size >= capacityFrames) {
+                pool.release(frames.pollFirst())
+                discardedFrames++
+            }
+            frames.addLast(frame)
+
+            // Catch up when we are well above target (e.g. after a burst following a stall)
+            val highWater = targetFrames * 2 + 2
+            if (!buffering && frames.size > highWater) {
+                while (frames.size > targetFrames) {
+                    pool.release(frames.pollFirst())
+                    discardedFrames++
+                }
+            }
+
+            if (!buffering || frames.size >= targetFrames) {
+                notEmpty.signal()
+            }
+        }
+    }
+
+    /**
+     * Called from the playback thread. Returns null on timeout or while prebuffering; a
+     * timeout while playing counts as an underrun and restarts prebuffering.
+     * The caller owns the returned frame and must release it to the pool.
+     */
+    fun poll(timeoutMs: Long): PcmFrame? {
+        lock.withLock {
+            var remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+            while (buffering && frames.size < targetFrames || frames.isEmpty()) {
+                if (remaining <= 0L) {
+                    if (!buffering) {
+                        // Playing and nothing arrived for a whole wait: a real underrun,
+                        // rebuild the cushion before resuming playback
+                        underruns++
+                        buffering = true
+                        starved = true
+                    }
+                    return null
+                }
+                remaining = notEmpty.awaitNanos(remaining)
+            }
+            buffering = false
+            // Taking the last queued frame is the steady state, not a starvation
+            return frames.pollFirst()
+        }
+    }
+
+    fun clear() {
+        lock.withLock {
+            while (frames.isNotEmpty()) {
+                pool.release(frames.pollFirst())
+            }
+            buffering = true
+            starved = false
+            lastArrivalNanos = 0L
+        }
+    }
+
+    /** Drops everything queued and restarts estimation for a new PCM rate. */
+    fun reset(newBytesPerMs: Int) {
+        lock.withLock {
+            bytesPerMs = newBytesPerMs
+            jitterMs = 0.0
+            targetFrames = minTargetFrames
+        }
+        clear()
+    }
+
+    fun stats(): Stats = lock.withLock {
+        Stats(
+            depthFrames = frames.size,
+            targetFrames = targetFrames,
+            jitterMs = jitterMs,
+            receivedFrames = receivedFrames,
+            receivedBytes = receivedBytes,
+            lateFrames = lateFrames,
+            discardedFrames = discardedFrames,
+            underruns = underruns
+        )
+    }
+
+    private fun updateJitter(nowNanos: Long, frameBytes: Int) {
+        val frameMs = frameBytes.toDouble() / bytesPerMs
+        if (lastArrivalNanos != 0L) {
+            val gapMs = (nowNanos - lastArrivalNanos) / 1_000_000.0
+            val deviation = abs(gapMs - lastFrameMs)
+            jitterMs += (deviation - jitterMs) / 16.0
+            val cushionMs = lastFrameMs + 3.0 * jitterMs
+            val wanted = ceil(cushionMs / frameMs.coerceAtLeast(1.0)).toInt()
+            targetFrames = wanted.coerceIn(minTargetFrames, maxTargetFrames)
+        }
+        lastArrivalNanos = nowNanos
+        lastFrameMs = frameMs
+    }
+}
@@ -12,10 +12,15 @@ import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.foundation.shape.RoundedCornerShape
 import androidx.compose.material3.*
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.SideEffect
 import androidx.compose.runtime.collectAsState
+import androidx.compose.runtime.produceState
+import androidx.compose.runtime.snapshotFlow
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Brush
@@ -27,7 +32,7 @@ import androidx.compose.ui.unit.dp
 import androidx.compose.ui.unit.sp
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
-import java.time.format.DateTimeFormatter
+import kotlinx.coroutines.delay
 
 class MainActivity : ComponentActivity() {
     
@@ -37,6 +42,7 @@ class MainActivity : ComponentActivity() {
         super.onCreate(savedInstanceState)
         
         Log.d("MainActivity", "🚀 Démarrage de l'app VHR TTS Receiver")
+        TtsMessageLog.init(this)
         
         // Demander les permissions
         requestPermissions()
@@ -68,15 +74,38 @@ class MainActivity : ComponentActivity() {
         val serial = intent.getStringExtra("serial")?.trim().orEmpty()
         val shouldStartDownlink = serverUrl.isNotBlank() && serial.isNotBlank()
 
+        if (serverUrl.isNotBlank()) {
+            // Warm DNS/TCP/TLS while the services are still starting
+            AudioTransport.watchNetwork(this)
+            AudioTransport.preconnect(serverUrl)
+        }
+
+        val frameMs = FrameDurations.normalize(intent.getIntExtra("frameMs", FrameDurations.DEFAULT_MS))
+        // Initial pcm16 rate; the stream handshake can still move the downlink to the headset's native rate
+        val sampleRate = intent.getIntExtra("sampleRate", AudioRates.DEFAULT_RATE)
+            .takeIf { AudioRates.isSupported(it) } ?: AudioRates.DEFAULT_RATE
+        // Downlink, uplink and TTS share one multiplexed socket instead of one per service
+        val duplex = intent.getBooleanExtra("duplex", false)
+        // Optional LAN UDP audio (falls back to the WebSocket on its own); udpLossPercent is a test shim
+        val udp = intent.getBooleanExtra("udp", false)
+        val udpFec = intent.getBooleanExtra("udpFec", false)
+        val udpLossPercent = intent.getIntExtra("udpLossPercent", 0)
+
         if (shouldStartDownlink) {
             val downlinkIntent = android.content.Intent(this, AudioDownlinkService::class.java).apply {
                 action = AudioDownlinkService.ACTION_START
                 putExtra(AudioDownlinkService.EXTRA_SERVER_URL, serverUrl)
                 putExtra(AudioDownlinkService.EXTRA_SERIAL, serial)
-                putExtra(AudioDownlinkService.EXTRA_SAMPLE_RATE, 16000)
+                putExtra(AudioDownlinkService.EXTRA_SAMPLE_RATE, sampleRate)
+                putExtra(AudioDownlinkService.EXTRA_FORMAT, intent.getStringExtra("downlinkFormat")?.trim().orEmpty())
+                putExtra(AudioDownlinkService.EXTRA_FRAME_MS, frameMs)
+                putExtra(AudioDownlinkService.EXTRA_DUPLEX, duplex)
+                putExtra(AudioDownlinkService.EXTRA_UDP, udp)
+                putExtra(AudioDownlinkService.EXTRA_UDP_FEC, udpFec)
+                putExtra(AudioDownlinkService.EXTRA_UDP_LOSS_PERCENT, udpLossPercent)
             }
             ContextCompat.startForegroundService(this, downlinkIntent)
-            Log.d("MainActivity", "🔈 Audio downlink service started (serial=$serial)")
+            Log.d("MainActivity", "🔈 Audio downlink service started (serial=$serial, duplex=$duplex)")
         } else {
             stopService(android.content.Intent(this, AudioDownlinkService::class.java))
         }
@@ -91,18 +120,32 @@ class MainActivity : ComponentActivity() {
             return
         }
 
-        if (uplinkFormat.lowercase() != "pcm16") {
+        val normalizedUplinkFormat = uplinkFormat.lowercase()
+        if (normalizedUplinkFormat != "pcm16" && normalizedUplinkFormat != "opus") {
             Log.w("MainActivity", "⚠️ uplinkFormat=$uplinkFormat non supporté, fallback pcm16")
         }
+        val uplinkBitrate = intent.getIntExtra("uplinkBitrate", AudioEncoders.DEFAULT_OPUS_BITRATE)
 
         val uplinkIntent = android.content.Intent(this, MicUplinkService::class.java).apply {
             action = MicUplinkService.ACTION_START
             putExtra(MicUplinkService.EXTRA_SERVER_URL, serverUrl)
             putExtra(MicUplinkService.EXTRA_SERIAL, serial)
-            putExtra(MicUplinkService.EXTRA_SAMPLE_RATE, 16000)
+            putExtra(MicUplinkService.EXTRA_SAMPLE_RATE, sampleRate)
+            putExtra(MicUplinkService.EXTRA_FORMAT, if (normalizedUplinkFormat == "opus") "opus" else "pcm16")
+            putExtra(MicUplinkService.EXTRA_BITRATE, uplinkBitrate)
+            putExtra(MicUplinkService.EXTRA_VAD, intent.getBooleanExtra("uplinkVad", true))
+            putExtra(MicUplinkService.EXTRA_FRAME_MS, frameMs)
+            putExtra(MicUplinkService.EXTRA_DUPLEX, duplex)
+            putExtra(MicUplinkService.EXTRA_UDP, udp)
+            putExtra(MicUplinkService.EXTRA_UDP_FEC, udpFec)
+            putExtra(MicUplinkService.EXTRA_UDP_LOSS_PERCENT, udpLossPercent)
+            putExtra(
+                MicUplinkService.EXTRA_LATENCY_BUDGET_MS,
+                intent.getIntExtra("uplinkLatencyBudgetMs", MicUplinkService.DEFAULT_LATENCY_BUDGET_MS)
+            )
         }
         ContextCompat.startForegroundService(this, uplinkIntent)
-        Log.d("MainActivity", "🎙️ Mic uplink service started (serial=$serial)")
+        Log.d("MainActivity", "🎙️ Mic uplink service started (serial=$serial, format=$normalizedUplinkFormat)")
     }
     
     private fun requestPermissions() {
@@ -167,6 +210,36 @@ fun TtsReceiverScreen(viewModel: TtsViewModel) {
     val messages = viewModel.messages.collectAsState()
     val isListening = viewModel.isListening.collectAsState()
     val messageCount = viewModel.messageCount.collectAsState()
+    val listState = rememberLazyListState()
+
+    // Older messages are read from the on-device log a page at a time, as the list reaches them
+    LaunchedEffect(listState) {
+        snapshotFlow {
+            val info = listState.layoutInfo
+            val last = info.visibleItemsInfo.lastOrNull()?.index ?: -1
+            Pair(listState.firstVisibleItemIndex == 0, last >= info.totalItemsCount - 10)
+        }.collect { (atTop, nearEnd) ->
+            if (nearEnd) viewModel.loadOlder()
+            if (atTop) viewModel.loadNewer()
+        }
+    }
+
+    if (BuildConfig.DEBUG) {
+        LaunchedEffect(Unit) {
+            var cards = TtsCompositionStats.cardCompositions.get()
+            var updates = TtsCompositionStats.listUpdates.get()
+            while (true) {
+                delay(1000)
+                val nowCards = TtsCompositionStats.cardCompositions.get()
+                val nowUpdates = TtsCompositionStats.listUpdates.get()
+                if (nowUpdates != updates) {
+                    Log.d("MainActivity", "🎨 Liste: ${nowUpdates - updates} mises à jour/s, ${nowCards - cards} cartes recomposées/s")
+                }
+                cards = nowCards
+                updates = nowUpdates
+            }
+        }
+    }
     
     Column(
         modifier = Modifier
@@ -208,6 +281,8 @@ fun TtsReceiverScreen(viewModel: TtsViewModel) {
             isListening = isListening.value,
             messageCount = messageCount.value
         )
+
+        AudioHealthCard()
         
         // Message List
         Text(
@@ -223,12 +298,14 @@ fun TtsReceiverScreen(viewModel: TtsViewModel) {
             EmptyStateCard()
         } else {
             LazyColumn(
+                state = listState,
                 modifier = Modifier
                     .fillMaxWidth()
                     .weight(1f),
                 verticalArrangement = Arrangement.spacedBy(8.dp)
             ) {
-                items(messages.value) { message ->
+                // Keyed: a new message composes one card, the others keep their slot and skip
+                items(messages.value, key = { it.key }) { message ->
                     MessageCard(message)
                 }
             }
@@ -315,18 +392,103 @@ fun StatusCard(isListening: Boolean, messageCount: Int) {
     }
 }
 
+private const val HEALTH_SAMPLE_MS = 250L
+
+/** Live audio figures from [AudioMetrics], sampled four times per second while on screen. */
+@Composable
+fun AudioHealthCard() {
+    val health = produceState(AudioHealth()) {
+        val sampler = AudioHealthSampler()
+        while (true) {
+            value = sampler.sample()
+            delay(HEALTH_SAMPLE_MS)
+        }
+    }.value
+
+    Card(
+        modifier = Modifier
+            .fillMaxWidth()
+            .padding(bottom = 8.dp),
+        colors = CardDefaults.cardColors(
+            containerColor = Color(0xFF2E2E3E)
+        ),
+        shape = RoundedCornerShape(12.dp)
+    ) {
+        Column(
+            modifier = Modifier.padding(12.dp),
+            verticalArrangement = Arrangement.spacedBy(4.dp)
+        ) {
+            Text(
+                "🩺 Santé audio",
+                fontSize = 14.sp,
+                fontWeight = FontWeight.Bold,
+                color = Color.White,
+                modifier = Modifier.padding(bottom = 4.dp)
+            )
+            HealthRow(
+                "⬇️ Réception", formatRate(health.bytesInPerSec),
+                "⬆️ Émission", formatRate(health.bytesOutPerSec)
+            )
+            HealthRow(
+                "🧺 Tampon", "${formatMs(health.jitterDepthMs)} (gigue ${formatMs(health.jitterMs)})",
+                "⏱️ PC → casque", formatMs(health.downlinkLatencyMs)
+            )
+            HealthRow(
+                "🔇 Perdues ↓/↑", "${health.framesDropped} / ${health.uplinkDropped}",
+                "⚠️ Underruns", "${health.jitterUnderruns} / ${
+                    if (health.trackUnderruns.isNaN()) "–" else health.trackUnderruns.toLong().toString()
+                }"
+            )
+            HealthRow(
+                "📶 RTT p50/p95", formatPercentiles(health.rttP50Ms, health.rttP95Ms),
+                "🗣️ TTS p50/p95", formatPercentiles(health.ttsP50Ms, health.ttsP95Ms)
+            )
+            HealthRow(
+                "🎤 Niveau micro",
+                if (health.captureLevelDb.isNaN()) "–" else "${"%.0f".format(health.captureLevelDb)} dBFS",
+                "", ""
+            )
+        }
+    }
+}
+
+@Composable
+private fun HealthRow(leftLabel: String, leftValue: String, rightLabel: String, rightValue: String) {
+    Row(
+        modifier = Modifier.fillMaxWidth(),
+        horizontalArrangement = Arrangement.spacedBy(12.dp)
+    ) {
+        Text(
+            "$leftLabel  $leftValue",
+            fontSize = 11.sp,
+            color = Color(0xFFB0B0B0),
+            modifier = Modifier.weight(1f)
+        )
+        Text(
+            if (rightLabel.isEmpty()) "" else "$rightLabel  $rightValue",
+            fontSize = 11.sp,
+            color = Color(0xFFB0B0B0),
+            modifier = Modifier.weight(1f)
+        )
+    }
+}
+
+private fun formatRate(bytesPerSec: Long): String = "${"%.1f".format(bytesPerSec / 1024.0)} ko/s"
+
+private fun formatMs(ms: Double): String = if (ms.isNaN()) "–" else "${ms.toLong()} ms"
+
+private fun formatPercentiles(p50: Long, p95: Long): String = if (p50 < 0) "–" else "$p50 / $p95 ms"
+
 @Composable
-fun MessageCard(message: TtsMessage) {
+fun MessageCard(message: TtsMessageItem) {
+    if (BuildConfig.DEBUG) {
+        SideEffect { TtsCompositionStats.cardCompositions.incrementAndGet() }
+    }
     Card(
         modifier = Modifier
             .fillMaxWidth(),
         colors = CardDefaults.cardColors(
-            containerColor = when (message.status) {
-                "completed" -> Color(0xFF2D5016)
-                "error" -> Color(0xFF5F1E1E)
-                "speaking" -> Color(0xFF4A4A2E)
-                else -> Color(0xFF2E2E3E)
-            }
+            containerColor = message.background
         ),
         shape = RoundedCornerShape(8.dp)
     ) {
@@ -354,23 +516,14 @@ fun MessageCard(message: TtsMessage) {
                 }
                 
                 Text(
-                    when (message.status) {
-                        "speaking" -> "🔊"
-                        "completed" -> "✅"
-                        "error" -> "❌"
-                        else -> "⏳"
-                    },
+                    message.icon,
                     fontSize = 18.sp,
                     modifier = Modifier.padding(start = 8.dp)
                 )
             }
             
             Text(
-                "${message.status} • ${
-                    message.timestamp.format(
-                        DateTimeFormatter.ofPattern("HH:mm:ss")
-                    )
-                }",
+                message.details,
                 fontSize = 11.sp,
                 color = Color(0xFF808080),
                 modifier = Modifier.padding(top = 6.dp)
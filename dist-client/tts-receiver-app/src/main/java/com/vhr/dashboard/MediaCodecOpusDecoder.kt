@@ -0,0 +1,146 @@
+package com.vhr.voice
+
+import android.media.MediaCodec
+import android.media.MediaCodecList
+import android.media.MediaFormat
+import android.util.Log
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Raw Opus packets (no Ogg/WebM container) decoded with the platform codec.
+ * The platform Opus decoder always produces 48 kHz output. [frameMs] is the negotiated
+ * packet duration, used to advance the input timestamps.
+ */
+class MediaCodecOpusDecoder(
+    frameMs: Int = FrameDurations.DEFAULT_MS,
+    private val channels: Int = 1
+) : AudioDecoder {
+
+    companion object {
+        private const val TAG = "OpusDecoder"
+        private const val PRE_SKIP_SAMPLES = 312
+        private const val SEEK_PREROLL_NS = 80_000_000L
+        private const val DEQUEUE_TIMEOUT_US = 2_000L
+
+        private val supported: Boolean by lazy {
+            try {
+                val probe = MediaFormat.createAudioFormat(
+                    MediaFormat.MIMETYPE_AUDIO_OPUS, AudioDecoders.OPUS_SAMPLE_RATE, 1
+                )
+                MediaCodecList(MediaCodecList.REGULAR_CODECS).findDecoderForFormat(probe) != null
+            } catch (_: Exception) {
+                false
+            }
+        }
+
+        fun isSupported(): Boolean = supported
+
+        /** The platform decoder, or null when the device has none or it fails to start. */
+        fun createOrNull(frameMs: Int = FrameDurations.DEFAULT_MS): AudioDecoder? {
+            if (!supported) return null
+            return try {
+                MediaCodecOpusDecoder(frameMs)
+            } catch (e: Exception) {
+                Log.e(TAG, "Opus decoder unavailable: ${e.message}")
+                null
+            }
+        }
+    }
+
+    override val format: String = AudioDecoders.FORMAT_OPUS
+    override var outputSampleRate: Int = AudioDecoders.OPUS_SAMPLE_RATE
+        private set
+
+    private val codec: MediaCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS)
+    private val bufferInfo = MediaCodec.BufferInfo()
+    private val frameUs = frameMs * 1000L
+    private var ptsUs = 0L
+
+    init {
+        val mediaFormat = MediaFormat.createAudioFormat(
+            MediaFormat.MIMETYPE_AUDIO_OPUS,
+            AudioDecoders.OPUS_SAMPLE_RATE,
+            channels
+        )
+        mediaFormat.setByteBuffer("csd-0", opusHead())
+        mediaFormat.setByteBuffer("csd-1", longLe(PRE_SKIP_SAMPLES * 1_000_000_000L / AudioDecoders.OPUS_SAMPLE_RATE))
+        mediaFormat.setByteBuffer("csd-2", longLe(SEEK_PREROLL_NS))
+        codec.configure(mediaFormat, null, null, 0)
+        codec.start()
+    }
+
+    override fun decode(packet: ByteBuffer, size: Int, sink: PcmSink) {
+        try {
+            val inIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US)
+            if (inIndex >= 0) {
+                val input = codec.getInputBuffer(inIndex)
+                if (input != null) {
+                    input.clear()
+                    val limit = packet.limit()
+                    packet.limit(packet.position() + size)
+                    input.put(packet)
+                    packet.limit(limit)
+                    codec.queueInputBuffer(inIndex, 0, size, ptsUs, 0)
+                    ptsUs += frameUs
+                }
+            } else {
+                Log.w(TAG, "No input buffer available, packet dropped")
+            }
+            drainOutput(sink)
+        } catch (e: Exception) {
+            Log.e(TAG, "decode error: ${e.message}")
+        }
+    }
+
+    private fun drainOutput(sink: PcmSink) {
+        while (true) {
+            val outIndex = codec.dequeueOutputBuffer(bufferInfo, 0)
+            when {
+                outIndex >= 0 -> {
+                    val output = codec.getOutputBuffer(outIndex)
+                    if (output != null && bufferInfo.size > 0) {
+                        output.position(bufferInfo.offset)
+                        output.limit(bufferInfo.offset + bufferInfo.size)
+                        sink.onPcm(output, bufferInfo.size)
+                    }
+                    codec.releaseOutputBuffer(outIndex, false)
+                }
+                outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
+                    val rate = codec.outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                    if (rate != outputSampleRate) {
+                        Log.w(TAG, "Decoder output rate changed: $outputSampleRate -> $rate")
+                        outputSampleRate = rate
+                    }
+                }
+                else -> return
+            }
+        }
+    }
+
+    override fun release() {
+        try { codec.stop() } catch (_: Exception) {}
+        try { codec.release() } catch (_: Exception) {}
+    }
+
+    private fun opusHead(): ByteBuffer {
+        // RFC 7845 identification header, channel mapping family 0
+        val head = ByteBuffer.allocate(19).order(ByteOrder.LITTLE_ENDIAN)
+        head.put("OpusHead".toByteArray(Charsets.US_ASCII))
+        head.put(1)
+        head.put(channels.toByte())
+        head.putShort(PRE_SKIP_SAMPLES.toShort())
+        head.putInt(AudioDecoders.OPUS_SAMPLE_RATE)
+        head.putShort(0)
+        head.put(0)
+        head.flip()
+        return head
+    }
+
+    private fun longLe(value: Long): ByteBuffer {
+        val buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+        buf.putLong(value)
+        buf.flip()
+        return buf
+    }
+}
@@ -12,15 +12,16 @@ import android.os.Build
 import android.os.IBinder
 import android.util.Log
 import androidx.core.app.NotificationCompat
-import okhttp3.OkHttpClient
-import okhttp3.Request
 import okhttp3.Response
 import okhttp3.WebSocket
 import okhttp3.WebSocketListener
 import okio.ByteString.Companion.toByteString
+import org.json.JSONObject
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
 import java.util.concurrent.Executors
-import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 class MicUplinkService : Service() {
 
@@ -32,16 +33,61 @@ class MicUplinkService : Service() {
         const val EXTRA_SERVER_URL = "serverUrl"
         const val EXTRA_SERIAL = "serial"
         const val EXTRA_SAMPLE_RATE = "sampleRate"
+        const val EXTRA_FORMAT = "format"
+        const val EXTRA_BITRATE = "bitrate"
+        const val EXTRA_VAD = "vad"
+        const val EXTRA_FRAME_MS = "frameMs"
+        const val EXTRA_LATENCY_BUDGET_MS = "latencyBudgetMs"
+        const val EXTRA_DUPLEX = "duplex"
+        const val EXTRA_UDP = "udp"
+        const val EXTRA_UDP_FEC = "udpFec"
+        const val EXTRA_UDP_LOSS_PERCENT = "udpLossPercent"
+        const val DEFAULT_LATENCY_BUDGET_MS = 200
         private const val NOTIF_CHANNEL_ID = "vhr_voice_uplink"
         private const val NOTIF_CHANNEL_NAME = "VHR Voice Microphone"
         private const val NOTIF_ID = 2202
+        private const val OPUS_FRAME_MS = 20
+        private const val CAPTURE_POOL_FRAMES = 8
+        private const val VAD_PREROLL_MS = 200
+        private const val DTX_KEEPALIVE_MS = 1000L
+        private const val STATS_LOG_INTERVAL_MS = 10_000L
+        private const val BITRATE_STEP_DOWN_INTERVAL_MS = 1_000L
+        private const val BITRATE_RECOVERY_DELAY_MS = 5_000L
+        // Sent instead of audio while the VAD holds the uplink silent
+        private const val DTX_KEEPALIVE = "{\"type\":\"dtx\"}"
     }
 
     private var ws: WebSocket? = null
-    private var wsClient: OkHttpClient? = null
     private var recorder: AudioRecord? = null
+    @Volatile private var encoder: AudioEncoder? = null
+    private val packetSink = PacketSink { data, size -> sendPacket(data, size) }
     private var ioExecutor = Executors.newSingleThreadExecutor()
     private val isStreaming = AtomicBoolean(false)
+    private val capturedFrames = AtomicLong(0)
+    private val sentFrames = AtomicLong(0)
+
+    // Capture-thread state for the latency budget
+    private var sendQueue: UplinkSendQueue? = null
+    private var pcmBytesPerMs = 32
+    private var targetBitrate = AudioEncoders.DEFAULT_OPUS_BITRATE
+    private var lastCongestionMs = 0L
+    private var lastBitrateChangeMs = 0L
+
+    // Optional LAN UDP path; audio falls back to the WebSocket queue whenever it is not active
+    @Volatile private var udpLink: UdpAudioLink? = null
+    @Volatile private var rttProbe: java.util.concurrent.ScheduledFuture<*>? = null
+    private var udpHost = ""
+    private var udpFec = false
+    private var udpLossPercent = 0
+
+    // Frame header confirmed by the server (0 = bare packets); the rest is capture-thread state
+    @Volatile private var frameHeaderVersion = 0
+    private var frameSeq = 0L
+    private var pendingDiscontinuity = true
+    private var lastCaptureNanos = 0L
+    private var sessionFrameMs = FrameDurations.DEFAULT_MS
+    private var framedBytes = ByteArray(2048)
+    private var framedBuffer: ByteBuffer = ByteBuffer.wrap(framedBytes)
 
     override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         val action = intent?.action ?: ACTION_START
@@ -55,6 +101,20 @@ class MicUplinkService : Service() {
         val serverUrl = intent?.getStringExtra(EXTRA_SERVER_URL).orEmpty().trim()
         val serial = intent?.getStringExtra(EXTRA_SERIAL).orEmpty().trim()
         val sampleRate = intent?.getIntExtra(EXTRA_SAMPLE_RATE, 16000) ?: 16000
+        val format = intent?.getStringExtra(EXTRA_FORMAT)?.trim().orEmpty().ifBlank { AudioDecoders.FORMAT_PCM16 }
+        val bitrate = intent?.getIntExtra(EXTRA_BITRATE, AudioEncoders.DEFAULT_OPUS_BITRATE)
+            ?: AudioEncoders.DEFAULT_OPUS_BITRATE
+        val vadEnabled = intent?.getBooleanExtra(EXTRA_VAD, true) ?: true
+        val latencyBudgetMs = (intent?.getIntExtra(EXTRA_LATENCY_BUDGET_MS, DEFAULT_LATENCY_BUDGET_MS)
+            ?: DEFAULT_LATENCY_BUDGET_MS).coerceIn(40, 2000)
+        val frameMs = FrameDurations.normalize(
+            intent?.getIntExtra(EXTRA_FRAME_MS, FrameDurations.DEFAULT_MS) ?: FrameDurations.DEFAULT_MS
+        )
+
+        val duplex = intent?.getBooleanExtra(EXTRA_DUPLEX, false) ?: false
+        val udp = intent?.getBooleanExtra(EXTRA_UDP, false) ?: false
+        udpFec = intent?.getBooleanExtra(EXTRA_UDP_FEC, false) ?: false
+        udpLossPercent = (intent?.getIntExtra(EXTRA_UDP_LOSS_PERCENT, 0) ?: 0).coerceIn(0, 100)
 
         if (serverUrl.isBlank() || serial.isBlank()) {
             Log.w(TAG, "Missing serverUrl/serial; uplink not started")
@@ -63,7 +123,7 @@ class MicUplinkService : Service() {
 
         ensureForeground(serial)
 
-        startStreaming(serverUrl, serial, sampleRate)
+        startStreaming(serverUrl, serial, sampleRate, format, bitrate, vadEnabled, latencyBudgetMs, frameMs, duplex, udp)
         return START_STICKY
     }
 
@@ -95,25 +155,49 @@ class MicUplinkService : Service() {
         }
     }
 
-    private fun startStreaming(serverUrl: String, serial: String, sampleRate: Int) {
+    private fun startStreaming(
+        serverUrl: String,
+        serial: String,
+        sampleRate: Int,
+        format: String,
+        bitrate: Int,
+        vadEnabled: Boolean,
+        latencyBudgetMs: Int,
+        frameMs: Int,
+        duplex: Boolean,
+        udp: Boolean
+    ) {
         if (isStreaming.get()) return
 
-        val wsUrl = buildWsUrl(serverUrl, serial)
+        val uplinkFormat = if (format.equals(AudioDecoders.FORMAT_OPUS, ignoreCase = true) && AudioEncoders.isOpusSupported()) {
+            AudioDecoders.FORMAT_OPUS
+        } else {
+            if (!format.equals(AudioDecoders.FORMAT_PCM16, ignoreCase = true)) {
+                Log.w(TAG, "Uplink format=$format unavailable, fallback pcm16")
+            }
+            AudioDecoders.FORMAT_PCM16
+        }
+
+        val wsUrl = buildWsUrl(serverUrl, serial, uplinkFormat, frameMs, sampleRate, udp)
         if (wsUrl.isBlank()) {
             Log.e(TAG, "Invalid ws url from serverUrl=$serverUrl")
             return
         }
+        udpHost = try { java.net.URI(wsUrl).host.orEmpty() } catch (_: Exception) { "" }
+        frameHeaderVersion = 0
 
         try {
-            wsClient = OkHttpClient.Builder()
-                .readTimeout(0, TimeUnit.MILLISECONDS)
-                .build()
-
-            val req = Request.Builder().url(wsUrl).build()
-            ws = wsClient?.newWebSocket(req, object : WebSocketListener() {
+            val listener = object : WebSocketListener() {
                 override fun onOpen(webSocket: WebSocket, response: Response) {
-                    Log.i(TAG, "Uplink WebSocket open: $wsUrl")
-                    startRecorderLoop(sampleRate)
+                    Log.i(TAG, "Uplink WebSocket open: ${if (duplex) "duplex" else wsUrl}")
+                    TtsMessageLog.init(this@MicUplinkService)
+                    TtsMessageLog.appendSession("🎤 Micro casque → PC démarré ($serial)")
+                    rttProbe = AudioTransport.startRttProbe(webSocket)
+                    startRecorderLoop(sampleRate, uplinkFormat, bitrate, vadEnabled, latencyBudgetMs, frameMs)
+                }
+
+                override fun onMessage(webSocket: WebSocket, text: String) {
+                    handleControlMessage(text)
                 }
 
                 override fun onFailure(webSocket: WebSocket, t: Throwable, response: Response?) {
@@ -125,27 +209,97 @@ class MicUplinkService : Service() {
                     Log.i(TAG, "Uplink WebSocket closed: $code/$reason")
                     stopStreaming()
                 }
-            })
+            }
+            ws = if (duplex) {
+                val params = JSONObject()
+                    .put("format", uplinkFormat)
+                    .put("frameMs", frameMs)
+                    .put("sampleRate", sampleRate)
+                    .put("hdr", AudioFrameHeader.VERSION)
+                if (udp) params.put("udp", "1").put("fec", if (udpFec) "1" else "0")
+                DuplexChannel.attach(this, serverUrl, serial, DuplexChannel.ROLE_UPLINK, params, listener)
+            } else {
+                AudioTransport.newWebSocket(wsUrl, listener)
+            }
         } catch (e: Exception) {
             Log.e(TAG, "startStreaming error: ${e.message}")
             stopStreaming()
         }
     }
 
-    private fun startRecorderLoop(sampleRate: Int) {
+    private fun handleControlMessage(text: String) {
+        val msg = try { JSONObject(text) } catch (_: Exception) { null } ?: return
+        when (msg.optString("type")) {
+            "frame-header" -> {
+                frameHeaderVersion = msg.optInt("version", 0)
+                Log.i(TAG, "Uplink frame header v$frameHeaderVersion")
+            }
+            "udp-offer" -> startUdpLink(msg.optInt("port", 0), msg.optLong("token", 0L), msg.optBoolean("fec", false))
+            "udp-active" -> Log.i(TAG, "Uplink moved to UDP")
+            "udp-inactive" -> Log.w(TAG, "Uplink back on WebSocket")
+            "pong" -> AudioTransport.onPong(msg)
+        }
+    }
+
+    private fun startUdpLink(port: Int, token: Long, fec: Boolean) {
+        udpLink?.stop()
+        udpLink = null
+        if (port <= 0 || token == 0L || udpHost.isBlank()) return
+        val link = UdpAudioLink(udpHost, port, token, fec, udpLossPercent, object : UdpAudioLink.Listener {
+            override fun onActive() {}
+
+            override fun onUnavailable() {
+                Log.w(TAG, "UDP unavailable, uplink stays on WebSocket")
+                udpLink?.let { ws?.send(it.fallbackMessage()) }
+            }
+
+            // The server never sends media on an uplink path
+            override fun onPacket(data: ByteArray, size: Int, timestamp: Long) {}
+
+            override fun onLoss(packets: Int) {}
+        })
+        udpLink = link
+        link.start()
+    }
+
+    private fun startRecorderLoop(
+        sampleRate: Int,
+        format: String,
+        bitrate: Int,
+        vadEnabled: Boolean,
+        latencyBudgetMs: Int,
+        frameMs: Int
+    ) {
         if (isStreaming.getAndSet(true)) return
 
+        val localEncoder = AudioEncoders.create(format, sampleRate, bitrate)
+        encoder = localEncoder
+        val localQueue = UplinkSendQueue(latencyBudgetMs)
+        sendQueue = localQueue
+        pcmBytesPerMs = sampleRate * 2 / 1000
+        targetBitrate = localEncoder.bitrate
+        lastCongestionMs = 0L
+        lastBitrateChangeMs = 0L
+        frameSeq = 0L
+        pendingDiscontinuity = true
+        sessionFrameMs = frameMs
+        // Capture at the microphone's native rate and convert in-app instead of in the HAL
+        val captureRate = AudioRates.nativeInputRate(sampleRate)
+        val converter = if (captureRate != sampleRate) PolyphaseResampler(captureRate, sampleRate) else null
+        // One read per session frame; the platform Opus encoder still packetizes every 20 ms
+        val frameBytes = FrameDurations.pcmBytes(captureRate, frameMs)
+
         val minBuf = AudioRecord.getMinBufferSize(
-            sampleRate,
+            captureRate,
             AudioFormat.CHANNEL_IN_MONO,
             AudioFormat.ENCODING_PCM_16BIT
         )
 
-        val bufferSize = maxOf(minBuf, 4096)
+        val bufferSize = maxOf(minBuf, frameBytes * 4)
 
         val localRecorder = AudioRecord(
             MediaRecorder.AudioSource.MIC,
-            sampleRate,
+            captureRate,
             AudioFormat.CHANNEL_IN_MONO,
             AudioFormat.ENCODING_PCM_16BIT,
             bufferSize
@@ -153,57 +307,266 @@ class MicUplinkService : Service() {
 
         recorder = localRecorder
 
+        val vad = if (vadEnabled) VoiceActivityDetector(frameMs) else null
+        val prerollFrames = if (vad != null) (VAD_PREROLL_MS + frameMs - 1) / frameMs else 0
+
         ioExecutor.execute {
-            val buf = ByteArray(2048)
+            val capture = PcmCapture(
+                { buffer, bytes -> localRecorder.read(buffer, bytes) },
+                frameBytes,
+                converter,
+                CAPTURE_POOL_FRAMES + prerollFrames + 1
+            )
+            val pool = capture.pool
+            // Most recent silent frames, flushed ahead of speech so the first syllable survives
+            val preroll = ArrayDeque<PcmFrame>(prerollFrames + 1)
+            var lastKeepaliveMs = 0L
+            var silent = false
+            var lastStatsLogMs = System.currentTimeMillis()
+            capturedFrames.set(0)
+            sentFrames.set(0)
             try {
                 localRecorder.startRecording()
-                Log.i(TAG, "Mic capture started (sr=$sampleRate)")
+                Log.i(TAG, "Mic capture started (sr=$sampleRate, captureSr=$captureRate, format=${localEncoder.format}, " +
+                    "bitrate=${localEncoder.bitrate}, frameMs=$frameMs, vad=${vad != null}, budget=${latencyBudgetMs}ms)")
 
                 while (isStreaming.get()) {
-                    val read = localRecorder.read(buf, 0, buf.size)
-                    if (read > 0) {
-                        ws?.send(buf.copyOf(read).toByteString())
-                    } else if (read < 0) {
-                        Log.w(TAG, "AudioRecord read error=$read")
-                        break
+                    val frame = capture.next()
+                    if (frame == null) {
+                        if (capture.readError < 0) {
+                            Log.w(TAG, "AudioRecord read error=${capture.readError}")
+                            break
+                        }
+                        continue
+                    }
+                    val size = frame.size
+                    capturedFrames.incrementAndGet()
+
+                    val now = System.currentTimeMillis()
+                    val speech = vad == null || vad.process(frame.buffer, size)
+                    AudioMetrics.captureLevelDb.set(vad?.lastEnergyDb ?: levelDb(frame.buffer, size))
+                    if (speech) {
+                        if (silent) {
+                            // Resuming after DTX: receivers should not read the gap as loss
+                            pendingDiscontinuity = true
+                            silent = false
+                        }
+                        while (preroll.isNotEmpty()) {
+                            val pending = preroll.pollFirst()
+                            sendFrame(pending)
+                            pool.release(pending)
+                        }
+                        sendFrame(frame)
+                        pool.release(frame)
+                    } else {
+                        silent = true
+                        preroll.addLast(frame)
+                        if (preroll.size > prerollFrames) {
+                            pool.release(preroll.pollFirst())
+                        }
+                        if (now - lastKeepaliveMs >= DTX_KEEPALIVE_MS) {
+                            lastKeepaliveMs = now
+                            ws?.send(DTX_KEEPALIVE)
+                        }
+                    }
+
+                    val socket = ws
+                    val drained = if (socket != null) localQueue.drain(socket) else 0
+                    if (drained > 0) {
+                        AudioMetrics.uplinkPacketsDropped.add(drained.toLong())
+                        lastCongestionMs = now
                     }
+                    adaptBitrate(localEncoder, now)
+
+                    if (now - lastStatsLogMs >= STATS_LOG_INTERVAL_MS) {
+                        lastStatsLogMs = now
+                        logUplinkStats(vad)
+                    }
+                }
+                while (preroll.isNotEmpty()) {
+                    pool.release(preroll.pollFirst())
                 }
+                val stats = pool.stats()
+                logUplinkStats(vad)
+                Log.i(TAG, "Mic capture stopped (frames=${stats.acquired}, poolAllocs=${stats.allocations})")
             } catch (e: Exception) {
                 Log.e(TAG, "Recorder loop error: ${e.message}")
             } finally {
                 try { localRecorder.stop() } catch (_: Exception) {}
                 try { localRecorder.release() } catch (_: Exception) {}
                 recorder = null
+                encoder = null
+                sendQueue = null
+                localQueue.clear()
+                localEncoder.release()
                 isStreaming.set(false)
             }
         }
     }
 
+    private fun sendFrame(frame: PcmFrame) {
+        val currentEncoder = encoder ?: return
+        sentFrames.incrementAndGet()
+        lastCaptureNanos = frame.arrivalNanos
+        currentEncoder.encode(frame.flip(), frame.size, packetSink)
+    }
+
+    /** RMS level of a pcm16 frame in dBFS, for the status screen when the VAD is off. */
+    private fun levelDb(pcm: ByteBuffer, size: Int): Double {
+        val samples = size / 2
+        if (samples == 0) return -96.0
+        var sumSquares = 0.0
+        for (i in 0 until samples) {
+            val sample = pcm.getShort(i * 2).toDouble()
+            sumSquares += sample * sample
+        }
+        return 20.0 * kotlin.math.log10(maxOf(kotlin.math.sqrt(sumSquares / samples) / 32768.0, 1e-5))
+    }
+
+    /** Ratio of frames actually transmitted to frames captured (1.0 when the VAD is off). */
+    fun sentRatio(): Double {
+        val captured = capturedFrames.get()
+        return if (captured == 0L) 0.0 else sentFrames.get().toDouble() / captured
+    }
+
+    private fun logUplinkStats(vad: VoiceActivityDetector?) {
+        Log.d(TAG, "Uplink frames sent/captured=${sentFrames.get()}/${capturedFrames.get()} " +
+            "ratio=${"%.2f".format(sentRatio())}" +
+            (vad?.let { " noiseFloor=${"%.1f".format(it.noiseFloorDb)}dB" } ?: "") +
+            (sendQueue?.stats()?.let {
+                " dropped=${it.droppedPackets} (${it.droppedMs}ms) socketQueued=${it.socketQueuedMs}ms"
+            } ?: "") +
+            (encoder?.let { " bitrate=${it.bitrate}" } ?: ""))
+    }
+
+    /**
+     * Steps the Opus bitrate down while the send queue keeps dropping, and back up towards
+     * the requested bitrate once the link has been clean for a while. No-op for pcm16.
+     */
+    private fun adaptBitrate(currentEncoder: AudioEncoder, now: Long) {
+        if (currentEncoder.format != AudioDecoders.FORMAT_OPUS) return
+        val congested = now - lastCongestionMs < BITRATE_STEP_DOWN_INTERVAL_MS
+        if (congested) {
+            if (now - lastBitrateChangeMs < BITRATE_STEP_DOWN_INTERVAL_MS) return
+            val lowered = maxOf(AudioEncoders.MIN_OPUS_BITRATE, currentEncoder.bitrate * 3 / 4)
+            if (lowered < currentEncoder.bitrate) {
+                // Also rate-limits retries when the encoder refuses the change
+                lastBitrateChangeMs = now
+                if (currentEncoder.setBitrate(lowered)) {
+                    Log.w(TAG, "Uplink congested, bitrate lowered to $lowered")
+                } else {
+                    Log.w(TAG, "Uplink congested, bitrate change to $lowered failed, still ${currentEncoder.bitrate}")
+                }
+            }
+        } else if (currentEncoder.bitrate < targetBitrate &&
+            now - lastCongestionMs >= BITRATE_RECOVERY_DELAY_MS &&
+            now - lastBitrateChangeMs >= BITRATE_RECOVERY_DELAY_MS
+        ) {
+            val raised = minOf(targetBitrate, currentEncoder.bitrate * 5 / 4)
+            lastBitrateChangeMs = now
+            if (currentEncoder.setBitrate(raised)) {
+                Log.i(TAG, "Uplink recovered, bitrate raised to $raised")
+            } else {
+                Log.w(TAG, "Uplink recovered, bitrate change to $raised failed, still ${currentEncoder.bitrate}")
+            }
+        }
+    }
+
+    /**
+     * OkHttp only accepts an immutable ByteString, so this is the single copy left on the
+     * capture path; the pooled frame can be reused as soon as the copy is made. The packet
+     * then goes through the send queue, which enforces the latency budget. While the UDP
+     * link is active the packet goes out as a datagram instead and the queue is bypassed.
+     */
+    private fun sendPacket(data: ByteBuffer, size: Int) {
+        val socket = ws ?: return
+        val queue = sendQueue ?: return
+        if (size <= 0) return
+        val isOpus = encoder?.format == AudioDecoders.FORMAT_OPUS
+        val durationMs = if (isOpus) {
+            OPUS_FRAME_MS
+        } else {
+            size / pcmBytesPerMs.coerceAtLeast(1)
+        }
+        var packet = data
+        var packetSize = size
+        if (frameHeaderVersion >= AudioFrameHeader.VERSION) {
+            packetSize = frameWithHeader(data, size, isOpus)
+            packet = framedBuffer
+        }
+        // RTP clock: 48 kHz for Opus, the stream rate for pcm16
+        val link = udpLink
+        if (link != null && link.isActive &&
+            link.send(packet, packetSize, if (isOpus) Rtp.PT_OPUS else Rtp.PT_PCM16, if (isOpus) 48 * OPUS_FRAME_MS else size / 2)
+        ) {
+            AudioMetrics.uplinkBytesOut.add(packetSize.toLong())
+            return
+        }
+        val bytes = if (packet === framedBuffer) framedBytes.toByteString(0, packetSize) else data.toByteString()
+        AudioMetrics.uplinkBytesOut.add(packetSize.toLong())
+        val dropped = queue.submit(socket, bytes, durationMs)
+        if (dropped > 0) {
+            AudioMetrics.uplinkPacketsDropped.add(dropped.toLong())
+            lastCongestionMs = System.currentTimeMillis()
+        }
+    }
+
+    /** Writes the frame header and [size] bytes of [data] into [framedBytes]; returns the total length. */
+    private fun frameWithHeader(data: ByteBuffer, size: Int, isOpus: Boolean): Int {
+        val total = AudioFrameHeader.BYTES + size
+        if (framedBytes.size < total) {
+            framedBytes = ByteArray(total)
+            framedBuffer = ByteBuffer.wrap(framedBytes)
+        }
+        // Capture time of the newest frame handed to the encoder, on the wall clock
+        val captureUs = AudioFrameHeader.nowMicros() - (System.nanoTime() - lastCaptureNanos) / 1000L
+        AudioFrameHeader.write(
+            framedBytes, 0,
+            if (pendingDiscontinuity) AudioFrameHeader.FLAG_DISCONTINUITY else 0,
+            if (isOpus) AudioFrameHeader.CODEC_OPUS else AudioFrameHeader.CODEC_PCM16,
+            if (isOpus) OPUS_FRAME_MS else sessionFrameMs,
+            frameSeq,
+            captureUs
+        )
+        pendingDiscontinuity = false
+        frameSeq = (frameSeq + 1) and 0xffffffffL
+        // Bulk copy through a duplicate so [data] keeps its position for the caller
+        data.duplicate().get(framedBytes, AudioFrameHeader.BYTES, size)
+        framedBuffer.clear()
+        return total
+    }
+
     private fun stopStreaming() {
         isStreaming.set(false)
 
         try { recorder?.stop() } catch (_: Exception) {}
         try { recorder?.release() } catch (_: Exception) {}
         recorder = null
+        if (ws != null) TtsMessageLog.appendSession("🎤 Micro casque → PC arrêté")
+        rttProbe?.cancel(false)
+        rttProbe = null
 
+        // Only this socket goes away; the shared client stays warm for the next session
         try { ws?.close(1000, "stop") } catch (_: Exception) {}
         ws = null
-
-        try { wsClient?.dispatcher?.executorService?.shutdownNow() } catch (_: Exception) {}
-        try { wsClient?.connectionPool?.evictAll() } catch (_: Exception) {}
-        wsClient = null
+        udpLink?.stop()
+        udpLink = null
     }
 
-    private fun buildWsUrl(serverUrl: String, serial: String): String {
+    private fun buildWsUrl(
+        serverUrl: String,
+        serial: String,
+        format: String,
+        frameMs: Int,
+        sampleRate: Int,
+        udp: Boolean
+    ): String {
         return try {
-            val trimmed = serverUrl.trim().removeSuffix("/")
-            val wsBase = when {
-                trimmed.startsWith("https://", ignoreCase = true) -> "wss://${trimmed.removePrefix("https://")}"
-                trimmed.startsWith("http://", ignoreCase = true) -> "ws://${trimmed.removePrefix("http://")}"
-                trimmed.startsWith("wss://", ignoreCase = true) || trimmed.startsWith("ws://", ignoreCase = true) -> trimmed
-                else -> "ws://$trimmed"
-            }
-            "$wsBase/api/audio/stream?serial=$serial&mode=uplink-sender&format=pcm16"
+            val wsBase = AudioTransport.wsBase(serverUrl)
+            if (wsBase.isBlank()) return ""
+            "$wsBase/api/audio/stream?serial=$serial&mode=uplink-sender&format=$format&frameMs=$frameMs&sampleRate=$sampleRate" +
+                "&hdr=${AudioFrameHeader.VERSION}" +
+                (if (udp) "&udp=1&fec=${if (udpFec) 1 else 0}" else "")
         } catch (_: Exception) {
             ""
         }
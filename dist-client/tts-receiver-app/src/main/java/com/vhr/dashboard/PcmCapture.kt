@@ -0,0 +1,59 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+
+/**
+ * Blocking PCM16 source with the contract of AudioRecord.read(ByteBuffer, Int): writes at
+ * most [maxBytes] at position 0 of [buffer] and returns the count, or a negative error.
+ */
+fun interface PcmSource {
+    fun read(buffer: ByteBuffer, maxBytes: Int): Int
+}
+
+/**
+ * The capture step of the uplink: one [frameBytes] read from [source] into a pooled frame,
+ * converted into a second pooled frame when [converter] is set. Both frames come from
+ * [pool], so once it is warm a step allocates nothing.
+ */
+class PcmCapture(
+    private val source: PcmSource,
+    private val frameBytes: Int,
+    private val converter: PolyphaseResampler?,
+    maxPooled: Int
+) {
+
+    // Converted frames come from the same pool, so size it for the larger of the two
+    val pool = PcmFramePool(maxOf(frameBytes, converter?.maxOutputBytes(frameBytes) ?: 0), maxPooled)
+
+    /** Last negative value returned by [source]; 0 while reads succeed. */
+    var readError = 0
+        private set
+
+    /**
+     * Next captured frame at the session rate, stamped with its arrival time. The caller
+     * owns it until it goes back to [pool]. Null when nothing was read, or on a read error
+     * (then see [readError]).
+     */
+    fun next(): PcmFrame? {
+        var frame = pool.acquire()
+        frame.buffer.clear()
+        val read = source.read(frame.buffer, frameBytes)
+        if (read <= 0) {
+            pool.release(frame)
+            if (read < 0) readError = read
+            return null
+        }
+
+        var size = read
+        if (converter != null) {
+            val converted = pool.acquire()
+            frame.size = read
+            size = converter.process(frame.flip(), read, converted.buffer)
+            pool.release(frame)
+            frame = converted
+        }
+        frame.size = size
+        frame.arrivalNanos = System.nanoTime()
+        return frame
+    }
+}
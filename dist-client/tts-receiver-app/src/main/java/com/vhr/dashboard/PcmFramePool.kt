@@ -0,0 +1,86 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Audio frame backed by a recycled direct buffer. [size] is the number of valid bytes
+ * starting at position 0; [arrivalNanos] is stamped by the producer.
+ */
+class PcmFrame internal constructor(capacity: Int) {
+    val buffer: ByteBuffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN)
+    var size: Int = 0
+    var arrivalNanos: Long = 0L
+
+    val capacity: Int get() = buffer.capacity()
+
+    /** Rewinds the buffer so that exactly [size] bytes are readable. */
+    fun flip(): ByteBuffer {
+        buffer.clear()
+        buffer.limit(size)
+        return buffer
+    }
+}
+
+/**
+ * Fixed-size pool of [PcmFrame]s. The free list is an array-backed queue so that
+ * acquire/release never allocate once the pool is warm; every frame that has to be
+ * created is counted in [allocations] so soak runs can check steady state is zero.
+ */
+class PcmFramePool(
+    private val frameCapacity: Int,
+    maxPooled: Int
+) {
+
+    data class Stats(
+        val allocations: Long,
+        val allocatedBytes: Long,
+        val acquired: Long,
+        val pooled: Int
+    )
+
+    private val free = ArrayBlockingQueue<PcmFrame>(maxPooled)
+    private val allocations = AtomicLong(0)
+    private val allocatedBytes = AtomicLong(0)
+    private val acquired = AtomicLong(0)
+
+    fun acquire(minCapacity: Int = frameCapacity): PcmFrame {
+        acquired.incrementAndGet()
+        val pooled = free.poll()
+        if (pooled != null && pooled.capacity >= minCapacity) {
+            pooled.size = 0
+            pooled.arrivalNanos = 0L
+            return pooled
+        }
+        // Either the pool is empty or the frame is too small for this payload
+        val capacity = maxOf(frameCapacity, minCapacity)
+        allocations.incrementAndGet()
+        allocatedBytes.addAndGet(capacity.toLong())
+        return PcmFrame(capacity)
+    }
+
+    /** Counts a heap allocation made on behalf of the pool's users (e.g. staging growth). */
+    fun recordAllocation(bytes: Int) {
+        allocations.incrementAndGet()
+        allocatedBytes.addAndGet(bytes.toLong())
+    }
+
+    fun release(frame: PcmFrame) {
+        frame.size = 0
+        // Pool full: let the frame be collected rather than grow unbounded
+        free.offer(frame)
+    }
+
+    fun clear() {
+        free.clear()
+    }
+
+    fun stats(): Stats = Stats(
+        allocations = allocations.get(),
+        allocatedBytes = allocatedBytes.get(),
+        acquired = acquired.get(),
+        pooled = free.size
+    )
+}
@@ -0,0 +1,142 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.sin
+
+/**
+ * Streaming rational sample-rate converter (L/M polyphase FIR) for 16-bit mono PCM,
+ * e.g. 16 kHz ↔ 48 kHz or 44.1 kHz → 48 kHz.
+ *
+ * The low-pass prototype is a Blackman-windowed sinc at the upsampled rate, split into
+ * L phases of [tapsPerPhase] taps so only the taps that hit real input samples are
+ * computed. Each phase is normalised to unity DC gain. Input history is kept between
+ * calls; no allocation after construction. Pure JVM, so it can be benchmarked anywhere.
+ */
+class PolyphaseResampler(
+    val inputRate: Int,
+    val outputRate: Int,
+    private val tapsPerPhase: Int = 24,
+    val maxInputSamples: Int = 4096,
+    rolloff: Double = 0.92
+) {
+
+    private val up: Int
+    private val down: Int
+    private val coefficients: FloatArray
+    private val history = FloatArray(maxInputSamples + tapsPerPhase)
+    private var available = 0
+    private var index = 0
+    private var phase = 0
+
+    val isPassthrough: Boolean get() = inputRate == outputRate
+
+    init {
+        require(inputRate > 0 && outputRate > 0) { "Invalid rates $inputRate -> $outputRate" }
+        val g = gcd(inputRate, outputRate)
+        up = outputRate / g
+        down = inputRate / g
+
+        // Cutoff in cycles per sample at the upsampled rate, below both Nyquist limits
+        val cutoff = 0.5 * rolloff / maxOf(up, down)
+        val length = up * tapsPerPhase
+        val center = (length - 1) / 2.0
+        val prototype = DoubleArray(length)
+        for (i in 0 until length) {
+            val x = i - center
+            val sinc = if (x == 0.0) 1.0 else sin(2.0 * PI * cutoff * x) / (2.0 * PI * cutoff * x)
+            val w = 0.42 - 0.5 * cos(2.0 * PI * i / (length - 1)) + 0.08 * cos(4.0 * PI * i / (length - 1))
+            prototype[i] = sinc * w
+        }
+
+        coefficients = FloatArray(length)
+        for (p in 0 until up) {
+            var sum = 0.0
+            for (k in 0 until tapsPerPhase) sum += prototype[k * up + p]
+            for (k in 0 until tapsPerPhase) {
+                coefficients[p * tapsPerPhase + k] = (prototype[k * up + p] / sum).toFloat()
+            }
+        }
+        reset()
+    }
+
+    fun reset() {
+        history.fill(0f)
+        available = tapsPerPhase - 1
+        index = tapsPerPhase - 1
+        phase = 0
+    }
+
+    /** Largest output (in bytes) that [process] can produce for [inputBytes] of input. */
+    fun maxOutputBytes(inputBytes: Int): Int =
+        ((inputBytes / 2).toLong() * up / down + 2).toInt() * 2
+
+    /**
+     * Converts [size] bytes of little-endian PCM starting at [input]'s position into [output]
+     * from index 0, and returns the number of bytes written. Neither buffer's position moves
+     * and [input]'s byte order is ignored.
+     *
+     * All of the input is always consumed: more than [maxInputSamples] samples, or an
+     * [output] smaller than [maxOutputBytes] of [size], is an [IllegalArgumentException]
+     * rather than silently dropped audio.
+     */
+    fun process(input: ByteBuffer, size: Int, output: ByteBuffer): Int {
+        val base = input.position()
+        val samples = size / 2
+        require(samples <= maxInputSamples) { "Input of $samples samples exceeds $maxInputSamples" }
+        require(output.capacity() >= maxOutputBytes(size)) {
+            "Output of ${output.capacity()} bytes is smaller than ${maxOutputBytes(size)}"
+        }
+        if (isPassthrough) {
+            for (i in 0 until samples) output.putShort(i * 2, readSample(input, base + i * 2).toShort())
+            return samples * 2
+        }
+
+        for (i in 0 until samples) {
+            history[available + i] = readSample(input, base + i * 2).toFloat()
+        }
+        available += samples
+
+        var written = 0
+        val outCapacity = output.capacity() / 2
+        while (index < available && written < outCapacity) {
+            // y[n] = sum_k h[k*L + phase] * x[index - k]
+            val row = phase * tapsPerPhase
+            var acc = 0f
+            var k = 0
+            while (k < tapsPerPhase) {
+                acc += coefficients[row + k] * history[index - k]
+                k++
+            }
+            val sample = when {
+                acc > 32767f -> 32767
+                acc < -32768f -> -32768
+                acc >= 0f -> (acc + 0.5f).toInt()
+                else -> (acc - 0.5f).toInt()
+            }
+            output.putShort(written * 2, sample.toShort())
+            written++
+
+            phase += down
+            index += phase / up
+            phase %= up
+        }
+
+        // Keep the last taps-1 samples the next output still reaches back to
+        // (when decimating, index may already point past the input received so far)
+        val consumed = minOf(index - (tapsPerPhase - 1), available)
+        if (consumed > 0) {
+            val keep = available - consumed
+            System.arraycopy(history, consumed, history, 0, keep)
+            available = keep
+            index -= consumed
+        }
+        return written * 2
+    }
+
+    private fun readSample(buffer: ByteBuffer, index: Int): Int =
+        (buffer.get(index).toInt() and 0xff) or (buffer.get(index + 1).toInt() shl 8)
+
+    private tailrec fun gcd(a: Int, b: Int): Int = if (b == 0) a else gcd(b, a % b)
+}
@@ -0,0 +1,202 @@
+package com.vhr.voice
+
+/**
+ * Wire format of the LAN UDP audio path: a plain 12-byte RTP header (the SSRC carries the
+ * token the server handed out in its `udp-offer`) followed by one pcm16/opus packet.
+ * Must stay in sync with the RTP helpers in server.js.
+ */
+object Rtp {
+    const val HEADER_BYTES = 12
+    const val PT_PCM16 = 96
+    const val PT_OPUS = 97
+    const val PT_CONTROL = 126
+    const val PT_FEC = 127
+    const val CONTROL_HELLO = 1
+    const val CONTROL_ACK = 2
+    const val FEC_GROUP = 4
+    /** FEC payload prefix: count(1) | length xor(2) | timestamp xor(4). */
+    const val FEC_PREFIX_BYTES = 7
+    const val MAX_PAYLOAD_BYTES = 4096
+
+    fun writeHeader(buffer: ByteArray, payloadType: Int, seq: Int, timestamp: Long, ssrc: Long) {
+        buffer[0] = 0x80.toByte()
+        buffer[1] = (payloadType and 0x7f).toByte()
+        writeU16(buffer, 2, seq)
+        writeU32(buffer, 4, timestamp)
+        writeU32(buffer, 8, ssrc)
+    }
+
+    fun payloadType(buffer: ByteArray): Int = buffer[1].toInt() and 0x7f
+    fun seq(buffer: ByteArray): Int = readU16(buffer, 2)
+    fun timestamp(buffer: ByteArray): Long = readU32(buffer, 4)
+    fun ssrc(buffer: ByteArray): Long = readU32(buffer, 8)
+
+    fun readU16(buffer: ByteArray, offset: Int): Int =
+        ((buffer[offset].toInt() and 0xff) shl 8) or (buffer[offset + 1].toInt() and 0xff)
+
+    fun readU32(buffer: ByteArray, offset: Int): Long =
+        (readU16(buffer, offset).toLong() shl 16) or readU16(buffer, offset + 2).toLong()
+
+    fun writeU16(buffer: ByteArray, offset: Int, value: Int) {
+        buffer[offset] = (value shr 8).toByte()
+        buffer[offset + 1] = value.toByte()
+    }
+
+    fun writeU32(buffer: ByteArray, offset: Int, value: Long) {
+        writeU16(buffer, offset, (value shr 16).toInt() and 0xffff)
+        writeU16(buffer, offset + 2, value.toInt() and 0xffff)
+    }
+
+    /** Signed distance a - b on the 16-bit sequence space. */
+    fun seqDiff(a: Int, b: Int): Int {
+        val d = (a - b) and 0xffff
+        return if (d >= 0x8000) d - 0x10000 else d
+    }
+}
+
+/** XOR parity over groups of [Rtp.FEC_GROUP] packets; recovers one loss per group. */
+class RtpFecEncoder {
+    private val parity = ByteArray(Rtp.MAX_PAYLOAD_BYTES)
+    private var count = 0
+    private var maxLength = 0
+    private var lengthXor = 0
+    private var timestampXor = 0L
+    var baseSeq = 0
+        private set
+
+    /**
+     * Adds one media packet. Once a group is complete, writes the parity payload into [out]
+     * at [outOffset] and returns its length; returns 0 otherwise.
+     */
+    fun add(seq: Int, timestamp: Long, data: ByteArray, offset: Int, size: Int, out: ByteArray, outOffset: Int): Int {
+        if (count == 0) baseSeq = seq
+        val length = minOf(size, parity.size)
+        for (i in 0 until length) parity[i] = (parity[i].toInt() xor data[offset + i].toInt()).toByte()
+        maxLength = maxOf(maxLength, length)
+        lengthXor = lengthXor xor length
+        timestampXor = timestampXor xor timestamp
+        count++
+        if (count < Rtp.FEC_GROUP) return 0
+
+        out[outOffset] = count.toByte()
+        Rtp.writeU16(out, outOffset + 1, lengthXor)
+        Rtp.writeU32(out, outOffset + 3, timestampXor)
+        System.arraycopy(parity, 0, out, outOffset + Rtp.FEC_PREFIX_BYTES, maxLength)
+        val written = Rtp.FEC_PREFIX_BYTES + maxLength
+        parity.fill(0, 0, maxLength)
+        count = 0
+        maxLength = 0
+        lengthXor = 0
+        timestampXor = 0L
+        return written
+    }
+}
+
+/**
+ * Restores RTP order over a small window, rebuilds single losses from FEC parity and
+ * reports the rest through [Sink.onLoss] so they can be concealed. A missing packet is
+ * given up once [reorderDepth] newer packets have arrived, so it only costs latency while
+ * packets are actually being lost. Copies each payload once into a preallocated slot.
+ */
+class RtpReorderReceiver(private val sink: Sink, private val reorderDepth: Int) {
+
+    interface Sink {
+        fun onPacket(data: ByteArray, size: Int, timestamp: Long)
+        fun onLoss(packets: Int)
+    }
+
+    private companion object {
+        const val WINDOW = 16
+    }
+
+    private val slots = Array(WINDOW) { ByteArray(Rtp.MAX_PAYLOAD_BYTES) }
+    private val sizes = IntArray(WINDOW)
+    private val seqs = IntArray(WINDOW) { -1 }
+    private val timestamps = LongArray(WINDOW)
+    private var next = -1
+    private var highest = -1
+
+    fun reset() {
+        seqs.fill(-1)
+        next = -1
+        highest = -1
+    }
+
+    fun push(seq: Int, timestamp: Long, data: ByteArray, offset: Int, size: Int) {
+        if (next < 0) {
+            next = seq
+            highest = seq
+        }
+        val ahead = Rtp.seqDiff(seq, next)
+        if (ahead < 0 || has(seq)) return // late or duplicate
+        if (ahead >= WINDOW) {
+            // Too far ahead (sender restarted or long outage): resynchronise
+            sink.onLoss(ahead)
+            seqs.fill(-1)
+            next = seq
+        }
+        val slot = seq % WINDOW
+        val length = minOf(size, Rtp.MAX_PAYLOAD_BYTES)
+        System.arraycopy(data, offset, slots[slot], 0, length)
+        sizes[slot] = length
+        timestamps[slot] = timestamp
+        seqs[slot] = seq
+        if (Rtp.seqDiff(seq, highest) > 0) highest = seq
+        flush()
+    }
+
+    fun pushParity(baseSeq: Int, data: ByteArray, offset: Int, size: Int) {
+        if (size < Rtp.FEC_PREFIX_BYTES || next < 0) return
+        val count = data[offset].toInt() and 0xff
+        var missing = -1
+        for (i in 0 until count) {
+            val seq = (baseSeq + i) and 0xffff
+            if (has(seq)) continue
+            if (missing >= 0) return // two losses in one group: parity cannot help
+            missing = seq
+        }
+        if (missing < 0 || Rtp.seqDiff(missing, next) < 0) return
+
+        val parityLength = minOf(size - Rtp.FEC_PREFIX_BYTES, Rtp.MAX_PAYLOAD_BYTES)
+        val target = slots[missing % WINDOW]
+        System.arraycopy(data, offset + Rtp.FEC_PREFIX_BYTES, target, 0, parityLength)
+        var length = Rtp.readU16(data, offset + 1)
+        var timestamp = Rtp.readU32(data, offset + 3)
+        for (i in 0 until count) {
+            val seq = (baseSeq + i) and 0xffff
+            if (seq == missing) continue
+            val slot = seq % WINDOW
+            length = length xor sizes[slot]
+            timestamp = timestamp xor timestamps[slot]
+            val source = slots[slot]
+            for (j in 0 until minOf(sizes[slot], parityLength)) {
+                target[j] = (target[j].toInt() xor source[j].toInt()).toByte()
+            }
+        }
+        val slot = missing % WINDOW
+        sizes[slot] = minOf(length, parityLength)
+        timestamps[slot] = timestamp
+        seqs[slot] = missing
+        flush()
+    }
+
+    private fun has(seq: Int): Boolean = seqs[seq % WINDOW] == seq
+
+    private fun flush() {
+        while (true) {
+            while (has(next)) {
+                val slot = next % WINDOW
+                sink.onPacket(slots[slot], sizes[slot], timestamps[slot])
+                next = (next + 1) and 0xffff
+            }
+            if (Rtp.seqDiff(highest, next) < reorderDepth) return
+            // Give the missing packet(s) up: skip to the oldest one we have
+            var lost = 0
+            while (!has(next) && Rtp.seqDiff(highest, next) > 0) {
+                next = (next + 1) and 0xffff
+                lost++
+            }
+            if (lost > 0) sink.onLoss(lost)
+        }
+    }
+}
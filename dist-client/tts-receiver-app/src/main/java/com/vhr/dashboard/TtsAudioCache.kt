@@ -0,0 +1,120 @@
+package com.vhr.voice
+
+import android.util.Log
+import java.io.File
+import java.security.MessageDigest
+import java.util.Locale
+
+/**
+ * Synthesized announcements on disk, keyed by text, locale, speech rate and pitch, so a
+ * repeated message ("Retirez le casque", session end...) plays straight from a WAV file
+ * instead of going through the engine again.
+ *
+ * Bounded by [maxBytes], least recently played first out. The index is rebuilt from the
+ * directory on start (file mtime = last use); entries are written under a temporary name and
+ * renamed on [commit], so a process killed mid-synthesis never leaves a truncated entry.
+ */
+class TtsAudioCache(private val dir: File, private val maxBytes: Long = DEFAULT_MAX_BYTES) {
+
+    companion object {
+        const val DEFAULT_MAX_BYTES = 32L * 1024 * 1024
+        /** Long texts (briefings) are not repeated verbatim; only announcements are worth keeping. */
+        const val MAX_TEXT_LENGTH = 300
+        private const val TAG = "TtsAudioCache"
+        private const val SUFFIX = ".wav"
+        private const val TMP_SUFFIX = ".tmp"
+        /** Smaller than this is a header without audio: the engine failed quietly. */
+        private const val MIN_ENTRY_BYTES = 1024L
+
+        fun key(text: String, locale: Locale, rate: Float, pitch: Float): String {
+            val digest = MessageDigest.getInstance("SHA-1")
+                .digest("${locale.toLanguageTag()}|$rate|$pitch|$text".toByteArray(Charsets.UTF_8))
+            return digest.joinToString("") { "%02x".format(it) }
+        }
+
+        fun isCacheable(text: String): Boolean = text.length <= MAX_TEXT_LENGTH
+    }
+
+    /** Access-ordered: iteration starts at the least recently used entry. */
+    private val entries = LinkedHashMap<String, Long>(64, 0.75f, true)
+    private var totalBytes = 0L
+
+    init {
+        load()
+    }
+
+    /** The cached file for [key], marked as most recently used, or null on a miss. */
+    @Synchronized
+    fun get(key: String): File? {
+        if (!entries.containsKey(key)) return null
+        val file = File(dir, key + SUFFIX)
+        if (!file.isFile) {
+            entries.remove(key)?.let { totalBytes -= it }
+            return null
+        }
+        file.setLastModified(System.currentTimeMillis())
+        return file
+    }
+
+    @Synchronized
+    fun contains(key: String): Boolean = entries.containsKey(key)
+
+    /** Where the engine should write a new entry; hand it to [commit] or [discard] afterwards. */
+    fun newTempFile(key: String): File = File(dir, "$key.${System.nanoTime()}$TMP_SUFFIX")
+
+    @Synchronized
+    fun commit(key: String, temp: File): Boolean {
+        val size = temp.length()
+        if (size < MIN_ENTRY_BYTES || size > maxBytes) {
+            temp.delete()
+            return false
+        }
+        entries.remove(key)?.let { totalBytes -= it }
+        val file = File(dir, key + SUFFIX)
+        if (!temp.renameTo(file)) {
+            temp.delete()
+            file.delete()
+            return false
+        }
+        entries[key] = size
+        totalBytes += size
+        evict()
+        return true
+    }
+
+    fun discard(temp: File) {
+        temp.delete()
+    }
+
+    @Synchronized
+    fun sizeBytes(): Long = totalBytes
+
+    private fun evict() {
+        val iterator = entries.entries.iterator()
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            val (key, size) = iterator.next()
+            iterator.remove()
+            totalBytes -= size
+            File(dir, key + SUFFIX).delete()
+        }
+    }
+
+    private fun load() {
+        try {
+            dir.mkdirs()
+            val files = dir.listFiles() ?: return
+            files.filter { it.name.endsWith(TMP_SUFFIX) }.forEach { it.delete() }
+            files.filter { it.name.endsWith(SUFFIX) }
+                .sortedBy { it.lastModified() }
+                .forEach {
+                    val size = it.length()
+                    entries[it.name.removeSuffix(SUFFIX)] = size
+                    totalBytes += size
+                }
+            evict()
+            Log.d(TAG, "💾 Cache TTS: ${entries.size} entrées, ${totalBytes / 1024} Ko")
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Erreur chargement du cache TTS: ${e.message}")
+        }
+    }
+}
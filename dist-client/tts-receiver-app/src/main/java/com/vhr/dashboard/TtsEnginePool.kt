@@ -0,0 +1,196 @@
+package com.vhr.voice
+
+import android.content.Context
+import android.speech.tts.TextToSpeech
+import android.speech.tts.UtteranceProgressListener
+import android.util.Log
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * One [TextToSpeech] per configured locale, all created at once when the service starts, so
+ * their (slow) initializations overlap and a message in another language never pays for a
+ * `setLanguage` and a voice reload at speak time. [onReady] is called on the main thread once
+ * every engine has answered, with whether at least one of them can speak.
+ *
+ * Each locale also gets a second instance for look-ahead rendering: requests from one client
+ * are queued in order, so a `synthesizeToFile` on the speaking instance waits for the current
+ * live utterance to finish. The renderers do not hold up [onReady]; until one is ready its
+ * locale renders on the speaking instance as before.
+ */
+class TtsEnginePool(
+    context: Context,
+    locales: List<Locale>,
+    private val speechRate: Float,
+    private val pitch: Float,
+    private val progressListener: UtteranceProgressListener,
+    private val onReady: (Boolean) -> Unit
+) {
+
+    companion object {
+        private const val TAG = "TtsEnginePool"
+        val DEFAULT_LOCALES = listOf(Locale("fr", "FR"), Locale("en", "US"))
+    }
+
+    class Engine(val locale: Locale) {
+        lateinit var tts: TextToSpeech
+        @Volatile var ready = false
+        val isCreated: Boolean get() = ::tts.isInitialized
+
+        @Volatile var renderer: TextToSpeech? = null
+        @Volatile var rendererReady = false
+
+        /** The instance to render files on: the dedicated renderer once ready, else [tts]. */
+        val renderTts: TextToSpeech get() = renderer?.takeIf { rendererReady } ?: tts
+    }
+
+    private val pending = AtomicInteger(locales.size)
+    // Filled in place: a failing engine may call onInit before its constructor returns
+    private val engines = ArrayList<Engine>(locales.size)
+
+    init {
+        for (locale in locales) {
+            val engine = Engine(locale)
+            engines.add(engine)
+            try {
+                engine.tts = TextToSpeech(context.applicationContext) { status -> onInit(engine, status) }
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur initialisation TTS ${locale.toLanguageTag()}: ${e.message}")
+                onInit(engine, TextToSpeech.ERROR)
+            }
+        }
+        for (engine in engines) {
+            try {
+                engine.renderer = TextToSpeech(context.applicationContext) { status -> onRendererInit(engine, status) }
+            } catch (e: Exception) {
+                Log.w(TAG, "⚠️ Pas de moteur de pré-synthèse ${engine.locale.toLanguageTag()}: ${e.message}")
+            }
+        }
+    }
+
+    /** The engine for an explicit [localeTag], else for the language detected in [text], else the first ready one. */
+    fun route(localeTag: String?, text: String): Engine? {
+        val ready = engines.filter { it.ready }
+        if (ready.isEmpty()) return null
+        if (!localeTag.isNullOrBlank()) {
+            val wanted = Locale.forLanguageTag(localeTag.trim().replace('_', '-'))
+            ready.firstOrNull { it.locale == wanted }?.let { return it }
+            ready.firstOrNull { it.locale.language == wanted.language }?.let { return it }
+            Log.w(TAG, "⚠️ Langue $localeTag non configurée, détection automatique")
+        }
+        val detected = TtsLanguageDetector.detect(text, ready.map { it.locale.language })
+        return ready.firstOrNull { it.locale.language == detected } ?: ready.first()
+    }
+
+    /** Abandons every render in progress or queued; live speech is left alone. */
+    fun stopRendering() {
+        for (engine in engines) {
+            if (!engine.rendererReady) continue
+            try {
+                engine.renderer?.stop()
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur arrêt pré-synthèse: ${e.message}")
+            }
+        }
+    }
+
+    fun shutdown() {
+        for (engine in engines) {
+            engine.ready = false
+            engine.rendererReady = false
+            try {
+                if (engine.isCreated) {
+                    engine.tts.stop()
+                    engine.tts.shutdown()
+                }
+                engine.renderer?.let {
+                    it.stop()
+                    it.shutdown()
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur arrêt TTS: ${e.message}")
+            }
+        }
+    }
+
+    private fun onInit(engine: Engine, status: Int) {
+        val tag = engine.locale.toLanguageTag()
+        // On a bind failure onInit can run inside the TextToSpeech constructor: do not touch tts then
+        if (status == TextToSpeech.SUCCESS) {
+            try {
+                val langResult = engine.tts.setLanguage(engine.locale)
+                if (langResult == TextToSpeech.LANG_MISSING_DATA || langResult == TextToSpeech.LANG_NOT_SUPPORTED) {
+                    Log.w(TAG, "⚠️ Voix $tag non disponible sur ce casque")
+                } else {
+                    engine.tts.setSpeechRate(speechRate)
+                    engine.tts.setPitch(pitch)
+                    engine.tts.setOnUtteranceProgressListener(progressListener)
+                    engine.ready = true
+                    Log.d(TAG, "✅ Moteur TTS $tag prêt")
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur configuration TTS $tag: ${e.message}")
+            }
+        } else {
+            Log.e(TAG, "❌ TextToSpeech $tag initialization failed: $status")
+        }
+        if (pending.decrementAndGet() == 0) onReady(engines.any { it.ready })
+    }
+
+    /** Same voice settings as the speaking instance, so rendered and live pieces sound alike. */
+    private fun onRendererInit(engine: Engine, status: Int) {
+        if (status != TextToSpeech.SUCCESS) {
+            Log.w(TAG, "⚠️ Pré-synthèse ${engine.locale.toLanguageTag()} indisponible: $status")
+            return
+        }
+        try {
+            val renderer = engine.renderer ?: return
+            val langResult = renderer.setLanguage(engine.locale)
+            if (langResult == TextToSpeech.LANG_MISSING_DATA || langResult == TextToSpeech.LANG_NOT_SUPPORTED) return
+            renderer.setSpeechRate(speechRate)
+            renderer.setPitch(pitch)
+            renderer.setOnUtteranceProgressListener(progressListener)
+            engine.rendererReady = true
+            Log.d(TAG, "✅ Pré-synthèse ${engine.locale.toLanguageTag()} prête")
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Erreur configuration pré-synthèse ${engine.locale.toLanguageTag()}: ${e.message}")
+        }
+    }
+}
+
+/**
+ * Tells French from English (the two languages our venues get) by counting function words
+ * and accented letters. Good enough for announcements; anything undecided goes to the default.
+ */
+object TtsLanguageDetector {
+
+    private val HINTS = mapOf(
+        "fr" to setOf(
+            "le", "la", "les", "un", "une", "des", "du", "de", "et", "est", "vous", "votre", "vos",
+            "nous", "je", "il", "elle", "pour", "sur", "avec", "dans", "pas", "merci", "bonjour",
+            "retirez", "casque", "jeu", "au", "aux", "ce", "cette", "sont", "à", "êtes"
+        ),
+        "en" to setOf(
+            "the", "an", "and", "is", "are", "you", "your", "we", "it", "to", "of", "for",
+            "with", "in", "not", "please", "thank", "thanks", "hello", "remove", "headset", "game",
+            "this", "that", "be", "now", "will"
+        )
+    )
+    private const val FRENCH_LETTERS = "éèêëàâçùûôîïœ"
+
+    /** The detected language among [candidates] (ISO codes), or null when undecided. */
+    fun detect(text: String, candidates: List<String>): String? {
+        val scores = HashMap<String, Int>()
+        for (word in text.lowercase(Locale.ROOT).split(Regex("[^\\p{L}']+"))) {
+            if (word.isEmpty()) continue
+            val bare = word.substringAfter('\'')
+            for ((language, hints) in HINTS) {
+                if (bare in hints) scores[language] = (scores[language] ?: 0) + 1
+            }
+        }
+        scores["fr"] = (scores["fr"] ?: 0) + 2 * text.count { it.lowercaseChar() in FRENCH_LETTERS }
+        val best = scores.filterKeys { it in candidates }.maxByOrNull { it.value } ?: return null
+        if (best.value == 0 || scores.count { it.value == best.value && it.key in candidates } > 1) return null
+        return best.key
+    }
+}
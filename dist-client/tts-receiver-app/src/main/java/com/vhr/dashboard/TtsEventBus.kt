@@ -0,0 +1,41 @@
+package com.vhr.voice
+
+import android.os.SystemClock
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+
+/**
+ * In-process bus between [TtsService] and whoever displays TTS progress ([TtsViewModel]).
+ * Publishing never blocks the TTS threads: with nobody listening events are simply lost,
+ * and a slow collector loses the oldest ones first.
+ *
+ * Timestamps are [SystemClock.elapsedRealtime] so latencies survive wall-clock changes.
+ */
+object TtsEventBus {
+
+    enum class Type { RECEIVED, STARTED, DONE, ERROR, DROPPED }
+
+    /**
+     * One step in a message's life. [latencyMs] is receive to first audio on [Type.STARTED]
+     * and receive to end on [Type.DONE]; [detail] is the reason on errors and drops.
+     */
+    class Event(
+        val type: Type,
+        val utteranceId: String,
+        val text: String = "",
+        val timestampMs: Long = SystemClock.elapsedRealtime(),
+        val latencyMs: Long = -1L,
+        val detail: String = ""
+    )
+
+    private val _events = MutableSharedFlow<Event>(
+        extraBufferCapacity = 256,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    val events: SharedFlow<Event> = _events
+
+    fun publish(event: Event) {
+        _events.tryEmit(event)
+    }
+}
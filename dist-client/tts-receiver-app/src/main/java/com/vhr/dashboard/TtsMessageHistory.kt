@@ -0,0 +1,77 @@
+package com.vhr.voice
+
+import java.time.LocalDateTime
+
+/**
+ * Last [capacity] messages in a ring: adding one overwrites the oldest, and a status change
+ * finds its slot through the utterance id index, both O(1) whatever the history length.
+ * Ids come from a counter, so two messages in the same millisecond stay distinct.
+ *
+ * [version] moves on every real change; [snapshot] copies the ring (newest first) and is only
+ * worth calling when it did. Not thread-safe: owned by [TtsViewModel] on the main thread.
+ */
+class TtsMessageHistory(private val capacity: Int = DEFAULT_CAPACITY) {
+
+    companion object {
+        const val DEFAULT_CAPACITY = 200
+    }
+
+    private val slots = arrayOfNulls<TtsMessage>(capacity)
+    private val slotByUtterance = HashMap<String, Int>()
+    private var head = 0
+    private var nextId = 1L
+
+    var size = 0
+        private set
+
+    /** Messages added since the last [clear], including those the ring has forgotten. */
+    var total = 0L
+        private set
+
+    var version = 0L
+        private set
+
+    fun add(utteranceId: String, text: String, timestamp: LocalDateTime, status: String = "pending"): TtsMessage {
+        val slot = head
+        slots[slot]?.let { evicted ->
+            if (slotByUtterance[evicted.utteranceId] == slot) slotByUtterance.remove(evicted.utteranceId)
+        }
+        val message = TtsMessage(nextId++, utteranceId, text, timestamp, status)
+        slots[slot] = message
+        slotByUtterance[utteranceId] = slot
+        head = (head + 1) % capacity
+        if (size < capacity) size++
+        total++
+        version++
+        return message
+    }
+
+    /** Replaces the message for [utteranceId] with [transform]'s result; false when unknown or unchanged. */
+    fun update(utteranceId: String, transform: (TtsMessage) -> TtsMessage): Boolean {
+        val slot = slotByUtterance[utteranceId] ?: return false
+        val current = slots[slot] ?: return false
+        val updated = transform(current)
+        if (updated == current) return false
+        slots[slot] = updated
+        version++
+        return true
+    }
+
+    fun clear() {
+        slots.fill(null)
+        slotByUtterance.clear()
+        head = 0
+        size = 0
+        total = 0
+        version++
+    }
+
+    /** Immutable copy, newest first. */
+    fun snapshot(): List<TtsMessage> {
+        val copy = ArrayList<TtsMessage>(size)
+        for (i in 1..size) {
+            slots[(head - i + capacity) % capacity]?.let { copy.add(it) }
+        }
+        return java.util.Collections.unmodifiableList(copy)
+    }
+}
@@ -0,0 +1,57 @@
+package com.vhr.voice
+
+import androidx.compose.runtime.Immutable
+import androidx.compose.ui.graphics.Color
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.atomic.AtomicLong
+
+private val TIME_FORMAT: DateTimeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss")
+
+/**
+ * What a message card draws, computed once per message state in [TtsViewModel] rather than
+ * on every recomposition. Only strings, numbers and colors: Compose sees it as stable and
+ * skips a card whose item did not change. [key] is unique across the ring (positive ids) and
+ * the log window (minus the record offset).
+ */
+@Immutable
+data class TtsMessageItem(
+    val key: Long,
+    val text: String,
+    val icon: String,
+    val details: String,
+    val background: Color
+) {
+    companion object {
+        fun from(message: TtsMessage): TtsMessageItem {
+            val latency = if (message.latencyMs >= 0) " • ⏱️ ${message.latencyMs} ms" else ""
+            return TtsMessageItem(
+                key = message.id,
+                text = message.text,
+                icon = when (message.status) {
+                    "speaking" -> "🔊"
+                    "completed" -> "✅"
+                    "error" -> "❌"
+                    "session" -> "📡"
+                    else -> "⏳"
+                },
+                details = "${message.status} • ${message.timestamp.format(TIME_FORMAT)}$latency",
+                background = when (message.status) {
+                    "completed" -> Color(0xFF2D5016)
+                    "error" -> Color(0xFF5F1E1E)
+                    "speaking" -> Color(0xFF4A4A2E)
+                    else -> Color(0xFF2E2E3E)
+                }
+            )
+        }
+    }
+}
+
+/**
+ * Debug-build recomposition counters for the message list: cards composed versus list
+ * updates published, logged once a second by [TtsReceiverScreen]. With keyed, stable items
+ * a new message should cost about one card composition, not one per visible card.
+ */
+object TtsCompositionStats {
+    val cardCompositions = AtomicLong()
+    val listUpdates = AtomicLong()
+}
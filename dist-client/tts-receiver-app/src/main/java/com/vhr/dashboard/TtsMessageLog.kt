@@ -0,0 +1,266 @@
+package com.vhr.voice
+
+import android.content.Context
+import android.util.Log
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.util.concurrent.Executors
+
+/** One record of [TtsMessageLog]; [offset]..[end] is its place in the file. */
+data class TtsLogEntry(
+    val offset: Long,
+    val end: Long,
+    val type: Int,
+    val status: String,
+    val wallMs: Long,
+    val latencyMs: Long,
+    val utteranceId: String,
+    val text: String
+)
+
+/**
+ * On-device history of what was said to this headset ("what did headset 7 hear an hour
+ * ago?"), surviving process death. Append-only file of compact binary records:
+ *
+ * `length u32 | type u8 | status u8 | wall clock ms i64 | latency ms i32 | id length u16 | id | text | length u32`
+ *
+ * The trailing length lets a reader walk backwards from any record boundary, so the UI pages
+ * from the newest end and cold start never reads more than one page. Messages are written
+ * once, when they are finished (spoken, failed or dropped); audio sessions add their own
+ * records. When the file passes [MAX_BYTES] it is rewritten with its newest [KEEP_BYTES];
+ * offsets then change, which [generation] tells readers.
+ *
+ * Appends run on a single background thread; reads may come from any thread.
+ */
+object TtsMessageLog {
+
+    const val TYPE_MESSAGE = 1
+    const val TYPE_SESSION = 2
+    const val STATUS_SESSION = "session"
+
+    private const val TAG = "TtsMessageLog"
+    private const val FILE_NAME = "tts-messages.log"
+    private val MAGIC = byteArrayOf('V'.code.toByte(), 'T'.code.toByte(), 'L'.code.toByte(), 1)
+    private const val HEADER_BYTES = 4L
+    private const val FIXED_BYTES = 1 + 1 + 8 + 4 + 2
+    private const val MAX_RECORD_BYTES = 64 * 1024
+    private const val MAX_BYTES = 4L * 1024 * 1024
+    private const val KEEP_BYTES = 2L * 1024 * 1024
+    private const val MAX_TEXT_CHARS = 4000
+
+    private val STATUSES = listOf("pending", "speaking", "completed", "error", STATUS_SESSION)
+
+    private val lock = Any()
+    private var file: File? = null
+    private var raf: RandomAccessFile? = null
+    private val writer = Executors.newSingleThreadExecutor { Thread(it, "vhr-tts-log") }
+
+    @Volatile var generation = 0
+        private set
+
+    private val _appended = MutableSharedFlow<TtsLogEntry>(
+        extraBufferCapacity = 64,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    /** Every record as it is written, for a reader showing the newest end. */
+    val appended: SharedFlow<TtsLogEntry> = _appended
+
+    /** Idempotent; called by whichever of the activity and the services starts first. */
+    fun init(context: Context) {
+        synchronized(lock) {
+            if (raf != null) return
+            try {
+                val logFile = File(context.applicationContext.filesDir, FILE_NAME)
+                val handle = RandomAccessFile(logFile, "rw")
+                if (handle.length() < HEADER_BYTES || !hasMagic(handle)) {
+                    handle.setLength(0)
+                    handle.write(MAGIC)
+                }
+                file = logFile
+                raf = handle
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Journal TTS indisponible: ${e.message}")
+                return
+            }
+        }
+        writer.execute { compactIfNeeded() }
+    }
+
+    fun appendMessage(utteranceId: String, text: String, status: String, wallMs: Long, latencyMs: Long) {
+        append(TYPE_MESSAGE, status, wallMs, latencyMs, utteranceId, text)
+    }
+
+    fun appendSession(text: String) {
+        append(TYPE_SESSION, STATUS_SESSION, System.currentTimeMillis(), -1L, "", text)
+    }
+
+    /** Offset just past the newest record. */
+    fun endOffset(): Long = synchronized(lock) { raf?.length() ?: HEADER_BYTES }
+
+    /** Up to [count] records ending at [offset], newest first. */
+    fun readBefore(offset: Long, count: Int): List<TtsLogEntry> {
+        synchronized(lock) {
+            val handle = raf ?: return emptyList()
+            val entries = ArrayList<TtsLogEntry>(count)
+            var end = minOf(offset, handle.length())
+            try {
+                while (entries.size < count && end > HEADER_BYTES) {
+                    handle.seek(end - 4)
+                    val length = handle.readInt()
+                    val start = end - 8 - length
+                    if (length !in FIXED_BYTES..MAX_RECORD_BYTES || start < HEADER_BYTES) break
+                    entries.add(readAt(handle, start) ?: break)
+                    end = start
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur lecture journal: ${e.message}")
+            }
+            return entries
+        }
+    }
+
+    /** Up to [count] records starting at [offset], oldest first. */
+    fun readAfter(offset: Long, count: Int): List<TtsLogEntry> {
+        synchronized(lock) {
+            val handle = raf ?: return emptyList()
+            val entries = ArrayList<TtsLogEntry>(count)
+            var start = maxOf(offset, HEADER_BYTES)
+            try {
+                while (entries.size < count && start < handle.length()) {
+                    val entry = readAt(handle, start) ?: break
+                    entries.add(entry)
+                    start = entry.end
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur lecture journal: ${e.message}")
+            }
+            return entries
+        }
+    }
+
+    fun clear() {
+        writer.execute {
+            synchronized(lock) {
+                val handle = raf ?: return@execute
+                handle.setLength(HEADER_BYTES)
+                generation++
+            }
+        }
+    }
+
+    private fun append(type: Int, status: String, wallMs: Long, latencyMs: Long, utteranceId: String, text: String) {
+        writer.execute {
+            val entry = synchronized(lock) {
+                val handle = raf ?: return@execute
+                try {
+                    val record = encode(type, status, wallMs, latencyMs, utteranceId, text)
+                    val offset = handle.length()
+                    handle.seek(offset)
+                    handle.write(record)
+                    TtsLogEntry(
+                        offset, offset + record.size, type, status, wallMs, latencyMs,
+                        utteranceId, text.take(MAX_TEXT_CHARS)
+                    )
+                } catch (e: Exception) {
+                    Log.e(TAG, "❌ Erreur écriture journal: ${e.message}")
+                    return@execute
+                }
+            }
+            _appended.tryEmit(entry)
+            compactIfNeeded()
+        }
+    }
+
+    private fun encode(type: Int, status: String, wallMs: Long, latencyMs: Long, utteranceId: String, text: String): ByteArray {
+        val id = utteranceId.take(200).toByteArray(Charsets.UTF_8)
+        val body = text.take(MAX_TEXT_CHARS).toByteArray(Charsets.UTF_8)
+        val length = FIXED_BYTES + id.size + body.size
+        val bytes = ByteArrayOutputStream(length + 8)
+        DataOutputStream(bytes).use { out ->
+            out.writeInt(length)
+            out.writeByte(type)
+            out.writeByte(STATUSES.indexOf(status).coerceAtLeast(0))
+            out.writeLong(wallMs)
+            out.writeInt(latencyMs.coerceIn(-1L, Int.MAX_VALUE.toLong()).toInt())
+            out.writeShort(id.size)
+            out.write(id)
+            out.write(body)
+            out.writeInt(length)
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun readAt(handle: RandomAccessFile, start: Long): TtsLogEntry? {
+        handle.seek(start)
+        val length = handle.readInt()
+        if (length !in FIXED_BYTES..MAX_RECORD_BYTES) return null
+        val record = ByteArray(length)
+        handle.readFully(record)
+        if (handle.readInt() != length) return null
+        val buffer = java.nio.ByteBuffer.wrap(record)
+        val type = buffer.get().toInt()
+        val status = STATUSES.getOrElse(buffer.get().toInt()) { "completed" }
+        val wallMs = buffer.long
+        val latencyMs = buffer.int.toLong()
+        val idLength = buffer.short.toInt() and 0xffff
+        if (FIXED_BYTES + idLength > length) return null
+        val id = String(record, FIXED_BYTES, idLength, Charsets.UTF_8)
+        val text = String(record, FIXED_BYTES + idLength, length - FIXED_BYTES - idLength, Charsets.UTF_8)
+        return TtsLogEntry(start, start + length + 8, type, status, wallMs, latencyMs, id, text)
+    }
+
+    /** Writer thread: keeps the newest [KEEP_BYTES] once the file passes [MAX_BYTES]. */
+    private fun compactIfNeeded() {
+        synchronized(lock) {
+            val handle = raf ?: return
+            val logFile = file ?: return
+            if (handle.length() <= MAX_BYTES) return
+            try {
+                // Walk back to the first record boundary inside the newest KEEP_BYTES
+                val end = handle.length()
+                var cut = end
+                while (cut > HEADER_BYTES && end - cut < KEEP_BYTES) {
+                    handle.seek(cut - 4)
+                    val length = handle.readInt()
+                    if (length !in FIXED_BYTES..MAX_RECORD_BYTES) break
+                    cut -= length + 8
+                }
+                val compacted = File(logFile.parentFile, "$FILE_NAME.tmp")
+                RandomAccessFile(compacted, "rw").use { out ->
+                    out.setLength(0)
+                    out.write(MAGIC)
+                    val chunk = ByteArray(64 * 1024)
+                    handle.seek(cut)
+                    var remaining = end - cut
+                    while (remaining > 0) {
+                        val read = handle.read(chunk, 0, minOf(chunk.size.toLong(), remaining).toInt())
+                        if (read <= 0) break
+                        out.write(chunk, 0, read)
+                        remaining -= read
+                    }
+                }
+                handle.close()
+                raf = null
+                if (!compacted.renameTo(logFile)) compacted.delete()
+                raf = RandomAccessFile(logFile, "rw")
+                generation++
+                Log.d(TAG, "🗜️ Journal TTS compacté: ${end / 1024} Ko → ${(end - cut + HEADER_BYTES) / 1024} Ko")
+            } catch (e: Exception) {
+                Log.e(TAG, "❌ Erreur compaction journal: ${e.message}")
+                if (raf == null) raf = try { RandomAccessFile(logFile, "rw") } catch (_: Exception) { null }
+            }
+        }
+    }
+
+    private fun hasMagic(handle: RandomAccessFile): Boolean {
+        val header = ByteArray(MAGIC.size)
+        handle.seek(0)
+        handle.readFully(header)
+        return header.contentEquals(MAGIC)
+    }
+}
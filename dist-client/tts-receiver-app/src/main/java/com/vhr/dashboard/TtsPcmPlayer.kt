@@ -0,0 +1,208 @@
+package com.vhr.voice
+
+import android.media.AudioAttributes
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTrack
+import android.util.Log
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+
+/**
+ * Plays the 16-bit PCM WAV files [android.speech.tts.TextToSpeech.synthesizeToFile] writes,
+ * through one streaming AudioTrack kept open between utterances: a cached announcement
+ * costs a file read and a track write instead of an engine round trip. The track is only
+ * rebuilt when the sample rate or channel count changes (i.e. the voice changed).
+ *
+ * [write] returns once the file is queued in the track, so the next utterance can be written
+ * right behind it without a gap; [drain] waits until everything has been heard and parks the
+ * track. Both block; call them from the TTS playback thread.
+ */
+class TtsPcmPlayer {
+
+    private companion object {
+        const val TAG = "TtsPcmPlayer"
+        const val READ_BUFFER_BYTES = 8192
+        const val DRAIN_POLL_MS = 5L
+        const val DRAIN_SLACK_MS = 500L
+    }
+
+    private class WavFormat(val sampleRate: Int, val channels: Int, val dataBytes: Long)
+
+    private var track: AudioTrack? = null
+    private var trackRate = 0
+    private var trackChannels = 0
+    private val buffer = ByteArray(READ_BUFFER_BYTES)
+    @Volatile private var interrupted = false
+    /** Frames written since the track was last parked. */
+    @Volatile private var framesQueued = 0L
+
+    /**
+     * Queues [file] behind whatever is still playing (stops early on [interrupt]). Returns
+     * false when the file is not playable PCM; the caller then falls back to the engine.
+     */
+    fun write(file: File): Boolean {
+        interrupted = false
+        return try {
+            BufferedInputStream(FileInputStream(file), READ_BUFFER_BYTES).use { input ->
+                val format = readHeader(input) ?: return false
+                if (track != null && (trackRate != format.sampleRate || trackChannels != format.channels)) {
+                    drain() // voice changed: finish the previous utterance on its own track
+                }
+                val audio = ensureTrack(format.sampleRate, format.channels) ?: return false
+                if (audio.playState != AudioTrack.PLAYSTATE_PLAYING) audio.play()
+                var remaining = if (format.dataBytes > 0) format.dataBytes else Long.MAX_VALUE
+                var written = 0L
+                while (remaining > 0 && !interrupted) {
+                    val read = input.read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt() and 1.inv())
+                    if (read <= 0) break
+                    val result = audio.write(buffer, 0, read)
+                    if (result < 0) {
+                        Log.w(TAG, "AudioTrack write error=$result")
+                        break
+                    }
+                    written += result
+                    remaining -= read
+                }
+                framesQueued += written / (2 * format.channels)
+                true
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Erreur lecture ${file.name}: ${e.message}")
+            false
+        }
+    }
+
+    /** How long the queued audio still plays, in ms. */
+    fun pendingMs(): Long {
+        val audio = track ?: return 0L
+        if (trackRate <= 0) return 0L
+        val played = audio.playbackHeadPosition.toLong() and 0xffffffffL
+        return ((framesQueued - played) * 1000 / trackRate).coerceAtLeast(0L)
+    }
+
+    /** Waits until everything queued has been heard, then parks the track for the next utterance. */
+    fun drain() {
+        val audio = track ?: return
+        if (framesQueued > 0) {
+            val deadline = System.currentTimeMillis() + pendingMs() + DRAIN_SLACK_MS
+            while (!interrupted && System.currentTimeMillis() < deadline) {
+                if ((audio.playbackHeadPosition.toLong() and 0xffffffffL) >= framesQueued) break
+                try { Thread.sleep(DRAIN_POLL_MS) } catch (_: InterruptedException) { break }
+            }
+        }
+        park(audio)
+    }
+
+    /** Cuts the current playback short (service stopping, higher priority message). */
+    fun interrupt() {
+        interrupted = true
+        track?.let { park(it) }
+    }
+
+    fun release() {
+        interrupt()
+        try { track?.release() } catch (_: Exception) {}
+        track = null
+    }
+
+    private fun park(audio: AudioTrack) {
+        framesQueued = 0L
+        try {
+            audio.pause()
+            audio.flush()
+        } catch (_: Exception) {}
+    }
+
+    private fun ensureTrack(sampleRate: Int, channels: Int): AudioTrack? {
+        val current = track
+        if (current != null && trackRate == sampleRate && trackChannels == channels) return current
+        current?.release()
+        track = null
+        return try {
+            val channelMask = if (channels == 2) AudioFormat.CHANNEL_OUT_STEREO else AudioFormat.CHANNEL_OUT_MONO
+            val minBuffer = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT)
+            AudioTrack(
+                AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build(),
+                AudioFormat.Builder()
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(sampleRate)
+                    .setChannelMask(channelMask)
+                    .build(),
+                maxOf(minBuffer, READ_BUFFER_BYTES * 2),
+                AudioTrack.MODE_STREAM,
+                AudioManager.AUDIO_SESSION_ID_GENERATE
+            ).also {
+                track = it
+                trackRate = sampleRate
+                trackChannels = channels
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Erreur création AudioTrack: ${e.message}")
+            null
+        }
+    }
+
+    /** Walks the RIFF chunks up to `data`; only plain 16-bit PCM is accepted. */
+    private fun readHeader(input: InputStream): WavFormat? {
+        val header = ByteArray(12)
+        if (!readFully(input, header, 12)) return null
+        if (String(header, 0, 4, Charsets.US_ASCII) != "RIFF" || String(header, 8, 4, Charsets.US_ASCII) != "WAVE") {
+            return null
+        }
+        val chunk = ByteArray(16)
+        var sampleRate = 0
+        var channels = 0
+        while (true) {
+            if (!readFully(input, chunk, 8)) return null
+            val id = String(chunk, 0, 4, Charsets.US_ASCII)
+            val size = readLe32(chunk, 4)
+            when (id) {
+                "fmt " -> {
+                    if (size < 16 || !readFully(input, chunk, 16)) return null
+                    val encoding = readLe16(chunk, 0)
+                    channels = readLe16(chunk, 2)
+                    sampleRate = readLe32(chunk, 4).toInt()
+                    val bits = readLe16(chunk, 14)
+                    if (encoding != 1 || bits != 16 || channels !in 1..2) return null
+                    skipFully(input, size - 16 + (size and 1))
+                }
+                // Size 0 or 0xffffffff: header written before the length was known, read to EOF
+                "data" -> return if (sampleRate > 0) {
+                    WavFormat(sampleRate, channels, if (size in 1 until 0xffffffffL) size else 0L)
+                } else null
+                else -> skipFully(input, size + (size and 1))
+            }
+        }
+    }
+
+    private fun readFully(input: InputStream, into: ByteArray, count: Int): Boolean {
+        var offset = 0
+        while (offset < count) {
+            val read = input.read(into, offset, count - offset)
+            if (read <= 0) return false
+            offset += read
+        }
+        return true
+    }
+
+    private fun skipFully(input: InputStream, count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val skipped = input.skip(remaining)
+            if (skipped <= 0) return
+            remaining -= skipped
+        }
+    }
+
+    private fun readLe16(data: ByteArray, offset: Int): Int =
+        (data[offset].toInt() and 0xff) or ((data[offset + 1].toInt() and 0xff) shl 8)
+
+    private fun readLe32(data: ByteArray, offset: Int): Long =
+        readLe16(data, offset).toLong() or (readLe16(data, offset + 2).toLong() shl 16)
+}
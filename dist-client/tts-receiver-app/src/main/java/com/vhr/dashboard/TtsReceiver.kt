@@ -17,7 +17,7 @@ class TtsReceiver : BroadcastReceiver() {
         try {
             // Extraire les données du broadcast
             val text = intent.getStringExtra("text") ?: return
-            val utteranceId = intent.getStringExtra("utteranceId") ?: "vhr_${System.currentTimeMillis()}"
+            val utteranceId = intent.getStringExtra("utteranceId") ?: TtsService.newUtteranceId()
             
             Log.d(TAG, "💬 Texte à prononcer: '$text'")
             Log.d(TAG, "🆔 ID: $utteranceId")
@@ -27,6 +27,12 @@ class TtsReceiver : BroadcastReceiver() {
                 action = TtsService.ACTION_SPEAK
                 putExtra(TtsService.EXTRA_TEXT, text)
                 putExtra(TtsService.EXTRA_ID, utteranceId)
+                intent.getStringExtra(TtsService.EXTRA_LOCALE)?.let { putExtra(TtsService.EXTRA_LOCALE, it) }
+                // "low" / "normal" / "high" / "urgent", as a string or 0..3
+                TtsService.priorityExtra(intent)?.let { putExtra(TtsService.EXTRA_PRIORITY, it) }
+                if (intent.hasExtra(TtsService.EXTRA_DEADLINE_MS)) {
+                    putExtra(TtsService.EXTRA_DEADLINE_MS, intent.getLongExtra(TtsService.EXTRA_DEADLINE_MS, TtsService.DEFAULT_DEADLINE_MS))
+                }
             }
             
             context.startService(ttsIntent)
@@ -0,0 +1,115 @@
+package com.vhr.voice
+
+import java.util.Locale
+
+/**
+ * Orders messages in front of the engine: higher priorities first, FIFO within a priority.
+ * An [PRIORITY_URGENT] message flushes every lower-priority message still queued (cutting
+ * short what is already playing is up to the caller). The same text from several dashboard operators within
+ * [dedupeWindowMs] is spoken once, and routine traffic to this headset is limited to
+ * [rateLimit] messages per [rateWindowMs] (high and urgent messages are never limited).
+ *
+ * Thread-safe; the TTS worker blocks in [take].
+ */
+class TtsScheduler(
+    private val dedupeWindowMs: Long = DEFAULT_DEDUPE_WINDOW_MS,
+    private val rateLimit: Int = DEFAULT_RATE_LIMIT,
+    private val rateWindowMs: Long = DEFAULT_RATE_WINDOW_MS
+) {
+
+    companion object {
+        const val PRIORITY_LOW = 0
+        const val PRIORITY_NORMAL = 1
+        const val PRIORITY_HIGH = 2
+        const val PRIORITY_URGENT = 3
+        const val DEFAULT_DEDUPE_WINDOW_MS = 5_000L
+        const val DEFAULT_RATE_LIMIT = 6
+        const val DEFAULT_RATE_WINDOW_MS = 10_000L
+
+        /** Accepts a level name ("low", "normal", "high", "urgent") or its number. */
+        fun parsePriority(value: String?): Int {
+            val normalized = value?.trim()?.lowercase(Locale.ROOT).orEmpty()
+            return when (normalized) {
+                "low", "info" -> PRIORITY_LOW
+                "high" -> PRIORITY_HIGH
+                "urgent", "safety", "critical" -> PRIORITY_URGENT
+                else -> normalized.toIntOrNull()?.coerceIn(PRIORITY_LOW, PRIORITY_URGENT) ?: PRIORITY_NORMAL
+            }
+        }
+
+        fun priorityName(priority: Int): String = when (priority) {
+            PRIORITY_LOW -> "low"
+            PRIORITY_HIGH -> "high"
+            PRIORITY_URGENT -> "urgent"
+            else -> "normal"
+        }
+    }
+
+    /** [locale] is the requested BCP-47 tag, null to detect the language from the text. */
+    class Item(val text: String, val utteranceId: String, val priority: Int, val locale: String? = null) {
+        internal val dedupeKey = text.trim().replace(Regex("\\s+"), " ").lowercase(Locale.ROOT)
+    }
+
+    enum class Admission { QUEUED, DUPLICATE, RATE_LIMITED }
+
+    /** Outcome of [submit]; [flushed] lost their place to an urgent message. */
+    class Submission(val admission: Admission, val flushed: List<Item>)
+
+    private val lock = Object()
+    private val queues = Array(PRIORITY_URGENT + 1) { ArrayDeque<Item>() }
+    /** Dedupe key -> when it was last accepted. */
+    private val recent = HashMap<String, Long>()
+    /** Acceptance times of rate-limited messages inside the current window. */
+    private val admitted = ArrayDeque<Long>()
+    private var closed = false
+
+    fun submit(item: Item, nowMs: Long = System.currentTimeMillis()): Submission {
+        synchronized(lock) {
+            recent.entries.removeAll { nowMs - it.value > dedupeWindowMs }
+            if (recent.containsKey(item.dedupeKey)) {
+                return Submission(Admission.DUPLICATE, emptyList())
+            }
+            if (item.priority < PRIORITY_HIGH) {
+                while (admitted.isNotEmpty() && nowMs - admitted.first() > rateWindowMs) admitted.removeFirst()
+                if (admitted.size >= rateLimit) {
+                    return Submission(Admission.RATE_LIMITED, emptyList())
+                }
+                admitted.addLast(nowMs)
+            }
+            recent[item.dedupeKey] = nowMs
+
+            var flushed = emptyList<Item>()
+            if (item.priority == PRIORITY_URGENT) {
+                flushed = (PRIORITY_LOW until PRIORITY_URGENT).flatMap { level ->
+                    queues[level].toList().also { queues[level].clear() }
+                }
+            }
+            queues[item.priority].addLast(item)
+            lock.notifyAll()
+            return Submission(Admission.QUEUED, flushed)
+        }
+    }
+
+    /** Blocks for the next message to speak; null once [close]d. */
+    fun take(): Item? {
+        synchronized(lock) {
+            while (!closed) {
+                for (level in PRIORITY_URGENT downTo PRIORITY_LOW) {
+                    return queues[level].removeFirstOrNull() ?: continue
+                }
+                try { lock.wait() } catch (_: InterruptedException) { return null }
+            }
+            return null
+        }
+    }
+
+    fun queued(): Int = synchronized(lock) { queues.sumOf { it.size } }
+
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            queues.forEach { it.clear() }
+            lock.notifyAll()
+        }
+    }
+}
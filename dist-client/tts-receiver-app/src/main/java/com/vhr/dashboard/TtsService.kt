@@ -2,66 +2,140 @@ package com.vhr.voice
 
 import android.app.Service
 import android.content.Intent
+import android.os.Bundle
 import android.os.IBinder
+import android.os.SystemClock
 import android.speech.tts.TextToSpeech
+import android.speech.tts.UtteranceProgressListener
 import android.util.Log
 import kotlinx.coroutines.*
+import java.io.File
+import java.util.Locale
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
-class TtsService : Service(), TextToSpeech.OnInitListener {
+class TtsService : Service() {
     
-    private lateinit var tts: TextToSpeech
-    private var isTtsReady = false
+    private lateinit var engines: TtsEnginePool
+    @Volatile private var isTtsReady = false
     private val scope = CoroutineScope(Dispatchers.Main + Job())
+
+    // Voice settings, part of the cache key with the engine's locale
+    private val speechRate = 1.0f  // Vitesse normale
+    private val pitch = 1.0f       // Ton normal
+
+    // Two-stage pipeline: the synthesis thread takes messages in scheduler order and renders
+    // up to LOOKAHEAD of them ahead; the playback thread plays them one after the other
+    private val scheduler = TtsScheduler()
+    private val synthesisThread = Thread({ runSynthesis() }, "vhr-tts-synth")
+    private val playbackThread = Thread({ runPlayback() }, "vhr-tts-play")
+
+    /**
+     * One piece of a message ready to play: [file] is null when it is left to the engine to
+     * speak live. [index] and [last] link the pieces of one message together.
+     */
+    private class Ready(
+        val item: TtsScheduler.Item,
+        val engine: TtsEnginePool.Engine,
+        val text: String,
+        val utteranceId: String,
+        val index: Int,
+        val last: Boolean,
+        val generation: Int,
+        val key: String,
+        val file: File?,
+        val temporary: Boolean
+    )
+    private val readyQueue = ArrayBlockingQueue<Ready>(LOOKAHEAD)
+    /** Bumped by every urgent message; anything below urgent from an older generation is dropped. */
+    private val flushGeneration = AtomicInteger()
+    @Volatile private var playing: Ready? = null
+    private val scratchDir by lazy { File(cacheDir, SCRATCH_DIR) }
+
+    @Volatile private var audioCache: TtsAudioCache? = null
+    private val player = TtsPcmPlayer()
+    private class Completion {
+        val latch = CountDownLatch(1)
+        @Volatile var success = false
+    }
+    private val completions = ConcurrentHashMap<String, Completion>()
+
+    /** Per logical message, from receipt to its last piece; feeds [TtsEventBus] and [TtsMessageLog]. */
+    private class MessageTimes(val receivedMs: Long, val text: String, val receivedWallMs: Long) {
+        @Volatile var startedMs = -1L
+        @Volatile var failed = false
+    }
+    private val messageTimes = ConcurrentHashMap<String, MessageTimes>()
+    private val pendingFills = ConcurrentHashMap<String, Pair<String, File>>()
+    @Volatile private var destroyed = false
+
+    // Messages received before the engine is ready; main thread only
+    private class PendingSpeech(val item: TtsScheduler.Item, val deadlineMs: Long)
+    private val pending = ArrayDeque<PendingSpeech>()
+    private var expiryJob: Job? = null
+    private var initFailed = false
     
     companion object {
         const val ACTION_SPEAK = "com.vhr.voice.SPEAK"
         const val EXTRA_TEXT = "text"
         const val EXTRA_ID = "utteranceId"
+        /** How long a message may wait for the engine before it is dropped (ms, optional). */
+        const val EXTRA_DEADLINE_MS = "deadlineMs"
+        const val DEFAULT_DEADLINE_MS = 15_000L
+        /** "low", "normal", "high" or "urgent" (or 0..3); urgent preempts everything below it. */
+        const val EXTRA_PRIORITY = "priority"
+        /** BCP-47 tag ("fr-FR", "en"); without it the language is detected from the text. */
+        const val EXTRA_LOCALE = "locale"
+        private const val MAX_PENDING = 32
         private const val TAG = "TtsService"
+        private const val CACHE_DIR = "tts-cache"
+        private const val SCRATCH_DIR = "tts-lookahead"
+        private const val FILL_PREFIX = "cache_"
+        private const val RENDER_PREFIX = "render_"
+        /** Pieces rendered ahead of the one playing. */
+        private const val LOOKAHEAD = 2
+        private val STOP = Ready(
+            TtsScheduler.Item("", "", TtsScheduler.PRIORITY_URGENT), TtsEnginePool.Engine(Locale.ROOT),
+            "", "", 0, true, 0, "", null, false
+        )
+        /** Upper bound on one live utterance (~15 chars/s plus slack) before the worker moves on. */
+        private const val LIVE_TIMEOUT_BASE_MS = 10_000L
+        private const val LIVE_TIMEOUT_PER_CHAR_MS = 150L
+
+        private val nextUtteranceId = AtomicLong()
+
+        /**
+         * Id for a message that came without one. Unique within the process even for several
+         * messages in the same millisecond, unlike a bare timestamp.
+         */
+        fun newUtteranceId(): String = "vhr_${System.currentTimeMillis()}_${nextUtteranceId.incrementAndGet()}"
+
+        /** [EXTRA_PRIORITY] as sent with --es priority urgent or --ei priority 3; null when absent. */
+        fun priorityExtra(intent: Intent): String? =
+            intent.getStringExtra(EXTRA_PRIORITY)
+                ?: if (intent.hasExtra(EXTRA_PRIORITY)) intent.getIntExtra(EXTRA_PRIORITY, TtsScheduler.PRIORITY_NORMAL).toString() else null
     }
     
     override fun onCreate() {
         super.onCreate()
         Log.d(TAG, "🚀 Service TTS créé")
+        TtsMessageLog.init(this)
+        synthesisThread.start()
+        playbackThread.start()
         initializeTts()
     }
     
     private fun initializeTts() {
-        try {
-            tts = TextToSpeech(this, this)
-        } catch (e: Exception) {
-            Log.e(TAG, "❌ Erreur initialisation TTS: ${e.message}")
-        }
-    }
-    
-    override fun onInit(status: Int) {
-        isTtsReady = if (status == TextToSpeech.SUCCESS) {
-            Log.d(TAG, "✅ TextToSpeech initialisé avec succès")
-            
-            try {
-                // Configuration pour le français
-                val locale = java.util.Locale("fr", "FR")
-                val langResult = tts.setLanguage(locale)
-                
-                if (langResult == TextToSpeech.LANG_MISSING_DATA || langResult == TextToSpeech.LANG_NOT_SUPPORTED) {
-                    Log.w(TAG, "⚠️ Français non disponible, fallback vers Anglais")
-                    tts.language = java.util.Locale.ENGLISH
-                } else {
-                    Log.d(TAG, "✅ Langue Française configurée")
-                }
-                
-                // Configuration audio
-                tts.setSpeechRate(1.0f)  // Vitesse normale
-                tts.setPitch(1.0f)       // Ton normal
-                
-                true
-            } catch (e: Exception) {
-                Log.e(TAG, "❌ Erreur lors de la configuration: ${e.message}")
-                false
-            }
-        } else {
-            Log.e(TAG, "❌ TextToSpeech initialization failed: $status")
-            false
+        // One engine per language, initialized in parallel; switching language costs nothing later
+        engines = TtsEnginePool(this, TtsEnginePool.DEFAULT_LOCALES, speechRate, pitch, progressListener) { ok ->
+            isTtsReady = ok
+            initFailed = !ok
+            if (ok) Log.d(TAG, "✅ TextToSpeech initialisé avec succès") else Log.e(TAG, "❌ Aucun moteur TTS utilisable")
+            drainPending()
         }
     }
     
@@ -70,10 +144,18 @@ class TtsService : Service(), TextToSpeech.OnInitListener {
             when (it.action) {
                 ACTION_SPEAK -> {
                     val text = it.getStringExtra(EXTRA_TEXT) ?: return START_STICKY
-                    val utteranceId = it.getStringExtra(EXTRA_ID) ?: System.currentTimeMillis().toString()
+                    val utteranceId = it.getStringExtra(EXTRA_ID)?.ifBlank { null } ?: newUtteranceId()
+                    val deadlineMs = it.getLongExtra(EXTRA_DEADLINE_MS, DEFAULT_DEADLINE_MS)
+                        .takeIf { ms -> ms > 0 } ?: DEFAULT_DEADLINE_MS
+                    val priority = TtsScheduler.parsePriority(priorityExtra(it))
+                    
+                    val locale = it.getStringExtra(EXTRA_LOCALE)?.trim()?.ifBlank { null }
                     
-                    Log.d(TAG, "📢 Demande de parole: '$text'")
-                    speakText(text, utteranceId)
+                    Log.d(TAG, "📢 Demande de parole (${TtsScheduler.priorityName(priority)}): '$text'")
+                    val receivedMs = SystemClock.elapsedRealtime()
+                    messageTimes[utteranceId] = MessageTimes(receivedMs, text, System.currentTimeMillis())
+                    TtsEventBus.publish(TtsEventBus.Event(TtsEventBus.Type.RECEIVED, utteranceId, text, receivedMs))
+                    speakText(TtsScheduler.Item(text, utteranceId, priority, locale), System.currentTimeMillis() + deadlineMs)
                 }
             }
         }
@@ -81,26 +163,389 @@ class TtsService : Service(), TextToSpeech.OnInitListener {
         return START_STICKY
     }
     
-    private fun speakText(text: String, utteranceId: String) {
-        if (!isTtsReady) {
-            Log.w(TAG, "⏳ TTS pas prêt, nouvelle tentative dans 1 sec...")
-            scope.launch {
-                delay(1000)
-                if (isTtsReady) {
-                    Log.d(TAG, "✅ Nouvelle tentative après attente")
-                    speakText(text, utteranceId)
+    private fun speakText(item: TtsScheduler.Item, deadlineMs: Long) {
+        if (isTtsReady) {
+            schedule(item)
+            return
+        }
+        if (initFailed) {
+            reportDropped(item.utteranceId, "moteur TTS indisponible")
+            return
+        }
+
+        // Held until the engines are up; spoken as soon as they can, in arrival order
+        if (pending.size >= MAX_PENDING) {
+            reportDropped(pending.removeFirst().item.utteranceId, "file d'attente pleine")
+        }
+        pending.addLast(PendingSpeech(item, deadlineMs))
+        Log.w(TAG, "⏳ TTS pas prêt, message en attente (${pending.size} en file)")
+        scheduleExpiry()
+    }
+
+    /** Main thread, once the engines answered: hands everything still in time to the scheduler, in order. */
+    private fun drainPending() {
+        expiryJob?.cancel()
+        expiryJob = null
+        if (pending.isEmpty()) return
+        val now = System.currentTimeMillis()
+        var spoken = 0
+        while (pending.isNotEmpty()) {
+            val next = pending.removeFirst()
+            when {
+                !isTtsReady -> reportDropped(next.item.utteranceId, "moteur TTS indisponible")
+                now > next.deadlineMs -> reportDropped(next.item.utteranceId, "délai dépassé")
+                else -> {
+                    schedule(next.item)
+                    spoken++
+                }
+            }
+        }
+        if (spoken > 0) Log.d(TAG, "✅ $spoken message(s) en attente envoyés au moteur")
+    }
+
+    /** One timer for the earliest deadline instead of polling the engine state. */
+    private fun scheduleExpiry() {
+        expiryJob?.cancel()
+        val earliest = pending.minOfOrNull { it.deadlineMs } ?: return
+        expiryJob = scope.launch {
+            delay((earliest - System.currentTimeMillis()).coerceAtLeast(0))
+            val now = System.currentTimeMillis()
+            val iterator = pending.iterator()
+            while (iterator.hasNext()) {
+                val next = iterator.next()
+                if (now >= next.deadlineMs) {
+                    iterator.remove()
+                    reportDropped(next.item.utteranceId, "délai dépassé")
+                }
+            }
+            scheduleExpiry()
+        }
+    }
+
+    private fun reportDropped(utteranceId: String, reason: String) {
+        Log.e(TAG, "⌛ Message abandonné ($reason): $utteranceId")
+        val times = messageTimes.remove(utteranceId)
+        TtsEventBus.publish(TtsEventBus.Event(TtsEventBus.Type.DROPPED, utteranceId, detail = reason))
+        if (times != null) {
+            TtsMessageLog.appendMessage(utteranceId, times.text, "error", times.receivedWallMs, -1L)
+        }
+    }
+
+    /** First audio of a message (live: engine onStart of its first piece; files: first track write). */
+    private fun reportStarted(messageId: String) {
+        val times = messageTimes[messageId] ?: return
+        if (times.startedMs >= 0) return
+        val now = SystemClock.elapsedRealtime()
+        times.startedMs = now
+        val latency = now - times.receivedMs
+        Log.d(TAG, "⏱️ Réception → première parole: $latency ms ($messageId)")
+        AudioMetrics.ttsLatencyMs.record(latency)
+        TtsEventBus.publish(TtsEventBus.Event(TtsEventBus.Type.STARTED, messageId, timestampMs = now, latencyMs = latency))
+    }
+
+    /** Last piece of a message is over; [error] set when it was cut short or failed. */
+    private fun reportFinished(messageId: String, error: String?) {
+        val times = messageTimes.remove(messageId) ?: return
+        val now = SystemClock.elapsedRealtime()
+        val reason = error ?: if (times.failed) "erreur moteur" else null
+        val type = if (reason == null) TtsEventBus.Type.DONE else TtsEventBus.Type.ERROR
+        TtsEventBus.publish(
+            TtsEventBus.Event(type, messageId, timestampMs = now, latencyMs = now - times.receivedMs, detail = reason.orEmpty())
+        )
+        val latency = if (times.startedMs >= 0) times.startedMs - times.receivedMs else -1L
+        TtsMessageLog.appendMessage(
+            messageId, times.text, if (reason == null) "completed" else "error", times.receivedWallMs, latency
+        )
+    }
+
+    /** Admission through the scheduler; an urgent message also cuts the current one short. */
+    private fun schedule(item: TtsScheduler.Item) {
+        val submission = scheduler.submit(item)
+        when (submission.admission) {
+            TtsScheduler.Admission.DUPLICATE -> {
+                Log.d(TAG, "🔁 Doublon ignoré: '${item.text}'")
+                reportDropped(item.utteranceId, "doublon")
+                return
+            }
+            TtsScheduler.Admission.RATE_LIMITED -> {
+                reportDropped(item.utteranceId, "limite de débit")
+                return
+            }
+            TtsScheduler.Admission.QUEUED -> {}
+        }
+        submission.flushed.forEach { reportDropped(it.utteranceId, "remplacé par un message urgent") }
+        if (item.priority < TtsScheduler.PRIORITY_URGENT) return
+
+        // Whatever was already rendered or playing below urgent is now stale
+        flushGeneration.incrementAndGet()
+        // A render in progress would hold the synthesis thread before it reaches the urgent message
+        engines.stopRendering()
+        val current = playing ?: return
+        if (current.item.priority >= TtsScheduler.PRIORITY_URGENT) return
+        Log.w(TAG, "🚨 Message urgent, interruption de '${current.item.text}'")
+        player.interrupt()
+        // Only stop the engine if it is still on the interrupted utterance (not already on the urgent one)
+        if (completions.containsKey(current.utteranceId)) {
+            try { current.engine.tts.stop() } catch (_: Exception) {}
+        }
+    }
+
+    private fun isStale(ready: Ready): Boolean = isStale(ready.item, ready.generation)
+
+    private fun isStale(item: TtsScheduler.Item, generation: Int): Boolean =
+        item.priority < TtsScheduler.PRIORITY_URGENT && generation != flushGeneration.get()
+
+    /**
+     * Synthesis thread: takes messages in scheduler order, cuts them into sentences and gets
+     * each piece ready to play (cached file, freshly rendered file, or left to the engine)
+     * while the previous ones play. A long briefing starts after its first sentence.
+     */
+    private fun runSynthesis() {
+        audioCache = try {
+            TtsAudioCache(File(cacheDir, CACHE_DIR))
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Cache TTS indisponible: ${e.message}")
+            null
+        }
+        scratchDir.mkdirs()
+        scratchDir.listFiles()?.forEach { it.delete() }
+        val segmenter = TtsTextSegmenter(
+            maxChars = minOf(TtsTextSegmenter.DEFAULT_MAX_CHARS, TextToSpeech.getMaxSpeechInputLength())
+        )
+        while (!destroyed) {
+            val item = scheduler.take() ?: break
+            val generation = flushGeneration.get()
+            val engine = engines.route(item.locale, item.text)
+            if (engine == null) {
+                reportDropped(item.utteranceId, "moteur TTS indisponible")
+                continue
+            }
+            val pieces = segmenter.segments(item.text).iterator()
+            var index = 0
+            var stopped = false
+            try {
+                while (pieces.hasNext()) {
+                    val text = pieces.next()
+                    if (isStale(item, generation)) {
+                        // An urgent message came in: do not render the rest
+                        stopped = true
+                        break
+                    }
+                    val last = !pieces.hasNext()
+                    if (index == 1) Log.d(TAG, "✂️ Message découpé en phrases: ${item.utteranceId}")
+                    // Blocks once LOOKAHEAD pieces are waiting: that bounds the look-ahead
+                    readyQueue.put(prepare(item, engine, text, index, last, generation))
+                    index++
+                }
+                if (stopped) {
+                    if (index == 0) {
+                        reportDropped(item.utteranceId, "remplacé par un message urgent")
+                    } else {
+                        Log.w(TAG, "✂️ Message interrompu après $index phrase(s): ${item.utteranceId}")
+                        reportFinished(item.utteranceId, "interrompu")
+                    }
+                }
+            } catch (_: InterruptedException) {
+                break
+            }
+        }
+    }
+
+    private fun prepare(
+        item: TtsScheduler.Item,
+        engine: TtsEnginePool.Engine,
+        text: String,
+        index: Int,
+        last: Boolean,
+        generation: Int
+    ): Ready {
+        // Linked utterances: the first piece keeps the message id, the others are id#n
+        val utteranceId = if (index == 0) item.utteranceId else "${item.utteranceId}#$index"
+        val cache = audioCache
+        val key = TtsAudioCache.key(text, engine.locale, speechRate, pitch)
+        cache?.get(key)?.let { return Ready(item, engine, text, utteranceId, index, last, generation, key, it, temporary = false) }
+
+        // Nothing ahead of it: the engine's own streaming gets the first word out fastest
+        if (item.priority == TtsScheduler.PRIORITY_URGENT || (playing == null && readyQueue.isEmpty())) {
+            return Ready(item, engine, text, utteranceId, index, last, generation, key, null, temporary = false)
+        }
+        val renderStartMs = SystemClock.elapsedRealtime()
+        val rendered = render(engine, text, utteranceId, cache, key)
+            ?: return Ready(item, engine, text, utteranceId, index, last, generation, key, null, temporary = false)
+        // Render time while something else plays: the figure that shows whether look-ahead keeps up
+        Log.d(TAG, "🧵 Pré-synthèse prête en ${SystemClock.elapsedRealtime() - renderStartMs} ms " +
+            "(${if (engine.rendererReady) "moteur dédié" else "moteur de parole"}): '$text'")
+        return Ready(item, engine, text, utteranceId, index, last, generation, key, rendered, temporary = rendered.parentFile == scratchDir)
+    }
+
+    /** Renders [text] to a WAV file, into the cache when it qualifies. Null when synthesis failed. */
+    private fun render(engine: TtsEnginePool.Engine, text: String, utteranceId: String, cache: TtsAudioCache?, key: String): File? {
+        val cacheable = cache != null && TtsAudioCache.isCacheable(text)
+        val target = if (cacheable) cache!!.newTempFile(key) else File(scratchDir, "${System.nanoTime()}.wav")
+        val renderId = RENDER_PREFIX + utteranceId
+        val completion = Completion()
+        completions[renderId] = completion
+        try {
+            if (engine.renderTts.synthesizeToFile(text, Bundle(), target, renderId) == TextToSpeech.SUCCESS) {
+                completion.latch.await(timeoutFor(text), TimeUnit.MILLISECONDS)
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "❌ Erreur pré-synthèse: ${e.message}")
+        } finally {
+            completions.remove(renderId)
+        }
+        if (!completion.success) {
+            target.delete()
+            return null
+        }
+        if (!cacheable) return target
+        return if (cache!!.commit(key, target)) cache.get(key) else null
+    }
+
+    /**
+     * Playback thread. Rendered pieces are written back to back into one track: while one
+     * plays, the next is picked up as soon as it is ready (at the latest when the current one
+     * runs out), so there is no engine warm-up between them. Live ones wait for the track to drain.
+     * Progress is reported per message: started with its first piece, finished with its last.
+     */
+    private fun runPlayback() {
+        var next: Ready? = null
+        while (!destroyed) {
+            val ready = next ?: readyQueue.poll() ?: run {
+                player.drain()
+                try { readyQueue.take() } catch (_: InterruptedException) { null }
+            } ?: break
+            next = null
+            if (ready === STOP) break
+            if (isStale(ready)) {
+                if (ready.temporary) ready.file?.delete()
+                if (ready.index == 0) {
+                    reportDropped(ready.item.utteranceId, "remplacé par un message urgent")
+                } else if (ready.last) {
+                    Log.w(TAG, "✂️ Message interrompu après ${ready.index} phrase(s): ${ready.item.utteranceId}")
+                    reportFinished(ready.item.utteranceId, "interrompu")
+                }
+                continue
+            }
+
+            playing = ready
+            if (ready.index == 0) Log.d(TAG, "▶️ Début du message: ${ready.item.utteranceId}")
+            try {
+                val file = ready.file
+                if (file != null && ready.index == 0) reportStarted(ready.item.utteranceId)
+                if (file != null && player.write(file)) {
+                    if (ready.temporary) file.delete()
+                    next = try {
+                        readyQueue.poll(player.pendingMs(), TimeUnit.MILLISECONDS)
+                    } catch (_: InterruptedException) {
+                        break
+                    }
                 } else {
-                    Log.e(TAG, "❌ TTS toujours pas prêt")
+                    if (file != null) Log.w(TAG, "⚠️ Fichier audio illisible, synthèse normale")
+                    player.drain()
+                    if (!speakLive(ready.engine, ready.text, ready.utteranceId)) {
+                        messageTimes[ready.item.utteranceId]?.failed = true
+                    }
+                    val cache = audioCache
+                    if (cache != null && TtsAudioCache.isCacheable(ready.text) && !cache.contains(ready.key)) {
+                        fillCache(ready.engine, cache, ready.text, ready.key)
+                    }
                 }
+            } finally {
+                playing = null
+            }
+            if (ready.last) {
+                Log.d(TAG, "✅ Message terminé (${ready.index + 1} phrase(s)): ${ready.item.utteranceId}")
+                reportFinished(ready.item.utteranceId, null)
             }
-            return
         }
-        
+        player.release()
+    }
+
+    /**
+     * Speaks through the engine and waits for it, so cached and live utterances keep their order.
+     * False when the engine refused, failed or was stopped.
+     */
+    private fun speakLive(engine: TtsEnginePool.Engine, text: String, utteranceId: String): Boolean {
+        val completion = Completion()
+        completions[utteranceId] = completion
         try {
             Log.d(TAG, "🔊 Prononciation de: '$text'")
-            tts.speak(text, TextToSpeech.QUEUE_ADD, null, utteranceId)
+            if (engine.tts.speak(text, TextToSpeech.QUEUE_ADD, null, utteranceId) != TextToSpeech.SUCCESS) {
+                Log.e(TAG, "❌ Le moteur a refusé: '$text'")
+                return false
+            }
+            val timeoutMs = timeoutFor(text)
+            if (!completion.latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "⚠️ Pas de fin de parole après ${timeoutMs} ms: $utteranceId")
+            }
         } catch (e: Exception) {
             Log.e(TAG, "❌ Erreur lors de la parole: ${e.message}")
+        } finally {
+            completions.remove(utteranceId)
+        }
+        return completion.success
+    }
+
+    private fun timeoutFor(text: String): Long = LIVE_TIMEOUT_BASE_MS + text.length * LIVE_TIMEOUT_PER_CHAR_MS
+
+    /**
+     * Renders [text] to a file after the utterance that was just spoken, on the locale's render
+     * instance so the next live message does not queue behind it.
+     */
+    private fun fillCache(engine: TtsEnginePool.Engine, cache: TtsAudioCache, text: String, key: String) {
+        val temp = cache.newTempFile(key)
+        val fillId = FILL_PREFIX + key
+        if (pendingFills.putIfAbsent(fillId, key to temp) != null) return
+        try {
+            if (engine.renderTts.synthesizeToFile(text, Bundle(), temp, fillId) != TextToSpeech.SUCCESS) {
+                pendingFills.remove(fillId)
+                cache.discard(temp)
+            }
+        } catch (e: Exception) {
+            pendingFills.remove(fillId)
+            cache.discard(temp)
+            Log.e(TAG, "❌ Erreur mise en cache: ${e.message}")
+        }
+    }
+
+    private val progressListener = object : UtteranceProgressListener() {
+        // Only a message's first piece carries the message id; render_/cache_ ids are not tracked
+        override fun onStart(utteranceId: String?) {
+            reportStarted(utteranceId ?: return)
+        }
+
+        override fun onDone(utteranceId: String?) {
+            finish(utteranceId ?: return, success = true)
+        }
+
+        @Deprecated("Deprecated in Java")
+        override fun onError(utteranceId: String?) {
+            finish(utteranceId ?: return, success = false)
+        }
+
+        override fun onError(utteranceId: String?, errorCode: Int) {
+            Log.e(TAG, "❌ Erreur TTS $errorCode: $utteranceId")
+            finish(utteranceId ?: return, success = false)
+        }
+
+        // tts.stop() after an urgent message: neither onDone nor onError is called
+        override fun onStop(utteranceId: String?, interrupted: Boolean) {
+            finish(utteranceId ?: return, success = false)
+        }
+
+        private fun finish(utteranceId: String, success: Boolean) {
+            completions.remove(utteranceId)?.let {
+                it.success = success
+                it.latch.countDown()
+            }
+            val (key, temp) = pendingFills.remove(utteranceId) ?: return
+            val cache = audioCache ?: return
+            if (success && cache.commit(key, temp)) {
+                Log.d(TAG, "💾 Annonce mise en cache (${cache.sizeBytes() / 1024} Ko au total)")
+            } else {
+                cache.discard(temp)
+            }
         }
     }
     
@@ -108,11 +553,15 @@ class TtsService : Service(), TextToSpeech.OnInitListener {
     
     override fun onDestroy() {
         super.onDestroy()
+        destroyed = true
+        player.interrupt()
+        completions.values.forEach { it.latch.countDown() }
+        scheduler.close()
+        synthesisThread.interrupt()
+        readyQueue.clear()
+        readyQueue.offer(STOP)
         try {
-            if (::tts.isInitialized) {
-                tts.stop()
-                tts.shutdown()
-            }
+            if (::engines.isInitialized) engines.shutdown()
         } catch (e: Exception) {
             Log.e(TAG, "❌ Erreur lors de la destruction: ${e.message}")
         }
@@ -0,0 +1,77 @@
+package com.vhr.voice
+
+/**
+ * Splits a message into speakable pieces, lazily, so the first sentence can be synthesized
+ * and heard while the rest is still being cut. Pieces end on sentence boundaries; a sentence
+ * longer than [maxChars] is cut at its last clause boundary (, ; : –), then at a space, then
+ * hard. The first piece is kept to [firstChars] so a long briefing starts speaking quickly.
+ *
+ * [maxChars] must stay under [android.speech.tts.TextToSpeech.getMaxSpeechInputLength].
+ */
+class TtsTextSegmenter(
+    private val maxChars: Int = DEFAULT_MAX_CHARS,
+    private val firstChars: Int = DEFAULT_FIRST_CHARS
+) {
+
+    companion object {
+        const val DEFAULT_MAX_CHARS = 300
+        const val DEFAULT_FIRST_CHARS = 120
+        private const val SENTENCE_ENDS = ".!?…\n"
+        private const val CLAUSE_ENDS = ",;:–—"
+    }
+
+    fun segments(text: String): Sequence<String> = sequence {
+        var start = skipSpaces(text, 0)
+        var first = true
+        while (start < text.length) {
+            val limit = if (first) minOf(firstChars, maxChars) else maxChars
+            val end = nextCut(text, start, limit)
+            val piece = text.substring(start, end).trim()
+            if (piece.isNotEmpty()) yield(piece)
+            first = false
+            start = skipSpaces(text, end)
+        }
+    }
+
+    /** End (exclusive) of the piece starting at [start]. */
+    private fun nextCut(text: String, start: Int, limit: Int): Int {
+        val hardEnd = minOf(text.length, start + limit)
+        var clause = -1
+        var space = -1
+        var i = start
+        while (i < hardEnd) {
+            val c = text[i]
+            if (c in SENTENCE_ENDS && isSentenceEnd(text, i)) {
+                // Keep trailing punctuation ("?!", "...") and closing quotes with the sentence
+                var end = i + 1
+                while (end < text.length && (text[end] in SENTENCE_ENDS || text[end] in "\"'»)")) end++
+                return end
+            }
+            if (c in CLAUSE_ENDS && i + 1 < text.length && text[i + 1].isWhitespace()) clause = i + 1
+            if (c.isWhitespace() && i > start) space = i
+            i++
+        }
+        if (hardEnd == text.length) return hardEnd
+        return when {
+            clause > start -> clause
+            space > start -> space
+            else -> hardEnd
+        }
+    }
+
+    /** A period in "M. Dupont" or "3.5" is not the end of a sentence. */
+    private fun isSentenceEnd(text: String, index: Int): Boolean {
+        if (text[index] != '.') return true
+        val next = index + 1
+        if (next < text.length && !text[next].isWhitespace() && text[next] !in SENTENCE_ENDS) return false
+        var wordStart = index
+        while (wordStart > 0 && text[wordStart - 1].isLetter()) wordStart--
+        return index - wordStart != 1 || !text[wordStart].isUpperCase()
+    }
+
+    private fun skipSpaces(text: String, from: Int): Int {
+        var i = from
+        while (i < text.length && text[i].isWhitespace()) i++
+        return i
+    }
+}
@@ -2,55 +2,259 @@ package com.vhr.voice
 
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.time.Instant
 import java.time.LocalDateTime
-import java.time.format.DateTimeFormatter
+import java.time.ZoneId
 
 data class TtsMessage(
-    val id: String,
+    val id: Long,                   // monotone, attribué par TtsMessageHistory (journal : -offset)
+    val utteranceId: String,
     val text: String,
     val timestamp: LocalDateTime,
-    val status: String = "pending" // pending, speaking, completed, error
-)
+    val status: String = "pending", // pending, speaking, completed, error, session
+    val latencyMs: Long = -1L       // réception → première parole, mesuré sur le casque
+) {
+    /** Formatted once per state: every status change goes through copy(), hence a new instance. */
+    val item: TtsMessageItem by lazy(LazyThreadSafetyMode.NONE) { TtsMessageItem.from(this) }
+}
 
 class TtsViewModel : ViewModel() {
+
+    private companion object {
+        const val FRAME_MS = 16L
+        /** Log records read per page, and at most in memory at once. */
+        const val PAGE_SIZE = 50
+        const val MAX_WINDOW = 300
+    }
     
-    private val _messages = MutableStateFlow<List<TtsMessage>>(emptyList())
-    val messages: StateFlow<List<TtsMessage>> = _messages
+    private val _messages = MutableStateFlow<List<TtsMessageItem>>(emptyList())
+    val messages: StateFlow<List<TtsMessageItem>> = _messages
     
     private val _isListening = MutableStateFlow(true)
     val isListening: StateFlow<Boolean> = _isListening
     
     private val _messageCount = MutableStateFlow(0)
     val messageCount: StateFlow<Int> = _messageCount
-    
-    fun addMessage(text: String, status: String = "pending") {
-        val message = TtsMessage(
-            id = System.currentTimeMillis().toString(),
-            text = text,
-            timestamp = LocalDateTime.now(),
-            status = status
-        )
-        
+
+    // Bounded history: O(1) insert and status update, snapshots only on change
+    private val history = TtsMessageHistory()
+    private var publishedVersion = 0L
+    private var localIds = 0L
+
+    // Finished messages are read back from TtsMessageLog: only a window of it is in memory,
+    // between olderStart and newerEnd, newest first. The ring above keeps the ones in flight.
+    private class Row(val entry: TtsLogEntry, val message: TtsMessage)
+    private val window = ArrayList<Row>()
+    private var windowGeneration = -1
+    private var newerEnd = 0L
+    private var atHead = true
+    private var hasOlder = false
+    private var loading = false
+    private var staleHead = false
+    private var windowVersion = 0L
+    private var publishedWindowVersion = 0L
+    // Ring messages already in the log, shown from the window instead
+    private val loggedIds = HashSet<String>()
+
+    // TtsService events waiting for the next UI frame
+    private val pendingEvents = ArrayList<TtsEventBus.Event>()
+    private var flushJob: Job? = null
+
+    init {
+        reloadHead()
         viewModelScope.launch {
-            _messages.value = listOf(message) + _messages.value
-            _messageCount.value = _messages.value.size
+            TtsMessageLog.appended.collect { onAppended(it) }
+        }
+        // Bursts (10 messages/s, each with several events) become one list update per frame
+        viewModelScope.launch {
+            TtsEventBus.events.collect { event ->
+                pendingEvents.add(event)
+                if (flushJob == null) {
+                    flushJob = viewModelScope.launch {
+                        delay(FRAME_MS)
+                        flushJob = null
+                        applyEvents()
+                    }
+                }
+            }
         }
     }
-    
-    fun updateMessageStatus(id: String, status: String) {
-        _messages.value = _messages.value.map {
-            if (it.id == id) it.copy(status = status) else it
+
+    private fun applyEvents() {
+        if (pendingEvents.isEmpty()) return
+        for (event in pendingEvents) {
+            when (event.type) {
+                TtsEventBus.Type.RECEIVED -> history.add(event.utteranceId, event.text, LocalDateTime.now())
+                TtsEventBus.Type.STARTED -> history.update(event.utteranceId) {
+                    it.copy(status = "speaking", latencyMs = event.latencyMs)
+                }
+                TtsEventBus.Type.DONE -> history.update(event.utteranceId) { it.copy(status = "completed") }
+                TtsEventBus.Type.ERROR, TtsEventBus.Type.DROPPED -> history.update(event.utteranceId) {
+                    it.copy(status = "error")
+                }
+            }
         }
+        pendingEvents.clear()
+        publish()
     }
-    
-    fun clearHistory() {
+
+    /** Emits a new list only if the history or the log window actually changed since the last one. */
+    private fun publish() {
+        if (history.version == publishedVersion && windowVersion == publishedWindowVersion) return
+        publishedVersion = history.version
+        publishedWindowVersion = windowVersion
+        val live = history.snapshot()
+        if (loggedIds.size > 2 * TtsMessageHistory.DEFAULT_CAPACITY) {
+            loggedIds.retainAll(live.mapTo(HashSet()) { it.utteranceId })
+        }
+        val list = ArrayList<TtsMessageItem>(live.size + window.size)
+        for (message in live) {
+            if (message.utteranceId !in loggedIds) list.add(message.item)
+        }
+        window.mapTo(list) { it.message.item }
+        _messages.value = java.util.Collections.unmodifiableList(list)
+        TtsCompositionStats.listUpdates.incrementAndGet()
+        _messageCount.value = history.total.toInt()
+    }
+
+    /** Called as the list nears its bottom: reads the page before the window. */
+    fun loadOlder() {
+        if (loading || !hasOlder) return
+        val from = window.lastOrNull()?.entry?.offset ?: return
+        load({ TtsMessageLog.readBefore(from, PAGE_SIZE) }) { entries ->
+            hasOlder = entries.size == PAGE_SIZE
+            entries.forEach { window.add(toRow(it)) }
+            // Past the cap the newest rows go; scrolling back up reads them again
+            if (window.size > MAX_WINDOW) {
+                window.subList(0, window.size - MAX_WINDOW).clear()
+                newerEnd = window.first().entry.end
+                atHead = false
+            }
+        }
+    }
+
+    /** Called at the top of the list: reads the page after the window when it lags the log. */
+    fun loadNewer() {
+        if (atHead && !staleHead) return
+        if (loading) return
+        staleHead = false
+        val from = newerEnd
+        load({ TtsMessageLog.readAfter(from, PAGE_SIZE) }) { entries ->
+            if (entries.size < PAGE_SIZE) atHead = true
+            entries.forEach { window.add(0, toRow(it)) }
+            entries.lastOrNull()?.let { newerEnd = it.end }
+            trimOldest()
+        }
+    }
+
+    /** First page from the newest end; also after a compaction moved every offset. */
+    private fun reloadHead() {
+        if (loading) {
+            staleHead = true
+            return
+        }
+        loading = true
+        staleHead = false
+        val generation = TtsMessageLog.generation
+        viewModelScope.launch {
+            val (entries, end) = withContext(Dispatchers.IO) {
+                val end = TtsMessageLog.endOffset()
+                TtsMessageLog.readBefore(end, PAGE_SIZE) to end
+            }
+            loading = false
+            if (TtsMessageLog.generation != generation) {
+                reloadHead()
+                return@launch
+            }
+            windowGeneration = generation
+            window.clear()
+            entries.forEach { window.add(toRow(it)) }
+            newerEnd = end
+            atHead = true
+            hasOlder = entries.size == PAGE_SIZE
+            windowVersion++
+            publish()
+            if (staleHead) loadNewer()
+        }
+    }
+
+    private fun load(read: () -> List<TtsLogEntry>, apply: (List<TtsLogEntry>) -> Unit) {
+        loading = true
+        val generation = windowGeneration
         viewModelScope.launch {
-            _messages.value = emptyList()
-            _messageCount.value = 0
+            val entries = withContext(Dispatchers.IO) { read() }
+            loading = false
+            if (TtsMessageLog.generation != generation) {
+                reloadHead()
+                return@launch
+            }
+            entries.forEach { if (it.type == TtsMessageLog.TYPE_MESSAGE) loggedIds.add(it.utteranceId) }
+            apply(entries)
+            windowVersion++
+            publish()
+            if (staleHead) loadNewer()
+        }
+    }
+
+    private fun onAppended(entry: TtsLogEntry) {
+        if (entry.type == TtsMessageLog.TYPE_MESSAGE) loggedIds.add(entry.utteranceId)
+        when {
+            loading -> staleHead = true
+            TtsMessageLog.generation != windowGeneration -> reloadHead()
+            !atHead || entry.end <= newerEnd -> Unit
+            entry.offset != newerEnd -> {
+                // Missed a record: read the gap instead of guessing
+                staleHead = true
+                loadNewer()
+            }
+            else -> {
+                window.add(0, toRow(entry))
+                newerEnd = entry.end
+                trimOldest()
+                windowVersion++
+            }
         }
+        publish()
+    }
+
+    private fun trimOldest() {
+        if (window.size <= MAX_WINDOW) return
+        window.subList(MAX_WINDOW, window.size).clear()
+        hasOlder = true
+    }
+
+    private fun toRow(entry: TtsLogEntry): Row {
+        val timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.wallMs), ZoneId.systemDefault())
+        return Row(entry, TtsMessage(-entry.offset, entry.utteranceId, entry.text, timestamp, entry.status, entry.latencyMs))
+    }
+    
+    fun addMessage(text: String, status: String = "pending") {
+        // Local messages get their own utterance id; the history assigns the message id
+        history.add("local_${localIds++}", text, LocalDateTime.now(), status)
+        publish()
+    }
+    
+    fun updateMessageStatus(utteranceId: String, status: String) {
+        if (history.update(utteranceId) { it.copy(status = status) }) publish()
+    }
+    
+    fun clearHistory() {
+        history.clear()
+        TtsMessageLog.clear()
+        loggedIds.clear()
+        window.clear()
+        hasOlder = false
+        windowVersion++
+        // Offsets restart once the log is truncated: the next record reloads from the top
+        windowGeneration = -1
+        publish()
     }
     
     fun setListening(isListening: Boolean) {
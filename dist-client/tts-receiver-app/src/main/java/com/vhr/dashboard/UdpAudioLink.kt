@@ -0,0 +1,206 @@
+package com.vhr.voice
+
+import android.os.Process
+import android.util.Log
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetSocketAddress
+import java.net.SocketTimeoutException
+import java.nio.ByteBuffer
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Datagram side of one `udp-offer` from /api/audio/stream. Sends hello datagrams until the
+ * server acknowledges one; the server only moves audio to UDP after that, so when UDP is
+ * blocked (or the app reaches the PC through an ADB reverse tunnel) nothing changes and the
+ * WebSocket keeps carrying audio. [Listener.onUnavailable] is called once when the link
+ * never came up or stopped being acknowledged; the owner then sends [fallbackMessage] so
+ * the server stops using UDP right away (its own stale timer is longer than [ACK_TIMEOUT_MS])
+ * and keeps using the socket.
+ *
+ * [lossPercent] drops that share of outgoing media datagrams, to exercise concealment and
+ * FEC over loopback. No allocation per packet after [start].
+ */
+class UdpAudioLink(
+    private val host: String,
+    private val port: Int,
+    private val token: Long,
+    private val fec: Boolean,
+    private val lossPercent: Int,
+    private val listener: Listener
+) {
+
+    interface Listener {
+        fun onActive()
+        fun onUnavailable()
+        fun onPacket(data: ByteArray, size: Int, timestamp: Long)
+        fun onLoss(packets: Int)
+    }
+
+    private companion object {
+        const val TAG = "UdpAudioLink"
+        const val HELLO_INTERVAL_MS = 1_000L
+        const val HELLO_RETRY_MS = 200L
+        const val HANDSHAKE_TIMEOUT_MS = 2_000L
+        const val ACK_TIMEOUT_MS = 5_000L
+        const val RECEIVE_TIMEOUT_MS = 250
+    }
+
+    @Volatile var isActive = false
+        private set
+    @Volatile private var running = false
+    @Volatile private var socket: DatagramSocket? = null
+    private var thread: Thread? = null
+
+    // Sender state, capture thread only
+    private val sendBuffer = ByteArray(Rtp.HEADER_BYTES + Rtp.MAX_PAYLOAD_BYTES)
+    private val fecBuffer = ByteArray(Rtp.HEADER_BYTES + Rtp.FEC_PREFIX_BYTES + Rtp.MAX_PAYLOAD_BYTES)
+    private val sendPacket = DatagramPacket(sendBuffer, sendBuffer.size)
+    private val fecPacket = DatagramPacket(fecBuffer, fecBuffer.size)
+    private val fecEncoder = if (fec) RtpFecEncoder() else null
+    private var seq = ThreadLocalRandom.current().nextInt(0x10000)
+    private var timestamp = 0L
+
+    private val receiver = RtpReorderReceiver(object : RtpReorderReceiver.Sink {
+        override fun onPacket(data: ByteArray, size: Int, timestamp: Long) = listener.onPacket(data, size, timestamp)
+        override fun onLoss(packets: Int) = listener.onLoss(packets)
+    }, if (fec) Rtp.FEC_GROUP + 1 else 2)
+
+    /** WebSocket control message telling the server this link is gone. */
+    fun fallbackMessage(): String = "{\"type\":\"udp-fallback\",\"token\":$token}"
+
+    fun start() {
+        if (running) return
+        running = true
+        val worker = Thread({ runLink() }, "vhr-udp-audio")
+        worker.priority = Thread.MAX_PRIORITY
+        thread = worker
+        worker.start()
+    }
+
+    fun stop() {
+        running = false
+        isActive = false
+        try { socket?.close() } catch (_: Exception) {}
+        val worker = thread
+        thread = null
+        if (worker != null && worker !== Thread.currentThread()) {
+            try { worker.join(500) } catch (_: InterruptedException) {}
+        }
+    }
+
+    /**
+     * Sends one media packet ([size] bytes from [data]'s position) lasting [samples] RTP
+     * clock ticks. Returns false when the link is not active; the caller then uses the socket.
+     */
+    fun send(data: ByteBuffer, size: Int, payloadType: Int, samples: Int): Boolean {
+        val udp = socket ?: return false
+        if (!isActive || size > Rtp.MAX_PAYLOAD_BYTES) return false
+        val packetSeq = seq
+        val packetTimestamp = timestamp
+        seq = (seq + 1) and 0xffff
+        timestamp = (timestamp + samples) and 0xffffffffL
+
+        Rtp.writeHeader(sendBuffer, payloadType, packetSeq, packetTimestamp, token)
+        val base = data.position()
+        for (i in 0 until size) sendBuffer[Rtp.HEADER_BYTES + i] = data.get(base + i)
+        return try {
+            sendPacket.setData(sendBuffer, 0, Rtp.HEADER_BYTES + size)
+            if (!shouldDrop()) udp.send(sendPacket)
+            val encoder = fecEncoder
+            if (encoder != null) {
+                val parity = encoder.add(
+                    packetSeq, packetTimestamp, sendBuffer, Rtp.HEADER_BYTES, size,
+                    fecBuffer, Rtp.HEADER_BYTES
+                )
+                if (parity > 0) {
+                    Rtp.writeHeader(fecBuffer, Rtp.PT_FEC, encoder.baseSeq, 0L, token)
+                    fecPacket.setData(fecBuffer, 0, Rtp.HEADER_BYTES + parity)
+                    if (!shouldDrop()) udp.send(fecPacket)
+                }
+            }
+            true
+        } catch (e: Exception) {
+            Log.w(TAG, "send error: ${e.message}")
+            false
+        }
+    }
+
+    private fun shouldDrop(): Boolean =
+        lossPercent > 0 && ThreadLocalRandom.current().nextInt(100) < lossPercent
+
+    private fun runLink() {
+        try { Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO) } catch (_: Exception) {}
+        val helloBuffer = ByteArray(Rtp.HEADER_BYTES + 1)
+        Rtp.writeHeader(helloBuffer, Rtp.PT_CONTROL, 0, 0L, token)
+        helloBuffer[Rtp.HEADER_BYTES] = Rtp.CONTROL_HELLO.toByte()
+        val receiveBuffer = ByteArray(Rtp.HEADER_BYTES + Rtp.FEC_PREFIX_BYTES + Rtp.MAX_PAYLOAD_BYTES)
+        val incoming = DatagramPacket(receiveBuffer, receiveBuffer.size)
+
+        val startedMs = System.currentTimeMillis()
+        var lastHelloMs = 0L
+        var lastAckMs = 0L
+        try {
+            val udp = DatagramSocket()
+            socket = udp
+            udp.connect(InetSocketAddress(host, port))
+            udp.soTimeout = RECEIVE_TIMEOUT_MS
+            val hello = DatagramPacket(helloBuffer, helloBuffer.size)
+
+            while (running) {
+                val now = System.currentTimeMillis()
+                val helloInterval = if (isActive) HELLO_INTERVAL_MS else HELLO_RETRY_MS
+                if (now - lastHelloMs >= helloInterval) {
+                    lastHelloMs = now
+                    try { udp.send(hello) } catch (_: Exception) {}
+                }
+                if (!isActive && now - startedMs > HANDSHAKE_TIMEOUT_MS) {
+                    Log.w(TAG, "No UDP answer from $host:$port, staying on WebSocket")
+                    break
+                }
+                if (isActive && now - lastAckMs > ACK_TIMEOUT_MS) {
+                    Log.w(TAG, "UDP link to $host:$port went quiet, back to WebSocket")
+                    break
+                }
+
+                try {
+                    incoming.setData(receiveBuffer, 0, receiveBuffer.size)
+                    udp.receive(incoming)
+                } catch (_: SocketTimeoutException) {
+                    continue
+                }
+                val length = incoming.length
+                if (length < Rtp.HEADER_BYTES || Rtp.ssrc(receiveBuffer) != token) continue
+                when (Rtp.payloadType(receiveBuffer)) {
+                    Rtp.PT_CONTROL -> {
+                        if (length > Rtp.HEADER_BYTES && receiveBuffer[Rtp.HEADER_BYTES].toInt() == Rtp.CONTROL_ACK) {
+                            lastAckMs = System.currentTimeMillis()
+                            if (!isActive) {
+                                isActive = true
+                                Log.i(TAG, "UDP link active ($host:$port, fec=$fec)")
+                                listener.onActive()
+                            }
+                        }
+                    }
+                    Rtp.PT_FEC -> receiver.pushParity(
+                        Rtp.seq(receiveBuffer), receiveBuffer, Rtp.HEADER_BYTES, length - Rtp.HEADER_BYTES
+                    )
+                    else -> receiver.push(
+                        Rtp.seq(receiveBuffer), Rtp.timestamp(receiveBuffer),
+                        receiveBuffer, Rtp.HEADER_BYTES, length - Rtp.HEADER_BYTES
+                    )
+                }
+            }
+        } catch (e: Exception) {
+            if (running) Log.w(TAG, "UDP link error: ${e.message}")
+        } finally {
+            isActive = false
+            try { socket?.close() } catch (_: Exception) {}
+            socket = null
+            if (running) {
+                running = false
+                listener.onUnavailable()
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.vhr.voice
+
+import okhttp3.WebSocket
+import okio.ByteString
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Keeps the uplink within a latency budget instead of letting OkHttp buffer up to 16 MiB.
+ *
+ * Packets wait in a small ring until the socket's own queue ([WebSocket.queueSize]) has
+ * room for them. Audio older than the budget, or that no longer fits next to what the
+ * socket already holds, is dropped oldest first. Single producer: only call [submit] and
+ * [drain] from the capture thread; [stats] may be read from anywhere.
+ */
+class UplinkSendQueue(private val budgetMs: Int, private val capacity: Int = 64) {
+
+    data class Stats(
+        val sentPackets: Long,
+        val droppedPackets: Long,
+        val droppedMs: Long,
+        val pendingPackets: Int,
+        val socketQueuedMs: Int
+    )
+
+    private val packets = arrayOfNulls<ByteString>(capacity)
+    private val durationsMs = IntArray(capacity)
+    private val enqueuedNanos = LongArray(capacity)
+    private var head = 0
+    private var count = 0
+    private var pendingMs = 0
+    private var bytesPerMs = 0.0
+    @Volatile private var lastSocketQueuedMs = 0
+
+    private val sentPackets = AtomicLong(0)
+    private val droppedPackets = AtomicLong(0)
+    private val droppedMs = AtomicLong(0)
+
+    /** Queues [packet] and sends whatever fits. Returns the number of packets dropped by this call. */
+    fun submit(socket: WebSocket, packet: ByteString, durationMs: Int): Int {
+        if (durationMs > 0) bytesPerMs = packet.size.toDouble() / durationMs
+        var dropped = 0
+        if (count == capacity) {
+            dropOldest()
+            dropped++
+        }
+        val tail = (head + count) % capacity
+        packets[tail] = packet
+        durationsMs[tail] = durationMs
+        enqueuedNanos[tail] = System.nanoTime()
+        pendingMs += durationMs
+        count++
+        return dropped + drain(socket)
+    }
+
+    /** Moves pending packets to the socket while it stays under budget. Returns the packets dropped. */
+    fun drain(socket: WebSocket): Int {
+        var dropped = 0
+        val now = System.nanoTime()
+
+        // Audio older than the budget is no longer worth sending
+        while (count > 0 && (now - enqueuedNanos[head]) / 1_000_000L > budgetMs) {
+            dropOldest()
+            dropped++
+        }
+
+        var socketMs = socketQueuedMs(socket)
+        while (count > 0 && socketMs + durationsMs[head] <= budgetMs) {
+            val packet = packets[head]!!
+            val duration = durationsMs[head]
+            removeHead()
+            if (socket.send(packet)) {
+                sentPackets.incrementAndGet()
+                socketMs += duration
+            } else {
+                // Socket closing: the packet is lost either way
+                droppedPackets.incrementAndGet()
+                droppedMs.addAndGet(duration.toLong())
+                dropped++
+            }
+        }
+
+        // Socket is congested: keep only what can still be delivered within the budget
+        while (count > 0 && socketMs + pendingMs > budgetMs) {
+            dropOldest()
+            dropped++
+        }
+        lastSocketQueuedMs = socketMs
+        return dropped
+    }
+
+    fun clear() {
+        while (count > 0) removeHead()
+    }
+
+    fun stats(): Stats = Stats(
+        sentPackets = sentPackets.get(),
+        droppedPackets = droppedPackets.get(),
+        droppedMs = droppedMs.get(),
+        pendingPackets = count,
+        socketQueuedMs = lastSocketQueuedMs
+    )
+
+    private fun socketQueuedMs(socket: WebSocket): Int =
+        if (bytesPerMs <= 0.0) 0 else (socket.queueSize() / bytesPerMs).toInt()
+
+    private fun dropOldest() {
+        droppedPackets.incrementAndGet()
+        droppedMs.addAndGet(durationsMs[head].toLong())
+        removeHead()
+    }
+
+    private fun removeHead() {
+        pendingMs -= durationsMs[head]
+        packets[head] = null
+        head = (head + 1) % capacity
+        count--
+    }
+}
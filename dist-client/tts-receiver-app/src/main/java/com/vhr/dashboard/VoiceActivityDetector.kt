@@ -0,0 +1,93 @@
+package com.vhr.voice
+
+import java.nio.ByteBuffer
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.sqrt
+
+/**
+ * Lightweight VAD for 16-bit mono PCM frames.
+ *
+ * A frame counts as speech when its energy stands clearly above the tracked noise floor,
+ * or when it is a quieter but noisy frame (high zero-crossing rate, e.g. fricatives).
+ * Once triggered the detector stays active for [hangoverMs] so word endings and short
+ * pauses are not chopped. Allocation free; meant to run on the capture thread.
+ */
+class VoiceActivityDetector(
+    private val frameMs: Int,
+    private val hangoverMs: Int = 400,
+    private val speechMarginDb: Double = 9.0,
+    private val fricativeMarginDb: Double = 4.0,
+    private val fricativeZcr: Double = 0.25,
+    private val absoluteFloorDb: Double = -60.0
+) {
+
+    var lastEnergyDb: Double = -96.0
+        private set
+    var lastZcr: Double = 0.0
+        private set
+    var noiseFloorDb: Double = -60.0
+        private set
+    var isActive: Boolean = false
+        private set
+
+    private var hangoverLeftMs = 0
+    private var warmupFrames = 0
+
+    /** Analyses bytes [0, size) of [pcm] without moving its position. Returns true if the frame should be sent. */
+    fun process(pcm: ByteBuffer, size: Int): Boolean {
+        val samples = size / 2
+        if (samples == 0) return isActive
+
+        var sumSquares = 0.0
+        var crossings = 0
+        var previous = pcm.getShort(0).toInt()
+        for (i in 0 until samples) {
+            val sample = pcm.getShort(i * 2).toInt()
+            sumSquares += (sample * sample).toDouble()
+            if ((sample >= 0) != (previous >= 0)) crossings++
+            previous = sample
+        }
+
+        val rms = sqrt(sumSquares / samples) / 32768.0
+        val energyDb = 20.0 * log10(max(rms, 1e-5))
+        val zcr = crossings.toDouble() / samples
+        lastEnergyDb = energyDb
+        lastZcr = zcr
+
+        val aboveFloor = energyDb > absoluteFloorDb
+        val voiced = aboveFloor && energyDb > noiseFloorDb + speechMarginDb
+        val fricative = aboveFloor && zcr > fricativeZcr && energyDb > noiseFloorDb + fricativeMarginDb
+        val speech = warmupFrames >= WARMUP_FRAMES && (voiced || fricative)
+
+        if (speech) {
+            hangoverLeftMs = hangoverMs
+            isActive = true
+        } else {
+            updateNoiseFloor(energyDb)
+            if (hangoverLeftMs > 0) {
+                hangoverLeftMs -= frameMs
+            }
+            isActive = hangoverLeftMs > 0
+        }
+        if (warmupFrames < WARMUP_FRAMES) warmupFrames++
+        return isActive
+    }
+
+    fun reset() {
+        isActive = false
+        hangoverLeftMs = 0
+        warmupFrames = 0
+        noiseFloorDb = -60.0
+    }
+
+    private fun updateNoiseFloor(energyDb: Double) {
+        // Fall quickly towards quieter frames, rise slowly so speech does not drag the floor up
+        val alpha = if (energyDb < noiseFloorDb) 0.2 else 0.02
+        noiseFloorDb += (energyDb - noiseFloorDb) * alpha
+    }
+
+    private companion object {
+        const val WARMUP_FRAMES = 5
+    }
+}
@@ -0,0 +1,62 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class AudioDecodersTest {
+
+    private class FakeOpus : AudioDecoder {
+        override val format = AudioDecoders.FORMAT_OPUS
+        override val outputSampleRate = AudioDecoders.OPUS_SAMPLE_RATE
+        override fun decode(packet: ByteBuffer, size: Int, sink: PcmSink) {}
+        override fun release() {}
+    }
+
+    @Test
+    fun pcm16GetsPassthroughAtTheAnnouncedRate() {
+        val decoder = AudioDecoders.create("pcm16", 24_000) { null }
+        assertTrue(decoder is PcmPassthroughDecoder)
+        assertEquals(24_000, decoder!!.outputSampleRate)
+        assertEquals(AudioDecoders.FORMAT_PCM16, decoder.format)
+    }
+
+    @Test
+    fun opusWithoutAPlatformDecoderIsRefusedNotPassedThrough() {
+        assertNull(AudioDecoders.create("opus", 16_000) { null })
+    }
+
+    @Test
+    fun opusUsesThePlatformDecoderWhenThereIsOne() {
+        val opus = FakeOpus()
+        assertSame(opus, AudioDecoders.create(" OPUS ", 16_000) { opus })
+    }
+
+    @Test
+    fun unknownFormatsAreRefused() {
+        assertNull(AudioDecoders.create("webm", 16_000) { FakeOpus() })
+        assertNull(AudioDecoders.create("", 16_000) { FakeOpus() })
+    }
+
+    @Test
+    fun passthroughHandsTheSamePcmToTheSink() {
+        val pcm = byteArrayOf(1, 2, 3, 4, 5, 6)
+        val packet = ByteBuffer.wrap(pcm)
+        var received: ByteArray? = null
+        PcmPassthroughDecoder(16_000).decode(packet, 4) { data, size ->
+            received = ByteArray(size).also { data.duplicate().get(it) }
+        }
+        assertArrayEquals(byteArrayOf(1, 2, 3, 4), received)
+    }
+
+    @Test
+    fun passthroughSkipsEmptyPackets() {
+        var calls = 0
+        PcmPassthroughDecoder(16_000).decode(ByteBuffer.allocate(0), 0) { _, _ -> calls++ }
+        assertEquals(0, calls)
+    }
+}
@@ -0,0 +1,47 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class AudioMetricsTest {
+
+    @Test
+    fun counterIgnoresNegativeDeltas() {
+        val counter = AudioMetrics.Counter()
+        counter.add(5)
+        // e.g. a fresh jitter buffer compared against the previous session's totals
+        counter.add(-3)
+        counter.increment()
+        assertEquals(6L, counter.get())
+    }
+
+    @Test
+    fun samplerReportsCountersAndRates() {
+        val sampler = AudioHealthSampler()
+        val underruns = AudioMetrics.downlinkJitterUnderruns.get()
+        sampler.sample(1_000_000_000L)
+
+        AudioMetrics.downlinkBytesIn.add(32_000)
+        AudioMetrics.downlinkJitterUnderruns.add(2)
+        val health = sampler.sample(2_000_000_000L)
+
+        assertEquals(32_000L, health.bytesInPerSec)
+        assertEquals(underruns + 2, health.jitterUnderruns)
+    }
+
+    @Test
+    fun percentilesFollowTheWindow() {
+        val sampler = AudioHealthSampler(windowSamples = 2)
+        repeat(100) { AudioMetrics.rttMs.record(10) }
+        assertEquals(10L, sampler.sample().rttP50Ms)
+
+        repeat(100) { AudioMetrics.rttMs.record(180) }
+        val recent = sampler.sample()
+        assertEquals(200L, recent.rttP50Ms)
+        assertEquals(200L, recent.rttP95Ms)
+
+        // Nothing recorded for a whole window
+        sampler.sample()
+        assertEquals(-1L, sampler.sample().rttP50Ms)
+    }
+}
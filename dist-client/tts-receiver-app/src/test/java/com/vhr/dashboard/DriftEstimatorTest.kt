@@ -0,0 +1,67 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class DriftEstimatorTest {
+
+    private val trackRate = 16_000.0
+    private val tickNanos = 500_000_000L
+
+    /** Feeds [seconds] of 500 ms updates from a sender running [skewPpm] off the track clock. */
+    private fun run(
+        estimator: DriftEstimator,
+        skewPpm: Double,
+        seconds: Int,
+        depthMs: Double = 60.0,
+        targetMs: Double = 60.0
+    ): Double {
+        val senderRate = trackRate * (1.0 + skewPpm / 1_000_000.0)
+        var ppm = 0.0
+        for (tick in 0..seconds * 2) {
+            val nanos = 1_000_000_000L + tick * tickNanos
+            val elapsed = tick * tickNanos / 1e9
+            ppm = estimator.update(
+                receivedSamples = (senderRate * elapsed).toLong(),
+                nowNanos = nanos,
+                trackFrames = (trackRate * elapsed).toLong(),
+                trackNanos = nanos,
+                depthMs = depthMs,
+                targetMs = targetMs
+            )
+        }
+        return ppm
+    }
+
+    @Test
+    fun convergesOnAFastSender() {
+        val estimator = DriftEstimator()
+        assertEquals(200.0, run(estimator, 200.0, 60), 10.0)
+        assertEquals(200.0, estimator.clockPpm, 10.0)
+    }
+
+    @Test
+    fun convergesOnASlowSender() {
+        val estimator = DriftEstimator()
+        assertEquals(-150.0, run(estimator, -150.0, 60), 10.0)
+    }
+
+    @Test
+    fun staysNeutralBeforeTheWindowFills() {
+        val estimator = DriftEstimator()
+        assertEquals(0.0, run(estimator, 300.0, 4), 0.001)
+    }
+
+    @Test
+    fun fillTermPullsAnOverfullBufferDown() {
+        val estimator = DriftEstimator()
+        // No clock skew, buffer 10 ms above target: 2 ppm per ms of excess
+        assertEquals(20.0, run(estimator, 0.0, 60, depthMs = 70.0), 1.0)
+    }
+
+    @Test
+    fun clampsToTheConfiguredMaximum() {
+        val estimator = DriftEstimator(maxPpm = 500.0)
+        assertEquals(500.0, run(estimator, 2_000.0, 60), 0.001)
+    }
+}
@@ -0,0 +1,67 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class JitterBufferTest {
+
+    private val pool = PcmFramePool(640, 16)
+    private val buffer = JitterBuffer(bytesPerMs = 32, pool = pool)
+    private var clockNanos = 1_000_000_000L
+
+    /** One 20 ms frame at 16 kHz, arriving exactly on time. */
+    private fun offerFrame() {
+        val frame = pool.acquire()
+        frame.size = 640
+        frame.arrivalNanos = clockNanos
+        clockNanos += 20_000_000L
+        buffer.offer(frame)
+    }
+
+    @Test
+    fun takingTheLastQueuedFrameIsNotAnUnderrun() {
+        offerFrame()
+        offerFrame()
+        repeat(2) { assertNotNull(buffer.poll(0)) }
+
+        // Consumer faster than arrivals: each frame is handed out as soon as it lands
+        repeat(10) {
+            offerFrame()
+            assertNotNull(buffer.poll(0))
+        }
+
+        val stats = buffer.stats()
+        assertEquals(0L, stats.underruns)
+        assertEquals(0L, stats.lateFrames)
+    }
+
+    @Test
+    fun waitingInVainWhilePlayingIsAnUnderrunAndRebuffers() {
+        offerFrame()
+        offerFrame()
+        repeat(2) { assertNotNull(buffer.poll(0)) }
+
+        assertNull(buffer.poll(5))
+        assertEquals(1L, buffer.stats().underruns)
+
+        // Prebuffering again: one frame is not enough to resume
+        offerFrame()
+        assertNull(buffer.poll(0))
+        offerFrame()
+        assertNotNull(buffer.poll(0))
+
+        val stats = buffer.stats()
+        assertEquals(1L, stats.underruns)
+        assertEquals(1L, stats.lateFrames)
+    }
+
+    @Test
+    fun timeoutWhilePrebufferingIsNotAnUnderrun() {
+        assertNull(buffer.poll(5))
+        offerFrame()
+        assertNull(buffer.poll(5))
+        assertEquals(0L, buffer.stats().underruns)
+    }
+}
@@ -0,0 +1,126 @@
+package com.vhr.voice
+
+import okio.ByteString.Companion.toByteString
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import kotlin.math.abs
+
+class PcmFramePoolTest {
+
+    // 20 ms at 48 kHz, the native rate most microphones report
+    private val frameBytes = 1920
+    private val source = ByteArray(frameBytes) { (it * 31).toByte() }
+
+    /** AudioRecord stand-in: always a full frame of [source]. */
+    private val microphone = PcmSource { buffer, maxBytes ->
+        buffer.put(source, 0, maxBytes)
+        maxBytes
+    }
+
+    /** Runs [frames] capture steps the way MicUplinkService does, releasing every frame. */
+    private fun captureFrames(capture: PcmCapture, frames: Int, consume: (PcmFrame) -> Unit = {}) {
+        repeat(frames) {
+            val frame = checkNotNull(capture.next()) { "capture step returned no frame" }
+            consume(frame)
+            capture.pool.release(frame)
+        }
+    }
+
+    @Test
+    fun steadyStateCaptureAllocatesNoFrames() {
+        val capture = PcmCapture(microphone, frameBytes, converter = null, maxPooled = 4)
+        var sink = 0L
+        captureFrames(capture, 100) { sink += it.size }
+        val warm = capture.pool.stats()
+        captureFrames(capture, 20_000) { sink += it.size }
+        val after = capture.pool.stats()
+        assertEquals(0L, after.allocations - warm.allocations)
+        assertEquals(0L, after.allocatedBytes - warm.allocatedBytes)
+        assertEquals(20_000L, after.acquired - warm.acquired)
+        assertEquals(20_100L * frameBytes, sink)
+    }
+
+    @Test
+    fun steadyStateConversionAllocatesNoFrames() {
+        val capture = PcmCapture(microphone, frameBytes, PolyphaseResampler(48000, 16000), maxPooled = 4)
+        var converted = 0L
+        captureFrames(capture, 100)
+        val warm = capture.pool.stats()
+        captureFrames(capture, 20_000) { converted += it.size }
+        val after = capture.pool.stats()
+        assertEquals(0L, after.allocations - warm.allocations)
+        // Two frames per step: the captured one and the converted one
+        assertEquals(40_000L, after.acquired - warm.acquired)
+        assertEquals(2, after.pooled)
+        // 48 kHz -> 16 kHz: a third of the captured bytes, give or take the filter delay
+        val expected = 20_000L * frameBytes / 3
+        assertTrue("converted $converted of $expected bytes", abs(converted - expected) <= 96)
+    }
+
+    @Test
+    fun stampsEachFrameAndKeepsItsBytes() {
+        val capture = PcmCapture(microphone, frameBytes, converter = null, maxPooled = 4)
+        val before = System.nanoTime()
+        val frame = checkNotNull(capture.next()) { "capture step returned no frame" }
+        assertTrue(frame.arrivalNanos >= before)
+        assertEquals(source.toByteString(), frame.flip().toByteString())
+        capture.pool.release(frame)
+    }
+
+    @Test
+    fun returnsTheFrameOnEmptyOrFailedReads() {
+        var result = 0
+        val capture = PcmCapture({ _, _ -> result }, frameBytes, converter = null, maxPooled = 4)
+        assertNull(capture.next())
+        assertEquals(0, capture.readError)
+        result = -3
+        assertNull(capture.next())
+        assertEquals(-3, capture.readError)
+        assertEquals(1L, capture.pool.stats().allocations)
+        assertEquals(1, capture.pool.stats().pooled)
+    }
+
+    @Test
+    fun countsFramesCreatedPastItsSize() {
+        val pool = PcmFramePool(frameBytes, 2)
+        val held = List(3) { pool.acquire() }
+        assertEquals(3L, pool.stats().allocations)
+        held.forEach { pool.release(it) }
+        assertEquals(2, pool.stats().pooled)
+
+        // A payload larger than the pooled frames needs a new one
+        pool.release(pool.acquire(frameBytes * 2))
+        assertEquals(4L, pool.stats().allocations)
+        assertEquals(frameBytes * 5L, pool.stats().allocatedBytes)
+    }
+
+    /**
+     * Heap bytes per captured frame once the pool is warm. The ByteString handed to the
+     * socket is the only copy left on the capture path.
+     */
+    @Test
+    fun captureCopiesEachFrameOnce() {
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported)
+        threads!!.isThreadAllocatedMemoryEnabled = true
+        val thread = Thread.currentThread().id
+        val frames = 20_000
+        var sink = 0L
+        val capture = PcmCapture(microphone, frameBytes, converter = null, maxPooled = 4)
+        val consume: (PcmFrame) -> Unit = { sink += it.flip().toByteString().size }
+
+        // Warm-up so JIT and pool state do not skew the measurement
+        captureFrames(capture, frames / 10, consume)
+
+        val start = threads.getThreadAllocatedBytes(thread)
+        captureFrames(capture, frames, consume)
+        val perFrame = (threads.getThreadAllocatedBytes(thread) - start) / frames
+
+        assertEquals((frames + frames / 10).toLong() * frameBytes, sink)
+        assertTrue("capture allocated $perFrame B/frame", perFrame >= frameBytes && perFrame < frameBytes + 256)
+    }
+}
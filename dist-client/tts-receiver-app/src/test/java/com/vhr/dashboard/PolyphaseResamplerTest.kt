@@ -0,0 +1,80 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.PI
+import kotlin.math.abs
+import kotlin.math.sin
+
+class PolyphaseResamplerTest {
+
+    private fun frame(samples: Int, value: (Int) -> Int): ByteBuffer {
+        val buffer = ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0 until samples) buffer.putShort(i * 2, value(i).toShort())
+        return buffer
+    }
+
+    private fun tone(rate: Int, samples: Int): ByteBuffer =
+        frame(samples) { (8000 * sin(2.0 * PI * 440.0 * it / rate)).toInt() }
+
+    /** Streams [frames] 20 ms frames through [resampler] and returns the output sample count. */
+    private fun stream(resampler: PolyphaseResampler, frames: Int, input: ByteBuffer): Long {
+        val output = ByteBuffer.allocateDirect(resampler.maxOutputBytes(input.capacity()))
+            .order(ByteOrder.LITTLE_ENDIAN)
+        var produced = 0L
+        repeat(frames) { produced += resampler.process(input, input.capacity(), output) / 2 }
+        return produced
+    }
+
+    @Test
+    fun rejectsMoreInputThanItCanHold() {
+        val resampler = PolyphaseResampler(16000, 48000, maxInputSamples = 320)
+        val output = ByteBuffer.allocateDirect(resampler.maxOutputBytes(642))
+        assertThrows(IllegalArgumentException::class.java) {
+            resampler.process(frame(321) { 0 }, 642, output)
+        }
+    }
+
+    @Test
+    fun rejectsAnOutputTooSmallForTheInput() {
+        val resampler = PolyphaseResampler(16000, 48000)
+        val output = ByteBuffer.allocateDirect(320 * 2)
+        assertThrows(IllegalArgumentException::class.java) {
+            resampler.process(frame(320) { 0 }, 640, output)
+        }
+    }
+
+    @Test
+    fun consumesEveryInputSample() {
+        for ((inRate, outRate) in listOf(16000 to 48000, 48000 to 16000, 44100 to 48000, 24000 to 48000)) {
+            val resampler = PolyphaseResampler(inRate, outRate)
+            val frames = 500
+            val produced = stream(resampler, frames, tone(inRate, inRate / 50))
+            val expected = frames.toLong() * (outRate / 50)
+            assertTrue("$inRate->$outRate produced $produced of $expected", abs(produced - expected) <= 24)
+        }
+    }
+
+    @Test
+    fun keepsUnityGain() {
+        val resampler = PolyphaseResampler(16000, 48000)
+        val input = frame(320) { 1000 }
+        val output = ByteBuffer.allocateDirect(resampler.maxOutputBytes(640)).order(ByteOrder.LITTLE_ENDIAN)
+        var bytes = 0
+        repeat(5) { bytes = resampler.process(input, 640, output) }
+        for (i in 0 until bytes / 2) assertEquals(1000, output.getShort(i * 2).toInt())
+    }
+
+    @Test
+    fun copiesWhenTheRatesMatch() {
+        val resampler = PolyphaseResampler(48000, 48000)
+        val input = tone(48000, 960)
+        val output = ByteBuffer.allocateDirect(resampler.maxOutputBytes(1920)).order(ByteOrder.LITTLE_ENDIAN)
+        assertEquals(1920, resampler.process(input, 1920, output))
+        for (i in 0 until 960) assertEquals(input.getShort(i * 2), output.getShort(i * 2))
+    }
+}
@@ -0,0 +1,166 @@
+package com.vhr.voice
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class RtpFecLoopbackTest {
+
+    private val packetBytes = 640
+    private val token = 0x1234ABCDL
+
+    /** Payload of packet [index]: distinct bytes so a wrong rebuild cannot pass. */
+    private fun payload(index: Int) = ByteArray(packetBytes - (index % 3) * 16) { (index * 7 + it * 13).toByte() }
+
+    /** Media and parity datagrams in send order, as UdpAudioLink and server.js emit them. */
+    private fun encode(packets: Int, firstSeq: Int): List<ByteArray> {
+        val encoder = RtpFecEncoder()
+        val parity = ByteArray(Rtp.FEC_PREFIX_BYTES + Rtp.MAX_PAYLOAD_BYTES)
+        val datagrams = ArrayList<ByteArray>()
+        for (i in 0 until packets) {
+            val seq = (firstSeq + i) and 0xffff
+            val data = payload(i)
+            val media = ByteArray(Rtp.HEADER_BYTES + data.size)
+            Rtp.writeHeader(media, Rtp.PT_PCM16, seq, i * 320L, token)
+            System.arraycopy(data, 0, media, Rtp.HEADER_BYTES, data.size)
+            datagrams.add(media)
+            val length = encoder.add(seq, i * 320L, data, 0, data.size, parity, 0)
+            if (length > 0) {
+                val fec = ByteArray(Rtp.HEADER_BYTES + length)
+                Rtp.writeHeader(fec, Rtp.PT_FEC, encoder.baseSeq, 0L, token)
+                System.arraycopy(parity, 0, fec, Rtp.HEADER_BYTES, length)
+                datagrams.add(fec)
+            }
+        }
+        return datagrams
+    }
+
+    private class Collector : RtpReorderReceiver.Sink, UdpAudioLink.Listener {
+        val packets = ArrayList<Pair<Long, ByteArray>>()
+        var lost = 0
+        val done = CountDownLatch(1)
+        var expected = Int.MAX_VALUE
+
+        @Synchronized override fun onPacket(data: ByteArray, size: Int, timestamp: Long) {
+            packets.add(timestamp to data.copyOf(size))
+            if (packets.size + lost >= expected) done.countDown()
+        }
+
+        @Synchronized override fun onLoss(packets: Int) {
+            lost += packets
+            if (this.packets.size + lost >= expected) done.countDown()
+        }
+
+        override fun onActive() {}
+        override fun onUnavailable() {}
+    }
+
+    private fun feed(receiver: RtpReorderReceiver, datagram: ByteArray) {
+        val body = datagram.size - Rtp.HEADER_BYTES
+        if (Rtp.payloadType(datagram) == Rtp.PT_FEC) {
+            receiver.pushParity(Rtp.seq(datagram), datagram, Rtp.HEADER_BYTES, body)
+        } else {
+            receiver.push(Rtp.seq(datagram), Rtp.timestamp(datagram), datagram, Rtp.HEADER_BYTES, body)
+        }
+    }
+
+    private fun assertIntact(collector: Collector) {
+        for ((timestamp, data) in collector.packets) {
+            assertArrayEquals("packet at $timestamp", payload((timestamp / 320).toInt()), data)
+        }
+        val order = collector.packets.map { it.first }
+        assertEquals(order.sorted(), order)
+    }
+
+    @Test
+    fun rebuildsOneLossPerGroup() {
+        val collector = Collector()
+        val receiver = RtpReorderReceiver(collector, Rtp.FEC_GROUP + 1)
+        var media = 0
+        // Drop a different media packet of every group, wrapping the sequence space. Not the
+        // very first one: the receiver starts the stream at the first packet it sees.
+        for (datagram in encode(400, 0xfff0)) {
+            if (Rtp.payloadType(datagram) != Rtp.PT_FEC) {
+                val index = media++
+                if (index % Rtp.FEC_GROUP == (index / Rtp.FEC_GROUP + 1) % Rtp.FEC_GROUP) continue
+            }
+            feed(receiver, datagram)
+        }
+        assertEquals(0, collector.lost)
+        assertEquals(400, collector.packets.size)
+        assertIntact(collector)
+    }
+
+    /**
+     * 5 % random loss on media and parity alike, the rate the loss shim is meant to be run
+     * at. A packet stays lost only when another packet of its group, or the parity, is lost
+     * too: about 0.9 % in theory, against 5 % without FEC.
+     */
+    @Test
+    fun fecCutsResidualLossAtFivePercent() {
+        val packets = 20_000
+        val random = Random(42)
+        val collector = Collector()
+        val receiver = RtpReorderReceiver(collector, Rtp.FEC_GROUP + 1)
+        var droppedMedia = 0
+        for (datagram in encode(packets, 1000)) {
+            if (random.nextInt(100) < 5) {
+                if (Rtp.payloadType(datagram) != Rtp.PT_FEC) droppedMedia++
+                continue
+            }
+            feed(receiver, datagram)
+        }
+        val delivered = collector.packets.size
+        val residual = packets - delivered
+        assertTrue("only $droppedMedia media packets dropped", droppedMedia > packets * 4 / 100)
+        assertIntact(collector)
+        assertTrue("only $delivered + ${collector.lost} of $packets accounted for", delivered + collector.lost >= packets - Rtp.FEC_GROUP)
+        assertTrue("residual $residual of $droppedMedia dropped", residual * 3 < droppedMedia)
+        assertTrue("residual ${100.0 * residual / packets}%", residual < packets * 2 / 100)
+    }
+
+    /** The same recovery through a real UdpAudioLink, against a fake server on 127.0.0.1. */
+    @Test
+    fun udpLinkRecoversLossOverLoopback() {
+        val packets = 200
+        val server = DatagramSocket(0, InetAddress.getLoopbackAddress())
+        server.soTimeout = 2_000
+        val collector = Collector().apply { expected = packets }
+        val link = UdpAudioLink("127.0.0.1", server.localPort, token, fec = true, lossPercent = 0, listener = collector)
+        try {
+            link.start()
+            // Answer the first hello, then stream with one media packet of each group lost
+            val hello = DatagramPacket(ByteArray(64), 64)
+            server.receive(hello)
+            assertEquals(Rtp.PT_CONTROL, Rtp.payloadType(hello.data))
+            val ack = ByteArray(Rtp.HEADER_BYTES + 1)
+            Rtp.writeHeader(ack, Rtp.PT_CONTROL, 0, 0L, token)
+            ack[Rtp.HEADER_BYTES] = Rtp.CONTROL_ACK.toByte()
+            server.send(DatagramPacket(ack, ack.size, hello.socketAddress))
+            val deadline = System.currentTimeMillis() + 2_000
+            while (!link.isActive && System.currentTimeMillis() < deadline) Thread.sleep(5)
+            assertTrue(link.isActive)
+
+            var media = 0
+            for (datagram in encode(packets, 60_000)) {
+                if (Rtp.payloadType(datagram) != Rtp.PT_FEC && media++ % Rtp.FEC_GROUP == 2) continue
+                server.send(DatagramPacket(datagram, datagram.size, hello.socketAddress))
+                Thread.sleep(1)
+            }
+            assertTrue(collector.done.await(3, TimeUnit.SECONDS))
+        } finally {
+            link.stop()
+            server.close()
+        }
+        assertEquals(0, collector.lost)
+        assertEquals(packets, collector.packets.size)
+        assertIntact(collector)
+    }
+}